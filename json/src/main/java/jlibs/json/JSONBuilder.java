@@ -0,0 +1,118 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package jlibs.json;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds in-memory tree of JSON document.
+ * Objects are built as LinkedHashMap, arrays as ArrayList and
+ * JSON null as java null.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public class JSONBuilder implements JSONHandler{
+    private Object result;
+    private Object stack[] = new Object[16];
+    private int depth;
+    private String name;
+
+    public Object getResult(){
+        return result;
+    }
+
+    @Override
+    public void startDocument(){
+        result = null;
+        depth = 0;
+        name = null;
+    }
+
+    @Override
+    public void endDocument(){}
+
+    @Override
+    public void startObject(){
+        push(new LinkedHashMap<String, Object>());
+    }
+
+    @Override
+    public void name(String name){
+        this.name = name;
+    }
+
+    @Override
+    public void endObject(){
+        pop();
+    }
+
+    @Override
+    public void startArray(){
+        push(new ArrayList<>());
+    }
+
+    @Override
+    public void endArray(){
+        pop();
+    }
+
+    @Override
+    public void string(String value){
+        add(value);
+    }
+
+    @Override
+    public void number(Number value){
+        add(value);
+    }
+
+    @Override
+    public void bool(boolean value){
+        add(value);
+    }
+
+    @Override
+    public void nullValue(){
+        add(null);
+    }
+
+    private void push(Object container){
+        add(container);
+        if(depth==stack.length)
+            stack = Arrays.copyOf(stack, depth*2);
+        stack[depth++] = container;
+    }
+
+    private void pop(){
+        stack[--depth] = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void add(Object value){
+        if(depth==0)
+            result = value;
+        else{
+            Object container = stack[depth-1];
+            if(container instanceof Map)
+                ((Map<String, Object>)container).put(name, value);
+            else
+                ((List<Object>)container).add(value);
+        }
+    }
+}
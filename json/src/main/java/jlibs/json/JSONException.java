@@ -0,0 +1,50 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package jlibs.json;
+
+/**
+ * @author Santhosh Kumar Tekuri
+ */
+public class JSONException extends Exception{
+    private static final long serialVersionUID = 1L;
+
+    private final int lineNumber;
+    private final int columnNumber;
+
+    public JSONException(String message, int lineNumber, int columnNumber){
+        super(lineNumber<0 ? message : message+" at line "+lineNumber+", column "+columnNumber);
+        this.lineNumber = lineNumber;
+        this.columnNumber = columnNumber;
+    }
+
+    public JSONException(String message){
+        this(message, -1, -1);
+    }
+
+    public JSONException(Throwable cause){
+        super(cause);
+        lineNumber = columnNumber = -1;
+    }
+
+    /** line number where error occurred, -1 if not known */
+    public int getLineNumber(){
+        return lineNumber;
+    }
+
+    /** column number where error occurred, -1 if not known */
+    public int getColumnNumber(){
+        return columnNumber;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package jlibs.json;
+
+/**
+ * Receives events of JSON document, similar to SAX ContentHandler.
+ *
+ * Member name of object is reported through name(...) just before its value.
+ * Integral numbers are reported as Long, or BigInteger if they don't fit in long.
+ * Numbers with fraction or exponent are reported as Double.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public interface JSONHandler{
+    public void startDocument() throws JSONException;
+    public void endDocument() throws JSONException;
+
+    public void startObject() throws JSONException;
+    public void name(String name) throws JSONException;
+    public void endObject() throws JSONException;
+
+    public void startArray() throws JSONException;
+    public void endArray() throws JSONException;
+
+    public void string(String value) throws JSONException;
+    public void number(Number value) throws JSONException;
+    public void bool(boolean value) throws JSONException;
+    public void nullValue() throws JSONException;
+}
@@ -0,0 +1,253 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package jlibs.json;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Writes JSON without any whitespace, either from events or from
+ * in-memory tree as built by {@link JSONBuilder}.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public class JSONWriter implements JSONHandler{
+    private final Writer out;
+    private boolean empty[] = new boolean[16];
+    private int depth;
+    private boolean nameWritten;
+
+    public JSONWriter(Writer out){
+        this.out = out;
+    }
+
+    /*-------------------------------------------------[ Tree ]---------------------------------------------------*/
+
+    /**
+     * value can be null, String, Number, Boolean, Map, Iterable or array.
+     * any other object is written as string using its toString()
+     */
+    public void write(Object value) throws IOException{
+        separator();
+        if(value==null)
+            out.write("null");
+        else if(value instanceof String)
+            quote((String)value);
+        else if(value instanceof Number)
+            writeNumber((Number)value);
+        else if(value instanceof Boolean)
+            out.write(value.toString());
+        else if(value instanceof Map){
+            out.write('{');
+            push();
+            for(Map.Entry<?, ?> entry: ((Map<?, ?>)value).entrySet()){
+                separator();
+                quote(String.valueOf(entry.getKey()));
+                out.write(':');
+                nameWritten = true;
+                write(entry.getValue());
+            }
+            --depth;
+            out.write('}');
+        }else if(value instanceof Iterable){
+            out.write('[');
+            push();
+            for(Object item: (Iterable<?>)value)
+                write(item);
+            --depth;
+            out.write(']');
+        }else if(value.getClass().isArray()){
+            out.write('[');
+            push();
+            for(int i=0, len=Array.getLength(value); i<len; i++)
+                write(Array.get(value, i));
+            --depth;
+            out.write(']');
+        }else
+            quote(value.toString());
+    }
+
+    private void push(){
+        if(depth==empty.length)
+            empty = Arrays.copyOf(empty, depth*2);
+        empty[depth++] = true;
+    }
+
+    private void separator() throws IOException{
+        if(nameWritten)
+            nameWritten = false;
+        else if(depth>0){
+            if(empty[depth-1])
+                empty[depth-1] = false;
+            else
+                out.write(',');
+        }
+    }
+
+    private void writeNumber(Number value) throws IOException{
+        if(value instanceof Double || value instanceof Float){
+            double d = value.doubleValue();
+            if(Double.isNaN(d) || Double.isInfinite(d)){
+                out.write("null");
+                return;
+            }
+        }
+        out.write(value.toString());
+    }
+
+    private static final char HEX[] = "0123456789abcdef".toCharArray();
+    private void quote(String str) throws IOException{
+        out.write('"');
+        int from = 0;
+        for(int i=0, len=str.length(); i<len; i++){
+            char ch = str.charAt(i);
+            if(ch>=0x20 && ch!='"' && ch!='\\')
+                continue;
+            out.write(str, from, i-from);
+            from = i+1;
+            switch(ch){
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                case '\b':
+                    out.write("\\b");
+                    break;
+                case '\f':
+                    out.write("\\f");
+                    break;
+                default:
+                    out.write("\\u00");
+                    out.write(HEX[ch>>4]);
+                    out.write(HEX[ch&0xF]);
+            }
+        }
+        out.write(str, from, str.length()-from);
+        out.write('"');
+    }
+
+    /*-------------------------------------------------[ Events ]---------------------------------------------------*/
+
+    @Override
+    public void startDocument(){
+        depth = 0;
+        nameWritten = false;
+    }
+
+    @Override
+    public void endDocument() throws JSONException{
+        try{
+            out.flush();
+        }catch(IOException ex){
+            throw new JSONException(ex);
+        }
+    }
+
+    @Override
+    public void startObject() throws JSONException{
+        try{
+            separator();
+            out.write('{');
+            push();
+        }catch(IOException ex){
+            throw new JSONException(ex);
+        }
+    }
+
+    @Override
+    public void name(String name) throws JSONException{
+        try{
+            separator();
+            quote(name);
+            out.write(':');
+            nameWritten = true;
+        }catch(IOException ex){
+            throw new JSONException(ex);
+        }
+    }
+
+    @Override
+    public void endObject() throws JSONException{
+        try{
+            --depth;
+            out.write('}');
+        }catch(IOException ex){
+            throw new JSONException(ex);
+        }
+    }
+
+    @Override
+    public void startArray() throws JSONException{
+        try{
+            separator();
+            out.write('[');
+            push();
+        }catch(IOException ex){
+            throw new JSONException(ex);
+        }
+    }
+
+    @Override
+    public void endArray() throws JSONException{
+        try{
+            --depth;
+            out.write(']');
+        }catch(IOException ex){
+            throw new JSONException(ex);
+        }
+    }
+
+    @Override
+    public void string(String value) throws JSONException{
+        value(value);
+    }
+
+    @Override
+    public void number(Number value) throws JSONException{
+        value(value);
+    }
+
+    @Override
+    public void bool(boolean value) throws JSONException{
+        value(value);
+    }
+
+    @Override
+    public void nullValue() throws JSONException{
+        value(null);
+    }
+
+    private void value(Object value) throws JSONException{
+        try{
+            write(value);
+        }catch(IOException ex){
+            throw new JSONException(ex);
+        }
+    }
+}
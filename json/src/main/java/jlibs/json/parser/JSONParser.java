@@ -0,0 +1,262 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package jlibs.json.parser;
+
+import jlibs.json.JSONException;
+import jlibs.json.JSONHandler;
+import jlibs.nbp.Chars;
+import jlibs.nbp.Feeder;
+import jlibs.nbp.NBChannel;
+import jlibs.nbp.NBHandler;
+import jlibs.nbp.NBReaderChannel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigInteger;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Non-blocking JSON parser, which reports events to {@link JSONHandler}.
+ *
+ * Use createFeeder(...) and call {@link Feeder#feed()} whenever more input
+ * is available. feed() returns null once document is completely parsed.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public final class JSONParser implements NBHandler<JSONException>{
+    private final JSONScanner scanner = new JSONScanner(this, JSONScanner.RULE_JSON);
+    private JSONHandler handler;
+
+    public JSONParser(JSONHandler handler){
+        this.handler = handler;
+    }
+
+    public JSONParser(){}
+
+    public JSONHandler getHandler(){
+        return handler;
+    }
+
+    public void setHandler(JSONHandler handler){
+        this.handler = handler;
+    }
+
+    /*-------------------------------------------------[ Feeding ]---------------------------------------------------*/
+
+    private final NBChannel nbChannel = new NBChannel(null);
+    private Feeder feeder;
+
+    private Feeder createFeeder() throws JSONException{
+        scanner.reset();
+        depth = 0;
+        expectName = string = decimal = false;
+        text.setLength(0);
+        if(handler!=null)
+            handler.startDocument();
+        return feeder;
+    }
+
+    /**
+     * @param charset encoding of bytes. if null, it is detected from BOM, defaulting to UTF-8
+     */
+    public Feeder createFeeder(ReadableByteChannel channel, String charset) throws JSONException{
+        nbChannel.setChannel(channel);
+        if(charset==null)
+            nbChannel.setEncoding("UTF-8", true);
+        else
+            nbChannel.setEncoding(charset, false);
+        if(feeder==null)
+            feeder = new Feeder(scanner, nbChannel);
+        else
+            feeder.setChannel(nbChannel);
+        return createFeeder();
+    }
+
+    public Feeder createFeeder(Reader reader) throws JSONException{
+        NBReaderChannel channel = new NBReaderChannel(reader);
+        if(feeder==null)
+            feeder = new Feeder(scanner, channel);
+        else
+            feeder.setChannel(channel);
+        return createFeeder();
+    }
+
+    public void parse(InputStream in, String charset) throws IOException, JSONException{
+        if(createFeeder(Channels.newChannel(in), charset).feed()!=null)
+            throw new IOException("parse(...) shouldn't be used on non-blocking IO");
+    }
+
+    public void parse(Reader reader) throws IOException, JSONException{
+        if(createFeeder(reader).feed()!=null)
+            throw new IOException("parse(...) shouldn't be used on non-blocking IO");
+    }
+
+    /*-------------------------------------------------[ Values ]---------------------------------------------------*/
+
+    private final StringBuilder text = new StringBuilder();
+    private boolean string, decimal;
+
+    void rawString(Chars data){
+        string = true;
+        text.append(data);
+    }
+
+    void escapeChar(Chars data){
+        char ch = data.charAt(0);
+        switch(ch){
+            case 'b':
+                ch = '\b';
+                break;
+            case 'f':
+                ch = '\f';
+                break;
+            case 'n':
+                ch = '\n';
+                break;
+            case 'r':
+                ch = '\r';
+                break;
+            case 't':
+                ch = '\t';
+                break;
+        }
+        text.append(ch);
+    }
+
+    void hexString(Chars data){
+        int ch = 0;
+        for(int i=0; i<4; i++)
+            ch = (ch<<4) | Character.digit(data.charAt(i), 16);
+        text.append((char)ch);
+    }
+
+    void decimal(){
+        decimal = true;
+    }
+
+    void number(Chars data) throws JSONException{
+        Number number;
+        if(decimal)
+            number = Double.valueOf(data.toString());
+        else if(data.length()<=18){
+            int i = 0;
+            boolean negative = data.charAt(0)=='-';
+            if(negative)
+                i++;
+            long value = 0;
+            for(int len=data.length(); i<len; i++)
+                value = value*10 + (data.charAt(i)-'0');
+            number = negative ? -value : value;
+        }else{
+            BigInteger value = new BigInteger(data.toString());
+            number = value.bitLength()<64 ? Long.valueOf(value.longValue()) : value;
+        }
+        decimal = false;
+        if(handler!=null)
+            handler.number(number);
+    }
+
+    void trueValue() throws JSONException{
+        if(handler!=null)
+            handler.bool(true);
+    }
+
+    void falseValue() throws JSONException{
+        if(handler!=null)
+            handler.bool(false);
+    }
+
+    void nullValue() throws JSONException{
+        if(handler!=null)
+            handler.nullValue();
+    }
+
+    /*-------------------------------------------------[ Structure ]---------------------------------------------------*/
+
+    // objects[i] tells whether container at depth i is object or array
+    private boolean objects[] = new boolean[16];
+    private int depth;
+
+    // true after object start or member value, i.e. next string is member name
+    private boolean expectName;
+
+    void valueStart() throws JSONException{
+        if(expectName){
+            expectName = false;
+            if(handler!=null)
+                handler.name(text.toString());
+            text.setLength(0);
+        }
+        string = false;
+    }
+
+    void valueEnd() throws JSONException{
+        if(string){
+            string = false;
+            if(handler!=null)
+                handler.string(text.toString());
+            text.setLength(0);
+        }
+        expectName = depth>0 && objects[depth-1];
+    }
+
+    void objectStart() throws JSONException{
+        push(true);
+        if(handler!=null)
+            handler.startObject();
+    }
+
+    void objectEnd() throws JSONException{
+        --depth;
+        expectName = false;
+        if(handler!=null)
+            handler.endObject();
+    }
+
+    void arrayStart() throws JSONException{
+        push(false);
+        if(handler!=null)
+            handler.startArray();
+    }
+
+    void arrayEnd() throws JSONException{
+        --depth;
+        if(handler!=null)
+            handler.endArray();
+    }
+
+    private void push(boolean object){
+        if(depth==objects.length)
+            objects = Arrays.copyOf(objects, depth*2);
+        objects[depth++] = object;
+        expectName = object;
+    }
+
+    /*-------------------------------------------------[ NBHandler ]---------------------------------------------------*/
+
+    @Override
+    public void onSuccessful() throws JSONException{
+        if(handler!=null)
+            handler.endDocument();
+    }
+
+    @Override
+    public JSONException fatalError(String message){
+        return new JSONException(message, scanner.getLineNumber(), scanner.getColumnNumber());
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.json.parser;
+
+import jlibs.json.JSONBuilder;
+import jlibs.json.JSONException;
+import jlibs.nbp.Feeder;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author Santhosh Kumar Tekuri
+ */
+public class JSONParserTest{
+    /** returns one byte per read, and nothing on alternate reads, like a non-blocking socket */
+    private static class TrickleChannel implements ReadableByteChannel{
+        private final ByteBuffer bytes;
+        private boolean starve;
+        private boolean open = true;
+
+        TrickleChannel(byte bytes[]){
+            this.bytes = ByteBuffer.wrap(bytes);
+        }
+
+        @Override
+        public int read(ByteBuffer dst){
+            if(!bytes.hasRemaining())
+                return -1;
+            starve = !starve;
+            if(starve)
+                return 0;
+            dst.put(bytes.get());
+            return 1;
+        }
+
+        @Override
+        public boolean isOpen(){
+            return open;
+        }
+
+        @Override
+        public void close(){
+            open = false;
+        }
+    }
+
+    private static Object parse(String json) throws Exception{
+        JSONBuilder builder = new JSONBuilder();
+        new JSONParser(builder).parse(new StringReader(json));
+        Object whole = builder.getResult();
+
+        // same document fed byte by byte, with reads returning nothing in between
+        Feeder feeder = new JSONParser(builder).createFeeder(new TrickleChannel(json.getBytes(StandardCharsets.UTF_8)), null);
+        int feeds = 0;
+        while(feeder.feed()!=null)
+            ++feeds;
+        assertTrue(feeds>0 || json.isEmpty());
+        assertEquals(builder.getResult(), whole, json);
+        return whole;
+    }
+
+    private static Map<String, Object> map(Object... entries){
+        Map<String, Object> map = new LinkedHashMap<>();
+        for(int i=0; i<entries.length; i+=2)
+            map.put((String)entries[i], entries[i+1]);
+        return map;
+    }
+
+    @Test
+    public void values() throws Exception{
+        assertEquals(parse("true"), true);
+        assertEquals(parse(" false "), false);
+        assertNull(parse("null"));
+        assertEquals(parse("\"\""), "");
+        assertEquals(parse("0"), 0L);
+        assertEquals(parse("-12"), -12L);
+        assertEquals(parse("123456789012345678"), 123456789012345678L);
+        assertEquals(parse("-9223372036854775808"), Long.MIN_VALUE);
+        assertEquals(parse("12345678901234567890"), new BigInteger("12345678901234567890"));
+        assertEquals(parse("1.5"), 1.5);
+        assertEquals(parse("-0.25e2"), -25.0);
+        assertEquals(parse("1E+2"), 100.0);
+        assertEquals(parse("2e-1"), 0.2);
+    }
+
+    @Test
+    public void strings() throws Exception{
+        assertEquals(parse("\"a\\\"b\\\\c\\/d\""), "a\"b\\c/d");
+        assertEquals(parse("\"\\b\\f\\n\\r\\t\""), "\b\f\n\r\t");
+        assertEquals(parse("\"\\u0041\\u00e9\\u20AC\""), "A\u00e9\u20ac");
+        assertEquals(parse("\"\\ud83d\\ude00\""), "\ud83d\ude00");
+
+        // multi-byte UTF-8 split across reads
+        assertEquals(parse("\"\u00e9\u20ac\ud83d\ude00\""), "\u00e9\u20ac\ud83d\ude00");
+    }
+
+    @Test
+    public void structures() throws Exception{
+        assertEquals(parse("{}"), map());
+        assertEquals(parse("[]"), Collections.emptyList());
+        assertEquals(parse("[1, \"a\", null, [true], {}]"), Arrays.asList(1L, "a", null, Collections.singletonList(true), map()));
+        assertEquals(
+            parse("{ \"a\" : 1, \"b\":{\"c\":[\"d\", {\"e\":null}]}, \"\":\"empty\" }"),
+            map("a", 1L, "b", map("c", Arrays.asList("d", map("e", null))), "", "empty")
+        );
+
+        // member names are not mistaken for values after nested containers
+        assertEquals(parse("{\"a\":[],\"b\":{},\"c\":\"x\"}"), map("a", Collections.emptyList(), "b", map(), "c", "x"));
+
+        StringBuilder deep = new StringBuilder();
+        for(int i=0; i<100; i++)
+            deep.append('[');
+        for(int i=0; i<100; i++)
+            deep.append(']');
+        Object result = parse(deep.toString());
+        for(int i=0; i<99; i++)
+            result = ((List<?>)result).get(0);
+        assertEquals(result, Collections.emptyList());
+    }
+
+    private static void assertInvalid(String json){
+        try{
+            new JSONParser(new JSONBuilder()).parse(new StringReader(json));
+            fail("accepted: "+json);
+        }catch(IOException | JSONException ex){
+            // expected
+        }
+    }
+
+    @Test
+    public void invalid(){
+        String documents[] = {
+            "", "tru", "nul", "01", "-", "1.", ".5", "1e", "+1", "\"abc", "\"\\x\"", "\"\\u12\"",
+            "\"tab\there\"", "[1,]", "[,1]", "[1 2]", "{\"a\"}", "{\"a\":}", "{a:1}", "{\"a\":1,}",
+            "{\"a\":1", "[", "]", "1 2", "[1]]"
+        };
+        for(String json: documents)
+            assertInvalid(json);
+    }
+
+    @Test
+    public void errorLocation() throws JSONException{
+        try{
+            new JSONParser(new JSONBuilder()).parse(new StringReader("{\n  \"a\": tru\n}"));
+            fail("accepted");
+        }catch(IOException ex){
+            // like AsyncXMLReader, syntax errors reach feeder wrapped in IOException
+            assertTrue(ex.getCause() instanceof JSONException);
+            JSONException cause = (JSONException)ex.getCause();
+            assertEquals(cause.getLineNumber(), 2);
+            assertTrue(cause.getColumnNumber()>0);
+        }
+    }
+}
@@ -38,5 +38,17 @@ public class Connection<T extends SelectableChannel> extends NBStream<T> impleme
     }
 
     Connection poolPrev, poolNext;
-    String poolKey;
+    long pooledAt;
+
+    // idle connections of reactor's connection pool across all keys, in order of pooledAt
+    Connection idlePrev, idleNext;
+
+    /** entry in reactor's connection pool, where this connection is counted as open */
+    ConnectionPool.Entry poolEntry;
+
+    @Override
+    void closing(){
+        if(poolEntry!=null)
+            reactor.connectionPool.closed(this);
+    }
 }
@@ -15,21 +15,47 @@
 
 package jlibs.nio;
 
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import static jlibs.nio.Debugger.DEBUG;
 import static jlibs.nio.Debugger.println;
 
 /**
+ * Idle connections of a reactor, keyed by endpoint.
+ *
+ * Connections opened using getConnection are counted per key until they are
+ * closed. When a key reaches maxTotal open connections, further requests wait
+ * for a connection to be released to the pool or closed.
+ *
  * @author Santhosh Kumar Tekuri
  */
 public class ConnectionPool{
     private final Reactor reactor;
     public long timeout = 60*1000;
 
+    /** max idle connections per key. least recently used connection is closed beyond this */
+    public int maxIdle = Defaults.MAX_IDLE;
+
+    /** max open connections per key, including idle ones. 0 means unlimited */
+    public int maxTotal = Defaults.MAX_TOTAL;
+
+    /** max time in milliseconds, a request waits for connection when key is at maxTotal */
+    public long maxWait = Defaults.MAX_WAIT;
+
     Map<String, Entry> entries = new HashMap<>();
     private int count;
+    private int waiting;
     ConnectionPool(Reactor reactor){
         this.reactor = reactor;
     }
@@ -38,6 +64,18 @@ public class ConnectionPool{
         return count;
     }
 
+    /** number of requests waiting for connection */
+    public int waiting(){
+        return waiting;
+    }
+
+    private Entry entry(String key){
+        Entry entry = entries.get(key);
+        if(entry==null)
+            entries.put(key, entry=new Entry(key));
+        return entry;
+    }
+
     public void add(String key, Connection connection){
         add(key, connection, timeout);
     }
@@ -52,10 +90,22 @@ public class ConnectionPool{
                 timeout = 60*1000;
         }
 
-        Entry entry = entries.get(key);
-        if(entry==null)
-            entries.put(key, entry=new Entry(key));
+        Entry entry = entry(key);
+        if(connection.poolEntry!=entry){
+            if(connection.poolEntry!=null)
+                --connection.poolEntry.open;
+            connection.poolEntry = entry;
+            ++entry.open;
+        }
         entry.add(connection, timeout);
+        if(entry.waiters.isEmpty()){
+            int maxIdle = entry.maxIdle<0 ? this.maxIdle : entry.maxIdle;
+            while(entry.count>maxIdle)
+                entry.evict();
+            if(Defaults.MAX_POOLED>0)
+                trim();
+        }else
+            entry.serveWaitersLater();
     }
 
     public Connection remove(String key){
@@ -65,12 +115,178 @@ public class ConnectionPool{
 
     public void remove(Connection connection){
         if(connection.poolPrev!=null && connection.poolNext!=null)
-            entries.get(connection.poolKey).remove(connection);
+            connection.poolEntry.remove(connection);
     }
 
+    /*-------------------------------------------------[ Global LRU ]---------------------------------------------------*/
+
+    // idle connections of all keys, oldest first
+    private Connection oldest, newest;
+
+    // pooledAt of oldest, read by other reactors to find globally least recently used connection
+    private volatile long oldestAt = Long.MAX_VALUE;
+
+    private void idleAdded(Connection con){
+        con.idlePrev = newest;
+        if(newest==null){
+            oldest = con;
+            oldestAt = con.pooledAt;
+        }else
+            newest.idleNext = con;
+        newest = con;
+    }
+
+    private void idleRemoved(Connection con){
+        if(con.idlePrev==null){
+            oldest = con.idleNext;
+            oldestAt = oldest==null ? Long.MAX_VALUE : oldest.pooledAt;
+        }else
+            con.idlePrev.idleNext = con.idleNext;
+        if(con.idleNext==null)
+            newest = con.idlePrev;
+        else
+            con.idleNext.idlePrev = con.idlePrev;
+        con.idlePrev = con.idleNext = null;
+    }
+
+    /**
+     * closes least recently used idle connections across reactors, till
+     * pooled connections are within Defaults.MAX_POOLED. connections of
+     * other reactors are evicted by their own reactor using invokeLater
+     */
+    private void trim(){
+        while(Defaults.MAX_POOLED>0 && POOLED.get()>Defaults.MAX_POOLED){
+            ConnectionPool lru = lru();
+            if(lru==null)
+                return;
+            if(lru==this)
+                oldest.poolEntry.evict(oldest);
+            else{
+                lru.trimLater();
+                return;
+            }
+        }
+    }
+
+    private final AtomicBoolean trimScheduled = new AtomicBoolean();
+    private void trimLater(){
+        if(trimScheduled.compareAndSet(false, true)){
+            reactor.invokeLater(() -> {
+                trimScheduled.set(false);
+                trim();
+            });
+        }
+    }
+
+    /** pool holding globally least recently used idle connection */
+    private ConnectionPool lru(){
+        ConnectionPool lru = oldest==null ? null : this;
+        List<Reactor> reactors = Reactors.get();
+        if(reactors!=null){
+            for(Reactor reactor: reactors){
+                ConnectionPool pool = reactor.connectionPool;
+                if(pool.oldestAt!=Long.MAX_VALUE && (lru==null || pool.oldestAt<lru.oldestAt))
+                    lru = pool;
+            }
+        }
+        return lru;
+    }
+
+    /*-------------------------------------------------[ Get Connection ]---------------------------------------------------*/
+
+    /**
+     * gives live idle connection from pool, or opens new one. if endpoint is at
+     * maxTotal open connections, waits for one to be released or closed
+     */
+    public void getConnection(TCPEndpoint endpoint, Consumer<Result<Connection>> listener, Proxy proxy){
+        Entry entry = entry(endpoint.toString());
+        entry.limits(endpoint);
+        Connection con = entry.removeLive();
+        if(con!=null)
+            listener.accept(new Result<>(con));
+        else if(entry.isFull())
+            entry.wait(endpoint, listener, proxy);
+        else
+            entry.connect(endpoint, listener, proxy);
+    }
+
+    /** opens connections to endpoint, till given number of them are idle in this pool */
+    public void warmup(TCPEndpoint endpoint, int idle){
+        Entry entry = entry(endpoint.toString());
+        entry.limits(endpoint);
+        for(int i=entry.count+entry.warming; i<idle && !entry.isFull(); i++){
+            ++entry.warming;
+            entry.connect(endpoint, result -> {
+                --entry.warming;
+                try{
+                    add(entry.key, result.get());
+                }catch(Throwable thr){
+                    reactor.handleException(thr);
+                }
+            }, null);
+        }
+    }
+
+    /** warms up pool of each reactor with given number of idle connections to endpoint */
+    public static void warmupAll(TCPEndpoint endpoint, int idlePerReactor){
+        for(Reactor reactor: Reactors.get())
+            reactor.invokeLater(() -> reactor.connectionPool.warmup(endpoint, idlePerReactor));
+    }
+
+    // called when connection opened by this pool is closed
+    void closed(Connection con){
+        Entry entry = con.poolEntry;
+        con.poolEntry = null;
+        --entry.open;
+        if(!entry.waiters.isEmpty())
+            entry.serveWaitersLater();
+    }
+
+    private final ByteBuffer probe = ByteBuffer.allocateDirect(1);
+
+    /** returns false if peer has closed the idle connection */
+    private boolean isAlive(Connection con){
+        if(!con.isOpen())
+            return false;
+        int read;
+        try{
+            read = con.in().read(probe);
+        }catch(Throwable ignore){
+            read = -1;
+        }
+        probe.clear();
+        // idle connection is not expected to receive data
+        return read==0;
+    }
+
+    private static final AtomicInteger POOLED = new AtomicInteger();
+
+    /** number of idle connections in pools of all reactors */
+    public static int pooled(){
+        return POOLED.get();
+    }
+
+    /** number of idle connections to endpoint in this pool */
+    public int idle(TCPEndpoint endpoint){
+        Entry entry = entries.get(endpoint.toString());
+        return entry==null ? 0 : entry.count;
+    }
+
+    /** number of open connections to endpoint, opened using getConnection, including idle ones */
+    public int open(TCPEndpoint endpoint){
+        Entry entry = entries.get(endpoint.toString());
+        return entry==null ? 0 : entry.open;
+    }
+
+    /*-------------------------------------------------[ Entry ]---------------------------------------------------*/
+
     public class Entry{
         public final String key;
         int count;
+        int open;
+        int warming;
+        int maxIdle = -1;
+        int maxTotal = -1;
 
         public Entry(String key){
             this.key = key;
@@ -78,11 +294,20 @@ public class ConnectionPool{
 
         private Connection head;
 
+        void limits(TCPEndpoint endpoint){
+            maxIdle = endpoint.maxIdle;
+            maxTotal = endpoint.maxTotal;
+        }
+
+        boolean isFull(){
+            int max = maxTotal<0 ? ConnectionPool.this.maxTotal : maxTotal;
+            return max>0 && open>=max;
+        }
+
         public void add(Connection con, long timeout){
             if(con.poolPrev==null && con.poolNext==null){
                 if(DEBUG)
                     println("connectionPool.add("+con+", "+timeout+")");
-                con.poolKey = key;
 //                con.addingToPool();
                 if(head==null){
                     con.poolPrev = con;
@@ -95,9 +320,12 @@ public class ConnectionPool{
                     tail.poolNext = con;
                 }
                 head = con;
+                con.pooledAt = System.currentTimeMillis();
+                idleAdded(con);
                 reactor.startTimer(con, timeout);
                 ++count;
                 ++ConnectionPool.this.count;
+                POOLED.incrementAndGet();
                 con.workingFor = con;
                 con.executionID = null;
             }
@@ -112,11 +340,35 @@ public class ConnectionPool{
             return connection;
         }
 
+        /** removes most recently used connection, closing dead ones on the way */
+        Connection removeLive(){
+            Connection con;
+            while((con=remove())!=null){
+                if(isAlive(con))
+                    return con;
+                if(DEBUG)
+                    println(con+".isBroken=true");
+                con.close();
+            }
+            return null;
+        }
+
+        /** closes least recently used connection */
+        void evict(){
+            evict(head.poolPrev);
+        }
+
+        void evict(Connection con){
+            if(DEBUG)
+                println("connectionPool.evict("+con+")");
+            remove(con);
+            con.close();
+        }
+
         void remove(Connection con){
             if(DEBUG)
                 println("connectionPool.remove("+con+")");
-            if(con.heapIndex!=-1)
-                reactor.stopTimer(con);
+            reactor.stopTimer(con);
 //            con.initWorkingFor();
             if(con==head){
                 if(head.poolNext==head && head.poolPrev==head){
@@ -136,13 +388,134 @@ public class ConnectionPool{
 
             con.poolPrev = null;
             con.poolNext = null;
+            idleRemoved(con);
             --count;
             --ConnectionPool.this.count;
+            POOLED.decrementAndGet();
             con.taskCompleted();
             con.workingFor = reactor.getExecutionOwner();
             if(con.workingFor==null)
                 con.workingFor = con;
             con.makeActive();
         }
+
+        void connect(TCPEndpoint endpoint, Consumer<Result<Connection>> listener, Proxy proxy){
+            ++open;
+            endpoint.newConnection(result -> {
+                Connection con = null;
+                try{
+                    con = result.get();
+                }catch(Throwable thr){
+                    // ignore
+                }
+                if(con==null){
+                    --open;
+                    if(!waiters.isEmpty())
+                        serveWaitersLater();
+                }else
+                    con.poolEntry = this;
+                listener.accept(result);
+            }, proxy);
+        }
+
+        /*-------------------------------------------------[ Waiters ]---------------------------------------------------*/
+
+        final Deque<Waiter> waiters = new ArrayDeque<>();
+
+        void wait(TCPEndpoint endpoint, Consumer<Result<Connection>> listener, Proxy proxy){
+            if(DEBUG)
+                println("connectionPool.wait("+key+")");
+            NBChannel active = reactor.activeChannel;
+            Waiter waiter;
+            try{
+                waiter = new Waiter(this, endpoint, listener, proxy);
+            }catch(IOException ex){
+                throw new AssertionError(ex); // never thrown, as there is no selectable
+            }
+            reactor.activeChannel = active;
+            waiters.add(waiter);
+            ++waiting;
+            reactor.startTimer(waiter, maxWait);
+        }
+
+        private boolean serveWaitersScheduled;
+        void serveWaitersLater(){
+            if(!serveWaitersScheduled){
+                serveWaitersScheduled = true;
+                reactor.invokeLater(this::serveWaiters);
+            }
+        }
+
+        private void serveWaiters(){
+            serveWaitersScheduled = false;
+            while(!waiters.isEmpty()){
+                Connection con = removeLive();
+                if(con==null && isFull())
+                    break;
+                Waiter waiter = waiters.poll();
+                --waiting;
+                reactor.stopTimer(waiter);
+                Consumer<Result<Connection>> listener = waiter.listener;
+                waiter.listener = null;
+                if(con==null)
+                    connect(waiter.endpoint, listener, waiter.proxy);
+                else
+                    listener.accept(new Result<>(con));
+            }
+        }
+    }
+
+    /** getConnection request waiting for connection. extends NBChannel to use reactor's timer */
+    private final class Waiter extends NBChannel<SelectableChannel>{
+        private final Entry entry;
+        private final TCPEndpoint endpoint;
+        private final Proxy proxy;
+        private Consumer<Result<Connection>> listener;
+
+        private Waiter(Entry entry, TCPEndpoint endpoint, Consumer<Result<Connection>> listener, Proxy proxy) throws IOException{
+            super(null);
+            this.entry = entry;
+            this.endpoint = endpoint;
+            this.listener = listener;
+            this.proxy = proxy;
+            uniqueID = "W"+endpoint;
+        }
+
+        @Override
+        public boolean isOpen(){
+            return listener!=null;
+        }
+
+        @Override
+        public void shutdown(){
+            listener = null;
+        }
+
+        @Override
+        protected void process(boolean timeout){
+            if(listener!=null){
+                if(DEBUG)
+                    println("connectionPool.waitTimeout("+entry.key+")");
+                entry.waiters.remove(this);
+                --waiting;
+                Consumer<Result<Connection>> listener = this.listener;
+                this.listener = null;
+                listener.accept(new Result<>(new SocketTimeoutException("timed out waiting for connection to "+endpoint)));
+            }
+        }
+    }
+
+    /*-------------------------------------------------[ Options ]---------------------------------------------------*/
+
+    public static class Defaults{
+        public static int MAX_IDLE = Integer.MAX_VALUE;
+        public static int MAX_TOTAL = 0;
+        public static long MAX_WAIT = 30*1000;
+
+        /**
+         * max idle connections in pools of all reactors. 0 means unlimited.
+         * beyond this, globally least recently used idle connection is closed
+         */
+        public static int MAX_POOLED = 0;
     }
 }
@@ -0,0 +1,570 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+package jlibs.nio;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * Resolves host names without blocking reactor, by sending DNS queries over UDP
+ * to NAMESERVERS. Each reactor has its own resolver, see Reactor.dnsResolver
+ * <p>
+ * This is opt-in, see ENABLED. Otherwise, and for names without dot or when no
+ * nameserver is known, InetAddress is used, which blocks but honors search domains,
+ * nsswitch etc. ip literals and names in HOSTS are answered without query.
+ * <p>
+ * Answers are cached for their TTL, bounded by MIN_TTL and MAX_TTL, and failures
+ * for NEGATIVE_TTL. Concurrent lookups of same host share one query. Like InetAddress,
+ * IPv4 addresses are used unless java.net.preferIPv6Addresses is true; the other
+ * family is used only if there is no address of preferred family. Each lookup of
+ * a host with many addresses gets the next one, round-robin.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public final class DNSResolver{
+    private static final int TYPE_A = 1;
+    private static final int TYPE_AAAA = 28;
+    private static final int CLASS_IN = 1;
+    private static final int RCODE_NXDOMAIN = 3;
+
+    private final Reactor reactor;
+    DNSResolver(Reactor reactor){
+        this.reactor = reactor;
+    }
+
+    public void resolve(String host, Consumer<Result<InetAddress>> listener){
+        InetAddress address;
+        try{
+            address = lookupLocal(host);
+        }catch(UnknownHostException ex){
+            listener.accept(new Result<>(ex));
+            return;
+        }
+        if(address!=null){
+            listener.accept(new Result<>(address));
+            return;
+        }
+
+        String name = host.toLowerCase(Locale.ENGLISH);
+        if(name.endsWith("."))
+            name = name.substring(0, name.length()-1);
+        CacheEntry entry = cache.get(name);
+        if(entry!=null && entry.waiters==null && entry.expiresAt>System.currentTimeMillis()){
+            entry.deliver(listener);
+            return;
+        }
+        if(entry==null){
+            entry = new CacheEntry(name);
+            cache.put(name, entry);
+        }
+        if(entry.waiters==null){
+            entry.waiters = new ArrayList<>();
+            entry.waiters.add(listener);
+            entry.start();
+        }else
+            entry.waiters.add(listener);
+    }
+
+    private static InetAddress lookupLocal(String host) throws UnknownHostException{
+        if(isLiteral(host))
+            return InetAddress.getByName(host);
+        InetAddress address = HOSTS.get(host.toLowerCase(Locale.ENGLISH));
+        if(address!=null)
+            return address;
+        if(host.equalsIgnoreCase("localhost"))
+            return InetAddress.getLoopbackAddress();
+        if(!ENABLED || NAMESERVERS.isEmpty() || host.indexOf('.')==-1)
+            return InetAddress.getByName(host);
+        return null;
+    }
+
+    private static boolean isLiteral(String host){
+        if(host.indexOf(':')!=-1)
+            return true;
+        int dots = 0;
+        for(int i=0; i<host.length(); i++){
+            char ch = host.charAt(i);
+            if(ch=='.')
+                ++dots;
+            else if(ch<'0' || ch>'9')
+                return false;
+        }
+        return dots==3;
+    }
+
+    /*-------------------------------------------------[ Cache ]---------------------------------------------------*/
+
+    private final Map<String, CacheEntry> cache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest){
+            return size()>CACHE_SIZE && eldest.getValue().waiters==null;
+        }
+    };
+
+    public int cacheSize(){
+        return cache.size();
+    }
+
+    private final class CacheEntry{
+        private final String host;
+        private InetAddress addresses[];
+        private UnknownHostException error;
+        private long expiresAt;
+        private int next;
+
+        // non-null while queries are in flight
+        private List<Consumer<Result<InetAddress>>> waiters;
+        private int pending;
+        private List<InetAddress> found;
+        private long ttl;
+
+        private CacheEntry(String host){
+            this.host = host;
+        }
+
+        private void start(){
+            found = new ArrayList<>();
+            ttl = Long.MAX_VALUE;
+            error = null;
+            pending = QUERY_AAAA ? 2 : 1;
+            new Query(this, TYPE_A).send();
+            if(QUERY_AAAA)
+                new Query(this, TYPE_AAAA).send();
+        }
+
+        private void answered(List<InetAddress> addresses, long ttl){
+            found.addAll(addresses);
+            this.ttl = Math.min(this.ttl, ttl);
+            if(--pending==0)
+                finished();
+        }
+
+        private void failed(UnknownHostException ex){
+            if(error==null)
+                error = ex;
+            if(--pending==0)
+                finished();
+        }
+
+        private void finished(){
+            long ttl;
+            if(found.isEmpty()){
+                addresses = null;
+                if(error==null)
+                    error = new UnknownHostException(host);
+                ttl = NEGATIVE_TTL;
+            }else{
+                List<InetAddress> preferred = new ArrayList<>(found.size());
+                for(InetAddress address: found){
+                    if((address instanceof Inet6Address)==PREFER_IPV6)
+                        preferred.add(address);
+                }
+                if(!preferred.isEmpty())
+                    found = preferred;
+                addresses = found.toArray(new InetAddress[found.size()]);
+                next = 0;
+                error = null;
+                ttl = Math.max(MIN_TTL, Math.min(this.ttl, MAX_TTL));
+            }
+            found = null;
+            expiresAt = System.currentTimeMillis()+ttl*1000;
+            List<Consumer<Result<InetAddress>>> waiters = this.waiters;
+            this.waiters = null;
+            for(Consumer<Result<InetAddress>> waiter: waiters){
+                try{
+                    deliver(waiter);
+                }catch(Throwable thr){
+                    reactor.handleException(thr);
+                }
+            }
+        }
+
+        private void deliver(Consumer<Result<InetAddress>> listener){
+            if(addresses==null)
+                listener.accept(new Result<>(error));
+            else{
+                InetAddress address = addresses[next];
+                next = (next+1)%addresses.length;
+                listener.accept(new Result<>(address));
+            }
+        }
+    }
+
+    /*-------------------------------------------------[ Queries ]---------------------------------------------------*/
+
+    private final Map<Integer, Query> inflight = new HashMap<>();
+    private final ByteBuffer buffer = ByteBuffer.allocate(512);
+
+    private final class Query{
+        private final CacheEntry entry;
+        private final int type;
+        private int id;
+        private int attempt;
+        private Nameserver nameserver;
+        private long deadline;
+
+        private Query(CacheEntry entry, int type){
+            this.entry = entry;
+            this.type = type;
+        }
+
+        private void send(){
+            int total = NAMESERVERS.size()*Math.max(ATTEMPTS, 1);
+            while(attempt<total){
+                nameserver = nameserver(attempt%NAMESERVERS.size());
+                ++attempt;
+                do{
+                    id = ThreadLocalRandom.current().nextInt(0x10000);
+                }while(inflight.containsKey(id));
+                try{
+                    encode();
+                    nameserver.send(buffer);
+                    deadline = System.currentTimeMillis()+TIMEOUT;
+                    inflight.put(id, this);
+                    return;
+                }catch(UnknownHostException ex){
+                    entry.failed(ex);
+                    return;
+                }catch(IOException ex){
+                    nameserver.failed();
+                }
+            }
+            entry.failed(new UnknownHostException(entry.host+": no response from nameservers"));
+        }
+
+        private void encode() throws UnknownHostException{
+            buffer.clear();
+            buffer.putShort((short)id);
+            buffer.putShort((short)0x0100); // recursion desired
+            buffer.putShort((short)1);
+            buffer.putShort((short)0);
+            buffer.putShort((short)0);
+            buffer.putShort((short)0);
+            String host = entry.host;
+            if(host.isEmpty() || host.length()>253)
+                throw new UnknownHostException(host);
+            int begin = 0;
+            while(begin<=host.length()){
+                int end = host.indexOf('.', begin);
+                if(end==-1)
+                    end = host.length();
+                int length = end-begin;
+                if(length==0 || length>63)
+                    throw new UnknownHostException(host);
+                buffer.put((byte)length);
+                for(int i=begin; i<end; i++)
+                    buffer.put((byte)host.charAt(i));
+                begin = end+1;
+            }
+            buffer.put((byte)0);
+            buffer.putShort((short)type);
+            buffer.putShort((short)CLASS_IN);
+            buffer.flip();
+        }
+
+        /** buffer has the response */
+        private void decode(int flags){
+            int rcode = flags&0x0F;
+            if(rcode==RCODE_NXDOMAIN){
+                entry.failed(new UnknownHostException(entry.host));
+                return;
+            }
+            if(rcode!=0){
+                send(); // try next nameserver
+                return;
+            }
+            List<InetAddress> addresses = new ArrayList<>();
+            long ttl = Long.MAX_VALUE;
+            try{
+                int questions = buffer.getShort()&0xFFFF;
+                int answers = buffer.getShort()&0xFFFF;
+                buffer.getShort(); // authority
+                buffer.getShort(); // additional
+                for(int i=0; i<questions; i++){
+                    skipName();
+                    buffer.position(buffer.position()+4);
+                }
+                for(int i=0; i<answers; i++){
+                    skipName();
+                    int type = buffer.getShort()&0xFFFF;
+                    int clazz = buffer.getShort()&0xFFFF;
+                    long recordTTL = buffer.getInt()&0xFFFFFFFFL;
+                    int length = buffer.getShort()&0xFFFF;
+                    if(clazz==CLASS_IN && type==this.type && (length==4 || length==16)){
+                        byte bytes[] = new byte[length];
+                        buffer.get(bytes);
+                        addresses.add(InetAddress.getByAddress(entry.host, bytes));
+                        ttl = Math.min(ttl, recordTTL);
+                    }else
+                        buffer.position(buffer.position()+length);
+                }
+            }catch(BufferUnderflowException | IllegalArgumentException | UnknownHostException ex){
+                // truncated or malformed. use what is read so far
+            }
+            entry.answered(addresses, ttl);
+        }
+
+        private void skipName(){
+            while(true){
+                int length = buffer.get()&0xFF;
+                if(length==0)
+                    return;
+                if((length&0xC0)==0xC0){ // compression pointer
+                    buffer.get();
+                    return;
+                }
+                buffer.position(buffer.position()+length);
+            }
+        }
+    }
+
+    /** retries queries which did not get response within TIMEOUT */
+    private void expire(){
+        if(inflight.isEmpty())
+            return;
+        long now = System.currentTimeMillis();
+        List<Query> expired = null;
+        for(Query query: inflight.values()){
+            if(query.deadline<=now){
+                if(expired==null)
+                    expired = new ArrayList<>();
+                expired.add(query);
+            }
+        }
+        if(expired!=null){
+            for(Query query: expired){
+                inflight.remove(query.id);
+                query.send();
+            }
+        }
+    }
+
+    /*-------------------------------------------------[ Nameservers ]---------------------------------------------------*/
+
+    private Nameserver nameservers[] = new Nameserver[0];
+
+    private Nameserver nameserver(int index){
+        if(index>=nameservers.length)
+            nameservers = Arrays.copyOf(nameservers, NAMESERVERS.size());
+        if(nameservers[index]==null)
+            nameservers[index] = new Nameserver(NAMESERVERS.get(index));
+        return nameservers[index];
+    }
+
+    private final class Nameserver implements Input.Listener{
+        private final InetSocketAddress address;
+        private UDPConnection con;
+
+        private Nameserver(InetSocketAddress address){
+            this.address = address;
+        }
+
+        private void send(ByteBuffer query) throws IOException{
+            if(con==null || !con.isOpen()){
+                NBChannel active = reactor.activeChannel;
+                DatagramChannel channel = DatagramChannel.open();
+                try{
+                    channel.connect(address);
+                    con = new UDPConnection(channel){
+                        @Override
+                        public long getTimeout(){
+                            return TIMEOUT;
+                        }
+                    };
+                }catch(IOException ex){
+                    channel.close();
+                    throw ex;
+                }finally{
+                    reactor.activeChannel = active;
+                }
+                con.in().setInputListener(this);
+            }
+            // datagram is either sent fully or dropped, in which case it is retried on timeout
+            con.out().write(query);
+            con.in().addReadInterest();
+        }
+
+        @Override
+        public void process(Input in){
+            try{
+                while(true){
+                    buffer.clear();
+                    int read = in.read(buffer);
+                    if(read<=0)
+                        break;
+                    buffer.flip();
+                    if(buffer.remaining()<12)
+                        continue;
+                    int id = buffer.getShort()&0xFFFF;
+                    int flags = buffer.getShort()&0xFFFF;
+                    Query query = inflight.get(id);
+                    if(query==null || query.nameserver!=this || (flags&0x8000)==0)
+                        continue;
+                    inflight.remove(id);
+                    query.decode(flags);
+                }
+            }catch(IOException ex){
+                // SocketTimeoutException means no response since TIMEOUT after last query sent,
+                // or PortUnreachableException
+                failed();
+            }
+            expire();
+            if(con!=null && con.isOpen() && waiting()){
+                in.addReadInterest();
+                reactor.startTimer(con, TIMEOUT);
+            }
+        }
+
+        private boolean waiting(){
+            for(Query query: inflight.values()){
+                if(query.nameserver==this)
+                    return true;
+            }
+            return false;
+        }
+
+        private void close(){
+            if(con!=null){
+                reactor.stopTimer(con);
+                try{
+                    con.in().close();
+                }catch(IOException ex){
+                    reactor.handleException(ex);
+                }
+                con = null;
+            }
+        }
+
+        /** closes connection and sends its pending queries to next nameserver */
+        private void failed(){
+            close();
+            List<Query> queries = new ArrayList<>();
+            for(Query query: inflight.values()){
+                if(query.nameserver==this)
+                    queries.add(query);
+            }
+            for(Query query: queries){
+                inflight.remove(query.id);
+                query.send();
+            }
+        }
+    }
+
+    void close(){
+        for(Nameserver nameserver: nameservers){
+            if(nameserver!=null)
+                nameserver.close();
+        }
+    }
+
+    /*-------------------------------------------------[ Options ]---------------------------------------------------*/
+
+    /** when false, lookups are delegated to InetAddress, which blocks reactor */
+    public static boolean ENABLED = false;
+
+    /** nameservers queried in order. defaults to those in /etc/resolv.conf */
+    public static List<InetSocketAddress> NAMESERVERS = readResolvConf(new File("/etc/resolv.conf"));
+
+    /** milliseconds to wait for response, before trying next nameserver */
+    public static long TIMEOUT = 2000;
+
+    /** number of times each nameserver is tried */
+    public static int ATTEMPTS = 2;
+
+    /** whether to query IPv6 addresses along with IPv4 */
+    public static boolean QUERY_AAAA = !Boolean.getBoolean("java.net.preferIPv4Stack");
+
+    /** whether IPv6 addresses are used in preference to IPv4 */
+    public static boolean PREFER_IPV6 = Boolean.getBoolean("java.net.preferIPv6Addresses");
+
+    /** bounds in seconds applied to TTL of answers */
+    public static long MIN_TTL = 0;
+    public static long MAX_TTL = 60*60;
+
+    /** seconds for which failed lookups are cached */
+    public static long NEGATIVE_TTL = 10;
+
+    /** max number of hosts cached per reactor */
+    public static int CACHE_SIZE = 1000;
+
+    /** names answered without query, read from /etc/hosts */
+    public static Map<String, InetAddress> HOSTS = readHostsFile(new File("/etc/hosts"));
+
+    public static List<InetSocketAddress> readResolvConf(File file){
+        List<InetSocketAddress> list = new ArrayList<>();
+        if(file.exists()){
+            try(BufferedReader reader = new BufferedReader(new FileReader(file))){
+                String line;
+                while((line=reader.readLine())!=null){
+                    StringTokenizer tokens = new StringTokenizer(line);
+                    if(tokens.countTokens()>=2 && tokens.nextToken().equals("nameserver")){
+                        String ip = tokens.nextToken();
+                        if(isLiteral(ip))
+                            list.add(new InetSocketAddress(InetAddress.getByName(ip), 53));
+                    }
+                }
+            }catch(IOException ex){
+                // usually runs in static initializer, before any reactor exists
+                if(Debugger.DEBUG)
+                    Debugger.printStackTrace(ex);
+            }
+        }
+        return list;
+    }
+
+    public static Map<String, InetAddress> readHostsFile(File file){
+        Map<String, InetAddress> map = new HashMap<>();
+        if(file.exists()){
+            try(BufferedReader reader = new BufferedReader(new FileReader(file))){
+                String line;
+                while((line=reader.readLine())!=null){
+                    int hash = line.indexOf('#');
+                    if(hash!=-1)
+                        line = line.substring(0, hash);
+                    StringTokenizer tokens = new StringTokenizer(line);
+                    if(tokens.countTokens()<2)
+                        continue;
+                    String ip = tokens.nextToken();
+                    if(!isLiteral(ip))
+                        continue;
+                    InetAddress address = InetAddress.getByName(ip);
+                    while(tokens.hasMoreTokens()){
+                        String name = tokens.nextToken().toLowerCase(Locale.ENGLISH);
+                        if(!map.containsKey(name))
+                            map.put(name, InetAddress.getByAddress(name, address.getAddress()));
+                    }
+                }
+            }catch(IOException ex){
+                // usually runs in static initializer, before any reactor exists
+                if(Debugger.DEBUG)
+                    Debugger.printStackTrace(ex);
+            }
+        }
+        return map;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+package jlibs.nio;
+
+import jlibs.nio.util.Histogram;
+
+import java.util.Map;
+
+/**
+ * Time spent by reactor thread in each phase of its loop.
+ *
+ * Counters are updated only by reactor thread and read without
+ * synchronization, so values seen through MXBean may be slightly stale.
+ * busy time is from select returning till next select, in microseconds.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+final class LoopStats implements Management.ReactorLoopMXBean{
+    long iterations;
+    long selectNanos;
+    long wakeupNanos;
+    long taskNanos;
+    long ioNanos;
+    long timeoutNanos;
+    long tasks;
+    int maxTasks;
+    long selectedKeys;
+    int maxSelectedKeys;
+    final Histogram busy = new Histogram();
+
+    volatile long slowHandlerNanos = Reactor.SLOW_HANDLER_THRESHOLD*1000000L;
+    private volatile long slowHandlers;
+    private volatile String lastSlowHandler;
+
+    void tasksRun(int count){
+        tasks += count;
+        if(count>maxTasks)
+            maxTasks = count;
+    }
+
+    void keysSelected(int count){
+        selectedKeys += count;
+        if(count>maxSelectedKeys)
+            maxSelectedKeys = count;
+    }
+
+    void slowHandler(String executionID, long nanos){
+        ++slowHandlers;
+        lastSlowHandler = executionID+" took "+nanos/1000000+" ms";
+        if(Debugger.DEBUG)
+            Debugger.println("slowHandler: "+lastSlowHandler);
+    }
+
+    private static double millis(long nanos){
+        return nanos/1000000d;
+    }
+
+    @Override
+    public long getIterations(){
+        return iterations;
+    }
+
+    @Override
+    public Map<String, Double> getBusyTime(){
+        return busy.snapshot().summary(1000);
+    }
+
+    @Override
+    public double getSelectMillis(){
+        return millis(selectNanos);
+    }
+
+    @Override
+    public double getWakeupMillis(){
+        return millis(wakeupNanos);
+    }
+
+    @Override
+    public double getTaskMillis(){
+        return millis(taskNanos);
+    }
+
+    @Override
+    public double getIOMillis(){
+        return millis(ioNanos);
+    }
+
+    @Override
+    public double getTimeoutMillis(){
+        return millis(timeoutNanos);
+    }
+
+    @Override
+    public long getTasks(){
+        return tasks;
+    }
+
+    @Override
+    public int getMaxTasksPerIteration(){
+        return maxTasks;
+    }
+
+    @Override
+    public long getSelectedKeys(){
+        return selectedKeys;
+    }
+
+    @Override
+    public int getMaxSelectedKeysPerIteration(){
+        return maxSelectedKeys;
+    }
+
+    @Override
+    public long getSlowHandlers(){
+        return slowHandlers;
+    }
+
+    @Override
+    public String getLastSlowHandler(){
+        return lastSlowHandler;
+    }
+
+    @Override
+    public long getSlowHandlerThreshold(){
+        return slowHandlerNanos/1000000L;
+    }
+
+    @Override
+    public void setSlowHandlerThreshold(long millis){
+        slowHandlerNanos = Math.max(millis, 0)*1000000L;
+    }
+
+    @Override
+    public void reset(){
+        iterations = selectNanos = wakeupNanos = taskNanos = ioNanos = timeoutNanos = 0;
+        tasks = selectedKeys = 0;
+        maxTasks = maxSelectedKeys = 0;
+        busy.reset();
+        slowHandlers = 0;
+        lastSlowHandler = null;
+    }
+}
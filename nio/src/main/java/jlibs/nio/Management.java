@@ -20,6 +20,7 @@ import javax.management.MXBean;
 import javax.management.ObjectName;
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -36,6 +37,27 @@ public class Management{
         public int getConnected();
         public int getPooled();
         public Map<String, Integer> getPool();
+        public int getPoolWaiting();
+    }
+
+    @MXBean
+    public static interface ReactorLoopMXBean{
+        public long getIterations();
+        public Map<String, Double> getBusyTime();
+        public double getSelectMillis();
+        public double getWakeupMillis();
+        public double getTaskMillis();
+        public double getIOMillis();
+        public double getTimeoutMillis();
+        public long getTasks();
+        public int getMaxTasksPerIteration();
+        public long getSelectedKeys();
+        public int getMaxSelectedKeysPerIteration();
+        public long getSlowHandlers();
+        public String getLastSlowHandler();
+        public long getSlowHandlerThreshold();
+        public void setSlowHandlerThreshold(long millis);
+        public void reset();
     }
 
     @MXBean
@@ -46,7 +68,119 @@ public class Management{
         public void close() throws IOException;
     }
 
-    static ObjectName register(Object mbean, String name){
+    @MXBean
+    public static interface BufferPoolMXBean{
+        public long getHits();
+        public long getOverflowHits();
+        public long getMisses();
+        public long getOverflows();
+        public long getDropped();
+        public long getPooledBytes();
+        public long getPoolLimit();
+        public long getArenaBytes();
+        public long getLeaks();
+        public List<String> getLeakSites();
+    }
+
+    @MXBean
+    public static interface SSLMXBean{
+        public int getHandshaking();
+        public long getHandshakes();
+        public long getFailedHandshakes();
+        public double getAverageHandshakeMillis();
+        public double getMaxHandshakeMillis();
+        public int getTasksRunning();
+        public long getTasksOffloaded();
+        public void resetMaxHandshakeMillis();
+    }
+
+    @MXBean
+    public static interface SSLSessionsMXBean{
+        public long getHandshakes();
+        public long getResumed();
+        public double getResumptionRate();
+        public Map<String, Double> getResumptionRates();
+        public Map<String, Long> getResumedHandshakes();
+    }
+
+    @MXBean
+    public static interface CompressionMXBean{
+        public long getStreams();
+        public long getBytesIn();
+        public long getBytesOut();
+        public double getCompressionRatio();
+        public double getCpuMillis();
+        public double getAverageCpuMillis();
+        public long getPrecompressed();
+        public long getSkipped();
+    }
+
+    @MXBean
+    public static interface HTTPMXBean{
+        public long getExchanges();
+        public long getErrors();
+        public long getBytesIn();
+        public long getBytesOut();
+        public Map<String, Double> getLatency();
+        public Map<String, Double> getTimeToFirstByte();
+        public Map<String, Map<String, Double>> getStatusLatency();
+        public Map<String, Map<String, Double>> getRouteLatency();
+        public void reset();
+    }
+
+    @MXBean
+    public static interface WorkerPoolMXBean{
+        public int getThreads();
+        public int getActiveThreads();
+        public int getQueueDepth();
+        public int getQueueCapacity();
+        public int getMaxQueueDepth();
+        public long getCompletedJobs();
+        public long getRejectedJobs();
+        public int getWaiting();
+        public Map<String, Double> getReactorTime();
+        public Map<String, Double> getWorkerTime();
+        public void reset();
+    }
+
+    @MXBean
+    public static interface UpstreamGroupMXBean{
+        public Map<String, Integer> getOutstanding();
+        public Map<String, Long> getRequests();
+        public Map<String, Long> getFailures();
+        public Map<String, Boolean> getAvailable();
+        public Map<String, Integer> getIdleConnections();
+        public Map<String, Integer> getOpenConnections();
+        public void reset();
+    }
+
+    @MXBean
+    public static interface AdmissionControlMXBean{
+        public int getLimit();
+        public int getInFlight();
+        public long getAdmitted();
+        public long getShed();
+        public int getAcceptPaused();
+        public Map<String, Integer> getLimits();
+        public Map<String, Double> getLatency();
+        public void reset();
+    }
+
+    @MXBean
+    public static interface HedgingMXBean{
+        public long getExchanges();
+        public long getHedges();
+        public long getHedgeWins();
+        public long getRetries();
+        public long getTryTimeouts();
+        public long getDeadlinesExceeded();
+        public long getBudgetExhausted();
+        public double getBudget();
+        public Map<String, Long> getDelays();
+        public void reset();
+    }
+
+    public static ObjectName register(Object mbean, String name){
         try{
             ObjectName objName = new ObjectName(name);
             if(!MBEAN_SERVER.isRegistered(objName))
@@ -57,9 +191,9 @@ public class Management{
         }
     }
 
-    static void unregister(ObjectName name){
+    public static void unregister(ObjectName name){
         try{
-            if(name!=null && !MBEAN_SERVER.isRegistered(name))
+            if(name!=null && MBEAN_SERVER.isRegistered(name))
                 MBEAN_SERVER.unregisterMBean(name);
         }catch(Exception ex){
             throw new RuntimeException(ex);
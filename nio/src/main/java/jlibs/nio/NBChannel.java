@@ -43,7 +43,9 @@ public abstract class NBChannel<T extends SelectableChannel> implements Channel{
     @Trace(condition=IO, args="($1?\"timeout\":\"\")")
     protected abstract void process(boolean timeout);
 
-    int heapIndex = -1;
+    int timerSlot = -1;
+    NBChannel timerNext;
+    NBChannel timerPrev;
     long timeoutAt = Long.MAX_VALUE;
     public long getTimeout(){
         return 0;
@@ -49,6 +49,16 @@ public abstract class NBStream<T extends SelectableChannel> extends NBChannel<T>
 
     protected void init() throws IOException{}
 
+    /** number of bytes read from the socket */
+    public long bytesRead(){
+        return transport==null ? 0 : transport.bytesRead;
+    }
+
+    /** number of bytes written to the socket */
+    public long bytesWritten(){
+        return transport==null ? 0 : transport.bytesWritten;
+    }
+
     @Override
     protected void process(boolean timeout){
         transport.process(timeout);
@@ -0,0 +1,192 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+package jlibs.nio;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static jlibs.nio.Debugger.DEBUG;
+import static jlibs.nio.Debugger.println;
+
+/**
+ * Waits for channels registered with reactor's selector to become
+ * ready, and hands over ready keys to reactor.
+ * <p>
+ * channels continue to register with reactor's selector, and use
+ * SelectionKey for interest and ready ops. Poller only decides how
+ * readiness is collected and iterated.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public abstract class Poller{
+    protected final Selector selector;
+    protected Poller(Selector selector){
+        this.selector = selector;
+    }
+
+    /** blocks for at most timeout milliseconds, or indefinitely if timeout is 0 */
+    public abstract int select(long timeout) throws IOException;
+    public abstract int selectNow() throws IOException;
+
+    /** passes each key selected by last select to consumer, and clears them */
+    public abstract void processSelected(Consumer<SelectionKey> consumer);
+
+    public void wakeup(){
+        selector.wakeup();
+    }
+
+    public void close() throws IOException{
+        selector.close();
+    }
+
+    /*-------------------------------------------------[ Implementations ]---------------------------------------------------*/
+
+    /** uses Selector as is */
+    public static class SelectorPoller extends Poller{
+        public SelectorPoller(Selector selector){
+            super(selector);
+        }
+
+        @Override
+        public int select(long timeout) throws IOException{
+            return selector.select(timeout);
+        }
+
+        @Override
+        public int selectNow() throws IOException{
+            return selector.selectNow();
+        }
+
+        @Override
+        public void processSelected(Consumer<SelectionKey> consumer){
+            Set<SelectionKey> selectedKeys = selector.selectedKeys();
+            if(!selectedKeys.isEmpty()){
+                for(SelectionKey key: selectedKeys)
+                    consumer.accept(key);
+                selectedKeys.clear();
+            }
+        }
+    }
+
+    /**
+     * replaces selected-key HashSet of jdk Selector with an array, which
+     * avoids hashing on select and iterator allocation on processing.
+     * <p>
+     * this requires reflective access to sun.nio.ch.SelectorImpl, which needs
+     * "--add-opens java.base/sun.nio.ch=ALL-UNNAMED" on java 9 and above.
+     * if not possible, falls back to SelectorPoller
+     */
+    public static Poller arraySelectedKeys(Selector selector){
+        SelectedKeys selectedKeys = new SelectedKeys();
+        try{
+            Class<?> clazz = Class.forName("sun.nio.ch.SelectorImpl", false, null);
+            if(!clazz.isInstance(selector))
+                throw new UnsupportedOperationException(selector.getClass().getName());
+            Field selectedKeysField = clazz.getDeclaredField("selectedKeys");
+            Field publicSelectedKeysField = clazz.getDeclaredField("publicSelectedKeys");
+            selectedKeysField.setAccessible(true);
+            publicSelectedKeysField.setAccessible(true);
+            selectedKeysField.set(selector, selectedKeys);
+            publicSelectedKeysField.set(selector, selectedKeys);
+        }catch(Throwable thr){
+            if(DEBUG)
+                println("arraySelectedKeys not supported: "+thr);
+            return new SelectorPoller(selector);
+        }
+        return new Poller(selector){
+            @Override
+            public int select(long timeout) throws IOException{
+                return selector.select(timeout);
+            }
+
+            @Override
+            public int selectNow() throws IOException{
+                return selector.selectNow();
+            }
+
+            @Override
+            public void processSelected(Consumer<SelectionKey> consumer){
+                SelectionKey keys[] = selectedKeys.keys;
+                int size = selectedKeys.size;
+                selectedKeys.size = 0;
+                for(int i=0; i<size; i++){
+                    SelectionKey key = keys[i];
+                    keys[i] = null;
+                    consumer.accept(key);
+                }
+            }
+        };
+    }
+
+    /**
+     * Set used by Selector to report selected keys. contains always returns false,
+     * so that selector adds each ready key, instead of updating ready ops of key
+     * already selected. remove is ignored, cancelled keys are skipped by reactor
+     */
+    private static final class SelectedKeys extends AbstractSet<SelectionKey>{
+        SelectionKey keys[] = new SelectionKey[1024];
+        int size;
+
+        @Override
+        public boolean add(SelectionKey key){
+            if(key==null)
+                return false;
+            if(size==keys.length)
+                keys = Arrays.copyOf(keys, 2*size);
+            keys[size++] = key;
+            return true;
+        }
+
+        @Override
+        public boolean contains(Object o){
+            return false;
+        }
+
+        @Override
+        public boolean remove(Object o){
+            return false;
+        }
+
+        @Override
+        public int size(){
+            return size;
+        }
+
+        @Override
+        public void clear(){
+            Arrays.fill(keys, 0, size, null);
+            size = 0;
+        }
+
+        @Override
+        public Iterator<SelectionKey> iterator(){
+            return Arrays.asList(keys).subList(0, size).iterator();
+        }
+    }
+
+    /*-------------------------------------------------[ Options ]---------------------------------------------------*/
+
+    /** used by each reactor to create its poller */
+    public static Function<Selector, Poller> FACTORY = SelectorPoller::new;
+}
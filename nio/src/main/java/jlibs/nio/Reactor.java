@@ -16,16 +16,21 @@
 package jlibs.nio;
 
 import jlibs.core.lang.Waiter;
-import jlibs.core.util.Heap;
 import jlibs.nio.util.BufferAllocator;
+import jlibs.nio.util.DeflaterPool;
+import jlibs.nio.util.MPSCQueue;
 import jlibs.nio.util.PooledBufferAllocator;
+import jlibs.nio.util.SizeClassBufferAllocator;
 import jlibs.nio.util.UnpooledBufferAllocator;
 
 import javax.management.ObjectName;
 import java.io.IOException;
+import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -38,22 +43,33 @@ import static jlibs.nio.Debugger.*;
 public class Reactor{
     public final int id;
     public final Selector selector;
+    private final Poller poller;
     public final ConnectionPool connectionPool = new ConnectionPool(this);
     public final BufferAllocator allocator;
+    public final DeflaterPool deflaters = new DeflaterPool();
+    public final DNSResolver dnsResolver = new DNSResolver(this);
 
     long lastAcceptID;
     long lastConnectID;
     private final ObjectName objName;
+    private ObjectName poolObjName;
+    private final ObjectName loopObjName;
+    final LoopStats loopStats = new LoopStats();
 
     Reactor(int id) throws IOException{
         this.id = id;
         selector = Selector.open();
+        poller = Poller.FACTORY.apply(selector);
         executionID = "R"+id;
         toString = "Reactor"+id;
 
-        if(BufferAllocator.Defaults.POOL_BUFFERS)
-            allocator = new PooledBufferAllocator(BufferAllocator.Defaults.USE_DIRECT_BUFFERS);
-        else
+        if(BufferAllocator.Defaults.POOL_BUFFERS){
+            if(BufferAllocator.Defaults.SIZE_CLASSES){
+                allocator = new SizeClassBufferAllocator(SizeClassBufferAllocator.global());
+                poolObjName = Management.register(allocator, "jlibs.nio:type=BufferPool,id="+id);
+            }else
+                allocator = new PooledBufferAllocator(BufferAllocator.Defaults.USE_DIRECT_BUFFERS);
+        }else
             allocator = BufferAllocator.Defaults.USE_DIRECT_BUFFERS ? UnpooledBufferAllocator.DIRECT : UnpooledBufferAllocator.HEAP;
 
         objName = Management.register(new Management.ReactorMXBean(){
@@ -82,6 +98,11 @@ public class Reactor{
                 return connectionPool.count();
             }
 
+            @Override
+            public int getPoolWaiting(){
+                return connectionPool.waiting();
+            }
+
             @Override
             public Map<String, Integer> getPool(){
                 Map<String, Integer> map[] = new Map[1];
@@ -97,6 +118,7 @@ public class Reactor{
                 return map[0];
             }
         }, "jlibs.nio:type=Reactor,id="+id);
+        loopObjName = Management.register(loopStats, "jlibs.nio:type=ReactorLoop,id="+id);
     }
 
     private final String toString;
@@ -135,8 +157,9 @@ public class Reactor{
     }
 
     void register(TCPServer server) throws IOException{
-        if(server.selectable.keyFor(selector)==null){
-            server.selectable.register(selector, OP_ACCEPT, server);
+        ServerSocketChannel selectable = server.selectable(this);
+        if(selectable.keyFor(selector)==null){
+            selectable.register(selector, OP_ACCEPT, server);
             servers.add(server);
             if(DEBUG)
                 println(server+".register");
@@ -147,7 +170,7 @@ public class Reactor{
         if(DEBUG)
             println(server+".unregister");
         servers.remove(server);
-        SelectionKey key = server.selectable.keyFor(selector);
+        SelectionKey key = server.selectable(this).keyFor(selector);
         if(key!=null && key.isValid())
             key.cancel();
     }
@@ -164,11 +187,26 @@ public class Reactor{
 
     /*-------------------------------------------------[ Tasks ]---------------------------------------------------*/
 
-    private volatile Deque<Runnable> tasks = new ArrayDeque<>();
+    private final MPSCQueue<Runnable> tasks = new MPSCQueue<>();
+
+    // true only while reactor thread is blocked in select
+    private final AtomicBoolean selecting = new AtomicBoolean();
 
-    public synchronized void invokeLater(Runnable task){
-        tasks.push(task);
-        selector.wakeup();
+    public void invokeLater(Runnable task){
+        tasks.offer(task);
+        wakeupSelector();
+    }
+
+    public void invokeLater(Collection<Runnable> tasks){
+        if(!tasks.isEmpty()){
+            this.tasks.offerAll(tasks);
+            wakeupSelector();
+        }
+    }
+
+    private void wakeupSelector(){
+        if(selecting.get() && selecting.compareAndSet(true, false))
+            poller.wakeup();
     }
 
     public void invokeAndWait(Runnable task) throws InterruptedException{
@@ -222,96 +260,159 @@ public class Reactor{
             setUncaughtExceptionHandler(this);
         }
 
+        private final Consumer<SelectionKey> processSelected = this::process;
+        private void process(SelectionKey key){
+            if(key.isValid()){
+                NBChannel nbChannel = (NBChannel)key.attachment();
+                timeoutTracker.stopTimer(nbChannel);
+                activeChannel = nbChannel;
+                long started = handlerStarted();
+                try{
+                    nbChannel.process(false);
+                }catch(Throwable thr){
+                    handleException(thr);
+                }
+                handlerFinished(started, nbChannel);
+            }
+        }
+
+        /*-------------------------------------------------[ Profiling ]---------------------------------------------------*/
+
+        // cached from loopStats once per iteration. 0 turns off timing of each handler
+        private long slowHandlerNanos;
+
+        private long handlerStarted(){
+            return slowHandlerNanos==0 ? 0 : System.nanoTime();
+        }
+
+        private void handlerFinished(long started, Object handler){
+            if(slowHandlerNanos!=0){
+                long took = System.nanoTime()-started;
+                if(took>=slowHandlerNanos){
+                    String executionID;
+                    if(handler instanceof NBChannel)
+                        executionID = ((NBChannel)handler).getExecutionID();
+                    else
+                        executionID = Reactor.this.executionID+'/'+handler.getClass().getName();
+                    loopStats.slowHandler(executionID, took);
+                }
+            }
+        }
+
         public void run(){
-            final Selector selector = reactor.selector;
+            final Poller poller = reactor.poller;
             final TimeoutTracker timeoutTracker = reactor.timeoutTracker;
-            Deque<Runnable> tempTasks = new ArrayDeque<>();
+            final LoopStats stats = reactor.loopStats;
+            Runnable task;
             NBChannel nbChannel;
             NBStream nbStream;
+            long started;
 
+            // mark is end of previous phase, selectReturned is when last select returned
+            long mark = System.nanoTime(), selectReturned = mark, now;
             while(true){
+                slowHandlerNanos = stats.slowHandlerNanos;
                 while(wakeupHead!=null){
                     nbStream = wakeupHead;
                     wakeupHead = null;
                     while(nbStream!=null){
-                        if(nbStream.heapIndex!=-1)
-                            timeoutTracker.stopTimer(nbStream);
+                        timeoutTracker.stopTimer(nbStream);
                         activeChannel = nbStream;
+                        started = handlerStarted();
                         try{
                             nbStream.wakeupNow();
                         }catch(Throwable thr){
                             handleException(thr);
                         }
+                        handlerFinished(started, nbStream);
                         NBStream next = nbStream.wakeupNext==nbStream ? null : nbStream.wakeupNext;
                         nbStream.wakeupNext = null;
                         nbStream = next;
                     }
                 }
+                now = System.nanoTime();
+                stats.wakeupNanos += now-mark;
+                mark = now;
 
                 // run tasks
-                while(!tasks.isEmpty()){
-                    synchronized(this){
-                        Deque<Runnable> temp = tasks;
-                        tasks = tempTasks;
-                        tempTasks = temp;
-                    }
-                    while(!tempTasks.isEmpty()){
-                        activeChannel = null;
-                        if(DEBUG)
-                            enter("runTask");
-                        try{
-                            tempTasks.pop().run();
-                        }catch(Throwable thr){
-                            handleException(thr);
-                        }
-                        if(DEBUG)
-                            exit();
+                int taskCount = 0;
+                while((task=tasks.poll())!=null){
+                    activeChannel = null;
+                    ++taskCount;
+                    if(DEBUG)
+                        enter("runTask");
+                    started = handlerStarted();
+                    try{
+                        task.run();
+                    }catch(Throwable thr){
+                        handleException(thr);
                     }
+                    handlerFinished(started, task);
+                    if(DEBUG)
+                        exit();
                 }
+                now = System.nanoTime();
+                stats.taskNanos += now-mark;
+                stats.tasksRun(taskCount);
+                mark = now;
 
                 if(shutdown && servers.size()==0 && connected==0 && connectionPending==0 && accepted==0){
                     try{
-                        selector.close();
+                        poller.close();
+                        deflaters.clear();
+                        dnsResolver.close();
                         Management.unregister(objName);
+                        Management.unregister(poolObjName);
+                        Management.unregister(loopObjName);
                     }catch(Throwable thr){
                         handleException(thr);
                     }
                     return;
                 }
+                ++stats.iterations;
+                stats.busy.record((now-selectReturned)/1000);
 
                 boolean tracking = timeoutTracker.isTracking();
+                boolean scheduled = scheduler.isTracking();
                 long selectTimeout = tracking ? timeoutTracker.waitTime() : 0L;
+                if(scheduled){
+                    long waitTime = scheduler.waitTime();
+                    selectTimeout = tracking ? Math.min(selectTimeout, waitTime) : waitTime;
+                }
 
                 int selected = 0;
                 try{
                     if(IO)
                         enter("select("+selectTimeout+")");
-                    selected = selector.select(selectTimeout);
+                    selecting.set(true);
+                    // recheck after publishing selecting, so that producers either
+                    // see selecting=true and wakeup, or their task is seen here
+                    if(tasks.isEmpty() && wakeupHead==null)
+                        selected = poller.select(selectTimeout);
+                    else
+                        selected = poller.selectNow();
                 }catch(IOException ex){
                     handleException(ex);
+                }finally{
+                    selecting.set(false);
                 }
-                if(tracking)
-                    timeoutTracker.time = System.currentTimeMillis();
+                timeoutTracker.time = scheduler.time = System.currentTimeMillis();
+                now = System.nanoTime();
+                stats.selectNanos += now-mark;
+                selectReturned = mark = now;
+
                 if(selected>0){
-                    Set<SelectionKey> selectedKeys = selector.selectedKeys();
-                    for(SelectionKey key: selectedKeys){
-                        if(key.isValid()){
-                            nbChannel = (NBChannel)key.attachment();
-                            if(nbChannel.heapIndex!=-1)
-                                timeoutTracker.stopTimer(nbChannel);
-                            activeChannel = nbChannel;
-                            try{
-                                nbChannel.process(false);
-                            }catch(Throwable thr){
-                                handleException(thr);
-                            }
-                        }
-                    }
-                    selectedKeys.clear();
+                    poller.processSelected(processSelected);
+                    stats.keysSelected(selected);
                 }
                 if(IO)
                     exit();
+                now = System.nanoTime();
+                stats.ioNanos += now-mark;
+                mark = now;
+
                 if(tracking){
+                    timeoutTracker.expire();
                     while((nbChannel=timeoutTracker.next())!=null){
                         activeChannel = nbChannel;
                         if(nbChannel instanceof Connection && ((Connection)nbChannel).poolNext!=null){
@@ -320,13 +421,34 @@ public class Reactor{
                             connectionPool.remove((Connection)nbChannel);
                             nbChannel.close();
                         }else{
+                            started = handlerStarted();
                             try{
                                 nbChannel.process(true);
                             }catch(Throwable thr){
                                 handleException(thr);
                             }
+                            handlerFinished(started, nbChannel);
+                        }
+                    }
+                    now = System.nanoTime();
+                    stats.timeoutNanos += now-mark;
+                    mark = now;
+                }
+                if(scheduled){
+                    scheduler.expire();
+                    while((nbChannel=scheduler.next())!=null){
+                        activeChannel = nbChannel;
+                        started = handlerStarted();
+                        try{
+                            nbChannel.process(true);
+                        }catch(Throwable thr){
+                            handleException(thr);
                         }
+                        handlerFinished(started, nbChannel);
                     }
+                    now = System.nanoTime();
+                    stats.timeoutNanos += now-mark;
+                    mark = now;
                 }
             }
         }
@@ -341,7 +463,7 @@ public class Reactor{
 
     /*-------------------------------------------------[ Timeout ]---------------------------------------------------*/
 
-    private TimeoutTracker timeoutTracker = new TimeoutTracker();
+    private TimeoutTracker timeoutTracker = new TimeoutTracker(TIMER_RESOLUTION, TIMER_WHEEL_SIZE);
     void startTimer(NBChannel channel, long timeout){
         if(timeout>0)
             timeoutTracker.startTimer(channel, timeout);
@@ -351,53 +473,238 @@ public class Reactor{
         timeoutTracker.stopTimer(channel);
     }
 
-    private final class TimeoutTracker{
-        private final Heap<NBChannel> heap = new Heap<NBChannel>(1000){
-            @Override
-            protected void setIndex(NBChannel channel, int index){
-                channel.heapIndex = index;
-            }
+    // own wheel, as delays of scheduled tasks are often below TIMER_RESOLUTION
+    private TimeoutTracker scheduler = new TimeoutTracker(SCHEDULER_RESOLUTION, TIMER_WHEEL_SIZE);
+
+    /**
+     * runs task in this reactor after delay milliseconds, rounded up to
+     * SCHEDULER_RESOLUTION. must be called from this reactor's thread.
+     * returned handle cancels the task, and must also be used from this thread
+     */
+    public Cancellable schedule(Runnable task, long delay){
+        NBChannel active = activeChannel;
+        ScheduledTask scheduled;
+        try{
+            scheduled = new ScheduledTask(scheduler, task);
+        }catch(IOException ex){
+            throw new AssertionError(ex); // never thrown, as there is no selectable
+        }
+        scheduler.startTimer(scheduled, Math.max(delay, 1));
+        activeChannel = active;
+        return scheduled;
+    }
 
-            @Override
-            protected int compare(NBChannel channel1, NBChannel channel2){
-                return channel1.timeoutAt<channel2.timeoutAt ? -1 : (channel1.timeoutAt==channel2.timeoutAt?0:+1);
-            }
-        };
+    public interface Cancellable{
+        /** returns false, if already run or cancelled */
+        public boolean cancel();
+    }
+
+    /** extends NBChannel to use reactor's timer */
+    private static final class ScheduledTask extends NBChannel<SelectableChannel> implements Cancellable{
+        private final TimeoutTracker scheduler;
+        private Runnable task;
+
+        private ScheduledTask(TimeoutTracker scheduler, Runnable task) throws IOException{
+            super(null);
+            this.scheduler = scheduler;
+            this.task = task;
+            uniqueID = "T"+Integer.toHexString(hashCode());
+        }
+
+        @Override
+        public boolean cancel(){
+            if(task==null)
+                return false;
+            task = null;
+            // dropped from wheel, when its slot is visited
+            scheduler.stopTimer(this);
+            return true;
+        }
+
+        @Override
+        public boolean isOpen(){
+            return task!=null;
+        }
+
+        @Override
+        public void shutdown(){
+            task = null;
+        }
+
+        @Override
+        protected void process(boolean timeout){
+            Runnable task = this.task;
+            this.task = null;
+            if(task!=null)
+                task.run();
+        }
+    }
+
+    /**
+     * Hashed timing wheel. Each slot holds channels whose timeout falls in
+     * that tick, modulo wheel size. Timeouts fire upto one tick late, but never early.
+     *
+     * stopTimer unlinks channel from its slot, so that wheel holds only live timers.
+     * startTimer with later deadline, on a channel already in wheel, only updates
+     * its timeoutAt. when its slot is visited, channel is moved to correct slot if
+     * its deadline is not yet due. startTimer with deadline before the visit of its
+     * slot, moves channel to correct slot.
+     *
+     * occupied slots are tracked in a bitmap, so that reactor sleeps till next
+     * non-empty slot, rather than waking every tick.
+     */
+    static final class TimeoutTracker{
+        private static final int NONE = -1;
+        private static final int EXPIRED = -2;
+
+        private final long resolution;
+        private final NBChannel wheel[];
+        private final long occupied[]; // bit per non-empty slot
+        private final int mask;
+        private int count; // channels in wheel
+        private NBChannel expiredHead;
+
+        long time = System.currentTimeMillis();
+        private long tick;
+
+        TimeoutTracker(long resolution, int wheelSize){
+            this.resolution = Math.max(resolution, 1L);
+            tick = time/this.resolution;
+            int size = Integer.highestOneBit(Math.max(wheelSize, 1)-1)<<1;
+            wheel = new NBChannel[Math.max(size, 1)];
+            occupied = new long[(wheel.length+63)>>>6];
+            mask = wheel.length-1;
+        }
 
         public boolean isTracking(){
-            return heap.size()>0;
+            return count>0;
         }
 
         public void startTimer(NBChannel channel, long timeout){
-            if(channel.heapIndex!=-1)
-                stopTimer(channel);
-            if(timeout>0){
-                channel.timeoutAt = System.currentTimeMillis() + timeout;
-                heap.add(channel);
+            channel.timeoutAt = time+timeout;
+            if(channel.timerSlot==NONE){
+                if(count==0)
+                    tick = time/resolution;
+                link(channel);
+            }else if(channel.timerSlot>=0){
+                // slot is visited next at this tick
+                long visit = tick+1+((channel.timerSlot-tick-1) & mask);
+                if(deadline(channel)<visit){
+                    unlink(channel);
+                    link(channel);
+                }
             }
         }
 
         public void stopTimer(NBChannel channel){
-            assert channel.heapIndex!=-1;
-            NBChannel removed = heap.removeAt(channel.heapIndex);
-            assert removed==channel;
-            assert channel.heapIndex==-1;
             channel.timeoutAt = Long.MAX_VALUE;
+            if(channel.timerSlot>=0)
+                unlink(channel);
         }
 
-        long time;
-        public NBChannel next(){
-            NBChannel root = heap.root();
-            if(root!=null && root.timeoutAt<time){
-                assert root.heapIndex==0;
-                heap.removeAt(0);
-                return root;
+        private long deadline(NBChannel channel){
+            return (channel.timeoutAt+resolution-1)/resolution;
+        }
+
+        private void link(NBChannel channel){
+            // deadline already passed is due at next tick
+            int slot = (int)Math.max(deadline(channel), tick+1) & mask;
+            NBChannel next = wheel[slot];
+            channel.timerSlot = slot;
+            channel.timerPrev = null;
+            channel.timerNext = next;
+            if(next!=null)
+                next.timerPrev = channel;
+            wheel[slot] = channel;
+            occupied[slot>>>6] |= 1L<<slot;
+            ++count;
+        }
+
+        private void unlink(NBChannel channel){
+            NBChannel prev = channel.timerPrev, next = channel.timerNext;
+            if(prev==null){
+                int slot = channel.timerSlot;
+                wheel[slot] = next;
+                if(next==null)
+                    occupied[slot>>>6] &= ~(1L<<slot);
             }else
-                return null;
+                prev.timerNext = next;
+            if(next!=null)
+                next.timerPrev = prev;
+            channel.timerPrev = channel.timerNext = null;
+            channel.timerSlot = NONE;
+            --count;
+        }
+
+        /** moves channels timed out by now into expired list */
+        public void expire(){
+            long now = time/resolution;
+            long ticks = Math.min(now-tick, wheel.length);
+            for(long t=1; t<=ticks; t++){
+                int slot = (int)(tick+t) & mask;
+                NBChannel channel = wheel[slot];
+                wheel[slot] = null;
+                occupied[slot>>>6] &= ~(1L<<slot);
+                while(channel!=null){
+                    NBChannel next = channel.timerNext;
+                    channel.timerPrev = null;
+                    --count;
+                    if(channel.timeoutAt<=time){
+                        channel.timerSlot = EXPIRED;
+                        channel.timerNext = expiredHead;
+                        expiredHead = channel;
+                    }else
+                        link(channel);
+                    channel = next;
+                }
+            }
+            tick = now;
+        }
+
+        public NBChannel next(){
+            while(expiredHead!=null){
+                NBChannel channel = expiredHead;
+                expiredHead = channel.timerNext;
+                channel.timerNext = null;
+                channel.timerSlot = NONE;
+                if(channel.timeoutAt==Long.MAX_VALUE)
+                    continue; // stopped after expiry
+                if(channel.timeoutAt>time){
+                    link(channel); // restarted after expiry
+                    continue;
+                }
+                channel.timeoutAt = Long.MAX_VALUE;
+                return channel;
+            }
+            return null;
         }
 
+        /** milliseconds till next non-empty slot is due, 0 if wheel is empty */
         public long waitTime(){
-            return heap.size()==0 ? 0L : Math.max(1000L, heap.root().timeoutAt-System.currentTimeMillis());
+            return waitTime(System.currentTimeMillis());
+        }
+
+        long waitTime(long now){
+            if(count==0)
+                return 0L;
+            int from = (int)(tick+1) & mask;
+            int slot = nextOccupied(from);
+            if(slot==-1)
+                slot = nextOccupied(0);
+            long ticks = slot==-1 ? 1 : ((slot-from) & mask)+1;
+            return Math.max(1L, (tick+ticks)*resolution-now);
+        }
+
+        /** returns first non-empty slot at or after given slot, -1 if none */
+        private int nextOccupied(int from){
+            int index = from>>>6;
+            long bits = occupied[index] & (-1L<<from);
+            while(bits==0){
+                if(++index==occupied.length)
+                    return -1;
+                bits = occupied[index];
+            }
+            return (index<<6)+Long.numberOfTrailingZeros(bits);
         }
     }
 
@@ -427,6 +734,23 @@ public class Reactor{
         }
     }
 
+    /*-------------------------------------------------[ Options ]---------------------------------------------------*/
+
+    /** timer tick in milliseconds. timeouts are rounded up to this */
+    public static long TIMER_RESOLUTION = 1000;
+
+    /** number of slots in timer wheel, rounded up to power of 2 */
+    public static int TIMER_WHEEL_SIZE = 512;
+
+    /** tick in milliseconds of timer used by schedule(...) */
+    public static long SCHEDULER_RESOLUTION = 10;
+
+    /**
+     * handlers taking longer than this many milliseconds are reported with their execution id.
+     * 0 turns off. can be changed per reactor at runtime through ReactorLoopMXBean
+     */
+    public static long SLOW_HANDLER_THRESHOLD = 0;
+
     /*-------------------------------------------------[ Misc ]---------------------------------------------------*/
 
     private StringBuilder builder = new StringBuilder(500);
@@ -15,6 +15,10 @@
 
 package jlibs.nio;
 
+import jlibs.nio.filters.DeflaterOutput;
+import jlibs.nio.util.BufferAllocator;
+import jlibs.nio.util.SizeClassBufferAllocator;
+
 import java.io.IOException;
 import java.util.*;
 import java.util.function.Supplier;
@@ -65,6 +69,11 @@ public class Reactors{
                 return Arrays.stream(reactors).mapToInt(reactor -> reactor.connectionPool.count()).sum();
             }
 
+            @Override
+            public int getPoolWaiting(){
+                return Arrays.stream(reactors).mapToInt(reactor -> reactor.connectionPool.waiting()).sum();
+            }
+
             @Override
             public Map<String, Integer> getPool(){
                 try{
@@ -86,6 +95,11 @@ public class Reactors{
                 }
             }
         }, "jlibs.nio:type=Reactors");
+        Management.register(SSLSocket.STATS, "jlibs.nio:type=SSL");
+        Management.register(TCPEndpoint.SESSIONS, "jlibs.nio:type=SSLSessions");
+        Management.register(DeflaterOutput.STATS, "jlibs.nio:type=Compression");
+        if(BufferAllocator.Defaults.POOL_BUFFERS && BufferAllocator.Defaults.SIZE_CLASSES)
+            Management.register(SizeClassBufferAllocator.global(), "jlibs.nio:type=BufferPool,id=global");
     }
 
     public static List<Reactor> get(){
@@ -23,10 +23,15 @@ import jlibs.nio.util.NIOUtil;
 
 import javax.net.ssl.*;
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 import java.security.cert.X509Certificate;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static java.nio.channels.SelectionKey.OP_READ;
 import static java.nio.channels.SelectionKey.OP_WRITE;
@@ -83,6 +88,10 @@ public final class SSLSocket implements Transport, Bean{
                     " handshakeStatus: "+engine.getHandshakeStatus());
         }
         engine.beginHandshake();
+        handshaking = true;
+        handshakeStart = System.nanoTime();
+        handshakeStartMillis = System.currentTimeMillis();
+        STATS.handshaking.incrementAndGet();
         selfInterests = engine.getHandshakeStatus()==NEED_UNWRAP ? OP_READ : OP_WRITE;
     }
 
@@ -90,17 +99,44 @@ public final class SSLSocket implements Transport, Bean{
         return engine.getSession();
     }
 
+    /** returns protocol negotiated using ALPN. null if none */
+    public String getApplicationProtocol(){
+        if(GET_APPLICATION_PROTOCOL==null)
+            return null;
+        try{
+            String protocol = (String)GET_APPLICATION_PROTOCOL.invoke(engine);
+            return protocol==null || protocol.isEmpty() ? null : protocol;
+        }catch(ReflectiveOperationException ex){
+            return null;
+        }
+    }
+
     private int selfInterests;
     private long appWrote, appRead;
     private boolean unwrapUnderflow;
     @Trace(condition=IO, args="$1")
     private void run(SSLEngineResult.HandshakeStatus handshakeStatus) throws IOException{
+        if(tasksRunning){
+            selfInterests = OP_TASK;
+            return;
+        }
+        if(taskFailure!=null){
+            Throwable thr = taskFailure;
+            taskFailure = null;
+            if(thr instanceof IOException)
+                throw (IOException)thr;
+            throw new SSLException(thr);
+        }
         assert handshakeStatus==engine.getHandshakeStatus() || engine.getHandshakeStatus()==NOT_HANDSHAKING;
         selfInterests = 0;
         appRead = appWrote = 0;
         while(!engine.isOutboundDone()){
             switch(handshakeStatus){
                 case NEED_TASK:
+                    if(HANDSHAKE_EXECUTOR!=null && runTasksLater()){
+                        selfInterests = OP_TASK;
+                        return;
+                    }
                     Runnable task;
                     while((task=engine.getDelegatedTask())!=null)
                         task.run();
@@ -136,6 +172,8 @@ public final class SSLSocket implements Transport, Bean{
                         assert result.getStatus()!=BUFFER_UNDERFLOW;
                         assert result.getStatus()==OK || (result.getStatus()==CLOSED && engine.isOutboundDone());
                         appWrote += result.bytesConsumed();
+                        if(result.getHandshakeStatus()==FINISHED)
+                            handshakeEnded(true);
                     }finally{
                         peerWriteBuffer.flip();
                     }
@@ -183,6 +221,8 @@ public final class SSLSocket implements Transport, Bean{
                                 assert result.getStatus()!=BUFFER_OVERFLOW;
                                 assert result.getStatus()==OK || (result.getStatus()==CLOSED && engine.isInboundDone());
                                 appRead += result.bytesProduced();
+                                if(result.getHandshakeStatus()==FINISHED)
+                                    handshakeEnded(true);
                                 if(appRead>0){
                                     if(isOpen())
                                         return;
@@ -228,12 +268,158 @@ public final class SSLSocket implements Transport, Bean{
         return true;
     }
 
+    /*-------------------------------------------------[ Delegated Tasks ]---------------------------------------------------*/
+
+    // selfInterests while delegated tasks are running in HANDSHAKE_EXECUTOR.
+    // no interest is registered with peer, until tasks are finished
+    private static final int OP_TASK = 1<<8;
+
+    private boolean tasksRunning;
+    private Throwable taskFailure;
+
+    private boolean runTasksLater(){
+        Reactor reactor = Reactor.current();
+        tasksRunning = true;
+        STATS.tasksRunning.incrementAndGet();
+        try{
+            HANDSHAKE_EXECUTOR.execute(() -> {
+                Throwable failure = null;
+                try{
+                    Runnable task;
+                    while((task=engine.getDelegatedTask())!=null)
+                        task.run();
+                }catch(Throwable thr){
+                    failure = thr;
+                }
+                Throwable taskFailure = failure;
+                reactor.invokeLater(() -> tasksFinished(taskFailure));
+            });
+            STATS.tasksOffloaded.incrementAndGet();
+            return true;
+        }catch(RejectedExecutionException ex){
+            // run them in reactor thread
+            STATS.tasksRunning.decrementAndGet();
+            tasksRunning = false;
+            return false;
+        }
+    }
+
+    private void tasksFinished(Throwable failure){
+        STATS.tasksRunning.decrementAndGet();
+        tasksRunning = false;
+        taskFailure = failure;
+        if(IO)
+            println(this+".tasksFinished("+failure+")");
+
+        // selfInterests is still OP_TASK, so that interested
+        // listeners resume handshake on read/write
+        if(peerIn.isOpen() && peerOut.isOpen()){
+            if(transportIn.peekInInterested)
+                transportIn.wakeupReader();
+            if(transportOut.peekOutInterested)
+                transportOut.wakeupWriter();
+        }
+    }
+
+    /*-------------------------------------------------[ Handshake Stats ]---------------------------------------------------*/
+
+    private boolean handshaking;
+    private long handshakeStart;
+    private long handshakeStartMillis;
+
+    // set by TCPEndpoint for outbound connections
+    TCPEndpoint.SessionStats sessionStats;
+
+    private boolean sessionResumed;
+
+    /** returns true, if handshake resumed a session cached from earlier connection */
+    public boolean isSessionResumed(){
+        return sessionResumed;
+    }
+
+    private void handshakeEnded(boolean success){
+        if(handshaking){
+            handshaking = false;
+            STATS.handshakeEnded(System.nanoTime()-handshakeStart, success);
+            if(success){
+                // resumed session is created before this handshake started
+                sessionResumed = engine.getSession().getCreationTime()<handshakeStartMillis;
+                if(sessionStats!=null)
+                    TCPEndpoint.SESSIONS.handshakeFinished(sessionStats, sessionResumed);
+            }
+        }
+    }
+
+    static final Stats STATS = new Stats();
+    static final class Stats implements Management.SSLMXBean{
+        final AtomicInteger handshaking = new AtomicInteger();
+        final AtomicLong handshakes = new AtomicLong();
+        final AtomicLong failedHandshakes = new AtomicLong();
+        final AtomicLong handshakeNanos = new AtomicLong();
+        final AtomicLong maxHandshakeNanos = new AtomicLong();
+        final AtomicInteger tasksRunning = new AtomicInteger();
+        final AtomicLong tasksOffloaded = new AtomicLong();
+
+        void handshakeEnded(long nanos, boolean success){
+            handshaking.decrementAndGet();
+            if(success){
+                handshakes.incrementAndGet();
+                handshakeNanos.addAndGet(nanos);
+                maxHandshakeNanos.accumulateAndGet(nanos, Math::max);
+            }else
+                failedHandshakes.incrementAndGet();
+        }
+
+        @Override
+        public int getHandshaking(){
+            return handshaking.get();
+        }
+
+        @Override
+        public long getHandshakes(){
+            return handshakes.get();
+        }
+
+        @Override
+        public long getFailedHandshakes(){
+            return failedHandshakes.get();
+        }
+
+        @Override
+        public double getAverageHandshakeMillis(){
+            long count = handshakes.get();
+            return count==0 ? 0 : handshakeNanos.get()/(count*1000000d);
+        }
+
+        @Override
+        public double getMaxHandshakeMillis(){
+            return maxHandshakeNanos.get()/1000000d;
+        }
+
+        @Override
+        public int getTasksRunning(){
+            return tasksRunning.get();
+        }
+
+        @Override
+        public long getTasksOffloaded(){
+            return tasksOffloaded.get();
+        }
+
+        @Override
+        public void resetMaxHandshakeMillis(){
+            maxHandshakeNanos.set(0);
+        }
+    }
+
     /*-------------------------------------------------[ App Read ]---------------------------------------------------*/
 
     @Override
     public void addReadInterest(){
         if(transportIn.peekIn==this)
             transportIn.peekInInterested = true;
+        if(tasksRunning)
+            return;
         if(appReadBuffers[appReadBuffers.length-1].hasRemaining()
                 || engine.isInboundDone()
                 || (peerReadBuffer!=null && peerReadBuffer.hasRemaining() && !unwrapUnderflow))
@@ -363,6 +549,8 @@ public final class SSLSocket implements Transport, Bean{
     public void addWriteInterest(){
         if(transportOut.peekOut==this)
             transportOut.peekOutInterested = true;
+        if(tasksRunning)
+            return;
         if(engine.isOutboundDone())
             transportOut.wakeupWriter();
         else{
@@ -451,6 +639,7 @@ public final class SSLSocket implements Transport, Bean{
             if(!writePendingToPeer())
                 return false;
             if(!open){
+                handshakeEnded(false);
                 if(peerReadBuffer!=null){
                     Reactor.current().allocator.free(peerReadBuffer);
                     peerReadBuffer = null;
@@ -489,6 +678,7 @@ public final class SSLSocket implements Transport, Bean{
     public void close() throws IOException{
         if(open){
             open = false;
+            handshakeEnded(false);
             ByteBuffer appReadBuffer = appReadBuffers[appReadBuffers.length-1];
             if(appReadBuffer.hasRemaining())
                 appReadBuffer.position(appReadBuffer.limit());
@@ -559,6 +749,10 @@ public final class SSLSocket implements Transport, Bean{
             return getSession().getProtocol();
         else if(name=="cipher")
             return getSession().getCipherSuite();
+        else if(name=="application_protocol")
+            return getApplicationProtocol();
+        else if(name=="session_resumed")
+            return sessionResumed;
         else if(name=="local")
             return new CertificateBean((X509Certificate)getSession().getLocalCertificates()[0]);
         else if(name=="peer"){
@@ -571,6 +765,53 @@ public final class SSLSocket implements Transport, Bean{
             throw new UnresolvedException(name);
     }
 
+    /*-------------------------------------------------[ ALPN ]---------------------------------------------------*/
+
+    // null if running jvm has no ALPN (requires java 9 or 8u252)
+    private static final Method SET_APPLICATION_PROTOCOLS;
+    private static final Method GET_APPLICATION_PROTOCOL;
+    static{
+        Method set = null, get = null;
+        try{
+            set = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+            get = SSLEngine.class.getMethod("getApplicationProtocol");
+        }catch(Exception ex){
+            // not available
+        }
+        SET_APPLICATION_PROTOCOLS = set;
+        GET_APPLICATION_PROTOCOL = get;
+    }
+
+    public static boolean isALPNSupported(){
+        return SET_APPLICATION_PROTOCOLS!=null && GET_APPLICATION_PROTOCOL!=null;
+    }
+
+    /**
+     * sets protocols offered by client, or accepted by server, in order of preference.
+     * must be called before handshake starts
+     */
+    public static void setApplicationProtocols(SSLEngine engine, String... protocols){
+        if(!isALPNSupported())
+            throw new UnsupportedOperationException("ALPN is not supported by this jvm");
+        SSLParameters params = engine.getSSLParameters();
+        try{
+            SET_APPLICATION_PROTOCOLS.invoke(params, (Object)protocols);
+        }catch(ReflectiveOperationException ex){
+            throw new UnsupportedOperationException(ex);
+        }
+        engine.setSSLParameters(params);
+    }
+
+    /*-------------------------------------------------[ Options ]---------------------------------------------------*/
+
+    /**
+     * executor to run delegated tasks of SSLEngine, such as key exchange
+     * and certificate validation. while tasks are running, the socket does
+     * not take part in selection, and reactor thread is free to serve other
+     * connections. null means tasks are run in reactor thread
+     */
+    public static Executor HANDSHAKE_EXECUTOR = null;
+
     public static class CertificateBean implements Bean{
         public final X509Certificate cert;
         public CertificateBean(X509Certificate cert){
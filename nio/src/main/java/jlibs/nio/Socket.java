@@ -59,6 +59,7 @@ public final class Socket implements Transport{
     @Override public void setInputListener(Input.Listener listener){ inputListener = listener; }
 
     private final ScatteringByteChannel reader;
+    long bytesRead;
     Input peekIn = this;
     boolean peekInInterested;
     private boolean eof;
@@ -91,6 +92,8 @@ public final class Socket implements Transport{
             throw SOCKET_TIMEOUT_EXCEPTION;
         int read = reader.read(dst);
         eof = read==-1;
+        if(read>0)
+            bytesRead += read;
         return read;
     }
 
@@ -100,6 +103,8 @@ public final class Socket implements Transport{
             throw SOCKET_TIMEOUT_EXCEPTION;
         long read = reader.read(dsts);
         eof = read==-1;
+        if(read>0)
+            bytesRead += read;
         return read;
     }
 
@@ -109,12 +114,16 @@ public final class Socket implements Transport{
             throw SOCKET_TIMEOUT_EXCEPTION;
         long read = reader.read(dsts, offset, length);
         eof = read==-1;
+        if(read>0)
+            bytesRead += read;
         return read;
     }
 
     @Override
     public long transferTo(long position, long count, FileChannel target) throws IOException{
-        return target.transferFrom(reader, position, count);
+        long read = target.transferFrom(reader, position, count);
+        bytesRead += read;
+        return read;
     }
 
     @Override
@@ -139,6 +148,7 @@ public final class Socket implements Transport{
     @Override public void setOutputListener(Output.Listener listener){ outputListener = listener; }
 
     private final GatheringByteChannel writer;
+    long bytesWritten;
     Output peekOut = this;
     boolean peekOutInterested;
 
@@ -168,26 +178,34 @@ public final class Socket implements Transport{
     public int write(ByteBuffer src) throws IOException{
         if(timeout)
             throw SOCKET_TIMEOUT_EXCEPTION;
-        return writer.write(src);
+        int wrote = writer.write(src);
+        bytesWritten += wrote;
+        return wrote;
     }
 
     @Override
     public long write(ByteBuffer[] srcs) throws IOException{
         if(timeout)
             throw SOCKET_TIMEOUT_EXCEPTION;
-        return writer.write(srcs);
+        long wrote = writer.write(srcs);
+        bytesWritten += wrote;
+        return wrote;
     }
 
     @Override
     public long write(ByteBuffer[] srcs, int offset, int length) throws IOException{
         if(timeout)
             throw SOCKET_TIMEOUT_EXCEPTION;
-        return writer.write(srcs, offset, length);
+        long wrote = writer.write(srcs, offset, length);
+        bytesWritten += wrote;
+        return wrote;
     }
 
     @Override
     public long transferFrom(FileChannel src, long position, long count) throws IOException{
-        return src.transferTo(position, count, writer);
+        long wrote = src.transferTo(position, count, writer);
+        bytesWritten += wrote;
+        return wrote;
     }
 
     @Override
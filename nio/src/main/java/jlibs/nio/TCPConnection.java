@@ -82,6 +82,7 @@ public class TCPConnection extends Connection<SocketChannel>{
 
     @Override
     void closing(){
+        super.closing();
         if(server==null)
             --reactor.connected;
         else{
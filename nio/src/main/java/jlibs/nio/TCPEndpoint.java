@@ -21,15 +21,18 @@ import jlibs.core.net.SSLUtil;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSessionContext;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
 import static java.util.Objects.requireNonNull;
-import static jlibs.nio.Debugger.DEBUG;
-import static jlibs.nio.Debugger.println;
 
 /**
  * @author Santhosh Kumar Tekuri
@@ -82,6 +85,39 @@ public class TCPEndpoint{
 
     public SSLContext sslContext;
 
+    /** protocols negotiated using ALPN in order of preference, for example "h2", "http/1.1" */
+    public String applicationProtocols[];
+
+    // sslContext whose client session context is already tuned
+    private SSLContext tunedContext;
+
+    private static void tuneClientSessions(SSLContext sslContext){
+        if(CLIENT_SESSION_CACHE_SIZE<0 && CLIENT_SESSION_TIMEOUT<0)
+            return;
+        SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+        if(CLIENT_SESSION_CACHE_SIZE>=0)
+            sessionContext.setSessionCacheSize(CLIENT_SESSION_CACHE_SIZE);
+        if(CLIENT_SESSION_TIMEOUT>=0)
+            sessionContext.setSessionTimeout(CLIENT_SESSION_TIMEOUT);
+    }
+
+    private SSLEngine createSSLEngine(boolean clientMode){
+        SSLEngine engine;
+        if(clientMode){
+            // peer host and port allow SSLContext to resume session of earlier connection
+            engine = sslContext.createSSLEngine(host, port);
+            if(tunedContext!=sslContext){
+                tuneClientSessions(sslContext);
+                tunedContext = sslContext;
+            }
+        }else
+            engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(clientMode);
+        if(applicationProtocols!=null)
+            SSLSocket.setApplicationProtocols(engine, applicationProtocols);
+        return engine;
+    }
+
     @Override
     public final String toString(){
         return toString;
@@ -93,9 +129,7 @@ public class TCPEndpoint{
             public void accept(TCPConnection con){
                 try{
                     if(sslContext!=null){
-                        SSLEngine engine = sslContext.createSSLEngine();
-                        engine.setUseClientMode(false);
-                        new SSLSocket(con.in(), con.out(), engine);
+                        new SSLSocket(con.in(), con.out(), createSSLEngine(false));
                     }
                 }catch(Throwable thr){
                     Reactor.current().handleException(thr);
@@ -119,31 +153,14 @@ public class TCPEndpoint{
         return server;
     }
 
+    /** max idle connections to this endpoint in each reactor's pool. -1 means ConnectionPool.maxIdle */
+    public int maxIdle = -1;
+
+    /** max open connections to this endpoint from each reactor. -1 means ConnectionPool.maxTotal */
+    public int maxTotal = -1;
+
     public void getConnection(Consumer<Result<Connection>> listener, Proxy proxy){
-        Reactor reactor = Reactor.current();
-        while(true){
-            Connection con = reactor.connectionPool.remove(toString());
-            if(con==null)
-                break;
-            ByteBuffer buffer = reactor.allocator.allocate(1);
-            int read = -1;
-            try{
-                read = con.in().read(buffer);
-            }catch(Throwable ignore){
-                // ignore.printStackTrace();
-            }
-            reactor.allocator.free(buffer);
-            assert read<=0;
-            if(read==-1){
-                if(DEBUG)
-                    println(con+".isBroken=true");
-                con.close();
-            }else{
-                listener.accept(new Result<>(con));
-                return;
-            }
-        }
-        newConnection(listener, proxy);
+        Reactor.current().connectionPool.getConnection(this, listener, proxy);
     }
 
     public void newConnection(Consumer<Result<Connection>> listener, Proxy proxy){
@@ -160,10 +177,15 @@ public class TCPEndpoint{
         }
 
         public void start(){
+            Reactor.current().dnsResolver.resolve(host, this::connect);
+        }
+
+        private void connect(Result<InetAddress> address){
             TCPConnector connector = null;
             try{
+                InetSocketAddress socketAddress = new InetSocketAddress(address.get(), port);
                 connector = new TCPConnector();
-                connector.connect(socketAddress(), this);
+                connector.connect(socketAddress, this);
             }catch(Throwable thr){
                 if(connector!=null)
                     connector.close();
@@ -183,9 +205,8 @@ public class TCPEndpoint{
             }
             try{
                 if(sslContext!=null){
-                    SSLEngine engine = sslContext.createSSLEngine();
-                    engine.setUseClientMode(true);
-                    new SSLSocket(con.in(), con.out(), engine);
+                    SSLSocket ssl = new SSLSocket(con.in(), con.out(), createSSLEngine(true));
+                    ssl.sessionStats = SESSIONS.get(toString);
                 }
             }catch(Throwable thr){
                 con.shutdown();
@@ -195,4 +216,91 @@ public class TCPEndpoint{
             listener.accept(new Result<>(con));
         }
     }
+
+    /*-------------------------------------------------[ Session Resumption ]---------------------------------------------------*/
+
+    static final class SessionStats{
+        final AtomicLong handshakes = new AtomicLong();
+        final AtomicLong resumed = new AtomicLong();
+
+        void handshakeFinished(boolean resumed){
+            handshakes.incrementAndGet();
+            if(resumed)
+                this.resumed.incrementAndGet();
+        }
+
+        double resumptionRate(){
+            long count = handshakes.get();
+            return count==0 ? 0 : (double)resumed.get()/count;
+        }
+    }
+
+    static final Sessions SESSIONS = new Sessions();
+
+    /** handshake stats of outbound connections, per host:port */
+    static final class Sessions implements Management.SSLSessionsMXBean{
+        private final SessionStats total = new SessionStats();
+        private final Map<String, SessionStats> endpoints = new LinkedHashMap<String, SessionStats>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SessionStats> eldest){
+                return size()>SESSION_STATS_LIMIT;
+            }
+        };
+
+        synchronized SessionStats get(String endpoint){
+            return endpoints.computeIfAbsent(endpoint, key -> new SessionStats());
+        }
+
+        void handshakeFinished(SessionStats stats, boolean resumed){
+            stats.handshakeFinished(resumed);
+            total.handshakeFinished(resumed);
+        }
+
+        @Override
+        public long getHandshakes(){
+            return total.handshakes.get();
+        }
+
+        @Override
+        public long getResumed(){
+            return total.resumed.get();
+        }
+
+        @Override
+        public double getResumptionRate(){
+            return total.resumptionRate();
+        }
+
+        @Override
+        public synchronized Map<String, Double> getResumptionRates(){
+            Map<String, Double> map = new HashMap<>();
+            for(Map.Entry<String, SessionStats> entry: endpoints.entrySet())
+                map.put(entry.getKey(), entry.getValue().resumptionRate());
+            return map;
+        }
+
+        @Override
+        public synchronized Map<String, Long> getResumedHandshakes(){
+            Map<String, Long> map = new HashMap<>();
+            for(Map.Entry<String, SessionStats> entry: endpoints.entrySet())
+                map.put(entry.getKey(), entry.getValue().resumed.get());
+            return map;
+        }
+    }
+
+    /*-------------------------------------------------[ Options ]---------------------------------------------------*/
+
+    /**
+     * size of client session cache of SSLContext used for outbound connections.
+     * JDK caches one session per peer host:port, so this bounds the number of
+     * endpoints whose session can be resumed. SSLContext is shared, so this is
+     * applied once per assigned sslContext. negative value leaves SSLContext as is
+     */
+    public static int CLIENT_SESSION_CACHE_SIZE = -1;
+
+    /** timeout in seconds of cached client sessions. negative value leaves SSLContext as is */
+    public static int CLIENT_SESSION_TIMEOUT = -1;
+
+    /** number of endpoints, whose resumption stats are tracked */
+    public static int SESSION_STATS_LIMIT = 100;
 }
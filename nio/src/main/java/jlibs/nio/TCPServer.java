@@ -19,11 +19,15 @@ import javax.management.ObjectName;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import static jlibs.nio.Debugger.DEBUG;
 import static jlibs.nio.Debugger.println;
@@ -35,26 +39,84 @@ public class TCPServer extends NBChannel<ServerSocketChannel>{
     private static final AtomicInteger COUNTER = new AtomicInteger();
 
     public final long id = COUNTER.incrementAndGet();
+    public final Mode mode;
+
+    /**
+     * channel per reactor id. In SHARED mode all entries are same
+     * channel, in ACCEPTOR mode only acceptor's entry is non-null
+     */
+    private final ServerSocketChannel selectables[];
+    private final Reactor acceptor;
+    private final AtomicIntegerArray handingOff;
+
     public TCPServer(Listener listener) throws IOException{
+        this(listener, MODE);
+    }
+
+    public TCPServer(Listener listener, Mode mode) throws IOException{
         super(ServerSocketChannel.open());
+        List<Reactor> reactors = Reactors.get();
+        if(mode==Mode.REUSE_PORT && (reactors.size()==1 || !isReusePortSupported()))
+            mode = reactors.size()==1 ? Mode.SHARED : Mode.ACCEPTOR;
+        this.mode = mode;
+        this.listener = listener;
+        uniqueID = "S"+id;
 
-        for(Reactor reactor: Reactors.get()){
-            reactor.invokeLater(() -> {
-                try{
-                    reactor.register(this);
-                }catch(IOException ex){
-                    reactor.handleException(ex);
+        selectables = new ServerSocketChannel[reactors.size()];
+        if(mode==Mode.ACCEPTOR){
+            acceptor = reactors.get((int)(id%reactors.size()));
+            selectables[acceptor.id] = selectable;
+            handingOff = new AtomicIntegerArray(reactors.size());
+        }else{
+            acceptor = null;
+            handingOff = null;
+            try{
+                for(int i=0; i<selectables.length; i++){
+                    if(i==0 || mode==Mode.SHARED)
+                        selectables[i] = selectable;
+                    else{
+                        selectables[i] = ServerSocketChannel.open();
+                        selectables[i].configureBlocking(false);
+                    }
+                    if(mode==Mode.REUSE_PORT)
+                        selectables[i].setOption(SO_REUSEPORT, true);
                 }
-            });
+            }catch(IOException ex){
+                shutdown();
+                throw ex;
+            }
         }
-        this.listener = listener;
-        uniqueID = "S"+id;
+    }
+
+    ServerSocketChannel selectable(Reactor reactor){
+        return selectables[reactor.id];
     }
 
     private ObjectName objName;
     @Trace(condition=Debugger.DEBUG, args="$1")
     public TCPServer bind(SocketAddress local) throws IOException{
         selectable.bind(local, BACKLOG);
+        if(mode==Mode.REUSE_PORT){
+            // all channels must share the port actually bound, in case local used port 0
+            SocketAddress boundTo = boundTo();
+            for(ServerSocketChannel channel: selectables){
+                if(channel!=selectable)
+                    channel.bind(boundTo, BACKLOG);
+            }
+        }
+
+        // unbound channel is reported as acceptable, so register only after bind
+        for(Reactor reactor: Reactors.get()){
+            if(selectable(reactor)!=null){
+                reactor.invokeLater(() -> {
+                    try{
+                        reactor.register(this);
+                    }catch(IOException ex){
+                        reactor.handleException(ex);
+                    }
+                });
+            }
+        }
         String boundToStr = ((InetSocketAddress)local).getHostString();
         int port = ((InetSocketAddress)local).getPort();
         objName = Management.register(new Management.ServerMXBean(){
@@ -100,10 +162,71 @@ public class TCPServer extends NBChannel<ServerSocketChannel>{
 
     @Override
     protected void process(boolean timeout){
+        Reactor reactor = Reactor.current();
+        SocketChannel socket;
         try{
-            SocketChannel socket = selectable.accept();
-            if(socket==null)
+            socket = selectable(reactor).accept();
+        }catch(IOException ex){
+            reactor.handleException(ex);
+            return;
+        }
+        if(socket==null)
+            return;
+        if(mode==Mode.ACCEPTOR){
+            Reactor target = leastLoaded();
+            if(target!=reactor){
+                if(DEBUG)
+                    println(this+".handOff("+target+")");
+                handingOff.incrementAndGet(target.id);
+                target.invokeLater(() -> {
+                    handingOff.decrementAndGet(target.id);
+                    accepted(socket);
+                });
                 return;
+            }
+        }
+        accepted(socket);
+    }
+
+    /**
+     * stops or resumes accepting connections in current reactor. while stopped,
+     * new connections wait in listen backlog. no-op in a reactor which does
+     * not select this server, for example non-acceptor reactor in ACCEPTOR mode
+     */
+    public void setAccepting(boolean accepting){
+        Reactor reactor = Reactor.current();
+        ServerSocketChannel selectable = selectable(reactor);
+        if(selectable==null)
+            return;
+        SelectionKey key = selectable.keyFor(reactor.selector);
+        if(key!=null && key.isValid()){
+            if(DEBUG)
+                println(this+".setAccepting("+accepting+")");
+            key.interestOps(accepting ? SelectionKey.OP_ACCEPT : 0);
+        }
+    }
+
+    private Reactor leastLoaded(){
+        // accepted counts inbound connections, connected counts outbound ones
+        // made by request handlers. both compete for the same reactor thread
+        Reactor leastLoaded = null;
+        int minLoad = Integer.MAX_VALUE;
+        for(Reactor reactor: Reactors.get()){
+            int load = reactor.getAccepted()+reactor.getConnected()+handingOff.get(reactor.id);
+            if(load<minLoad || (load==minLoad && reactor==acceptor)){
+                leastLoaded = reactor;
+                minLoad = load;
+            }
+        }
+        return leastLoaded;
+    }
+
+    private void accepted(SocketChannel socket){
+        try{
+            if(!isOpen()){
+                socket.close();
+                return;
+            }
             TCPConnection connection;
             try{
                 connection = new TCPConnection(this, socket);
@@ -125,6 +248,10 @@ public class TCPServer extends NBChannel<ServerSocketChannel>{
         List<Reactor> reactors = Reactors.get();
         CountDownLatch latch = new CountDownLatch(reactors.size());
         for(Reactor reactor: reactors){
+            if(selectable(reactor)==null){
+                latch.countDown();
+                continue;
+            }
             reactor.invokeLater(() -> {
                 try{
                     reactor.unregister(this);
@@ -142,6 +269,24 @@ public class TCPServer extends NBChannel<ServerSocketChannel>{
         Management.unregister(objName);
     }
 
+    @Override
+    public void shutdown(){
+        super.shutdown();
+        if(mode==Mode.REUSE_PORT){
+            for(ServerSocketChannel channel: selectables){
+                if(channel!=null && channel!=selectable){
+                    try{
+                        channel.close();
+                    }catch(IOException ex){
+                        // shutdown can be called from any thread
+                        Reactor reactor = Reactor.current();
+                        (reactor==null ? Reactors.get().get(0) : reactor).handleException(ex);
+                    }
+                }
+            }
+        }
+    }
+
     @Override
     public String getExecutionID(){
         return Reactor.current().executionID+'/'+uniqueID;
@@ -159,4 +304,47 @@ public class TCPServer extends NBChannel<ServerSocketChannel>{
     /*-------------------------------------------------[ Options ]---------------------------------------------------*/
 
     public static int BACKLOG = 0;
+
+    public enum Mode{
+        /** single listening socket registered with every reactor */
+        SHARED,
+
+        /**
+         * listening socket per reactor bound with SO_REUSEPORT, so that
+         * kernel distributes incoming connections among reactors.
+         * falls back to ACCEPTOR, if SO_REUSEPORT is not supported
+         */
+        REUSE_PORT,
+
+        /**
+         * single listening socket registered with one reactor, which hands off
+         * each accepted connection to the least loaded reactor
+         */
+        ACCEPTOR
+    }
+    public static Mode MODE = Mode.SHARED;
+
+    /** null if running jvm has no SO_REUSEPORT (requires java 9) */
+    private static final SocketOption<Boolean> SO_REUSEPORT;
+    static{
+        SocketOption<Boolean> option = null;
+        try{
+            @SuppressWarnings("unchecked")
+            SocketOption<Boolean> reusePort = (SocketOption<Boolean>)StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            option = reusePort;
+        }catch(Exception ex){
+            // not available
+        }
+        SO_REUSEPORT = option;
+    }
+
+    public static boolean isReusePortSupported(){
+        if(SO_REUSEPORT==null)
+            return false;
+        try(ServerSocketChannel channel=ServerSocketChannel.open()){
+            return channel.supportedOptions().contains(SO_REUSEPORT);
+        }catch(IOException ex){
+            return false;
+        }
+    }
 }
@@ -104,6 +104,11 @@ public class BufferInput extends InputFilter{
         }
     }
 
+    /** returns unread bytes, without consuming them. null if there are none */
+    public ByteBuffer buffered(){
+        return src;
+    }
+
     public boolean canDetach(){
         return src==null;
     }
@@ -36,7 +36,7 @@ public class ChunkedInput extends InputFilter{
     private static final int STATE_TRAILER = 5;
     private static final int STATE_FINISHED = 6;
 
-    private static final int HEX_DIGITS[] = new int['f'+1];
+    static final int HEX_DIGITS[] = new int['f'+1];
     static{
         for(int i='0'; i<='9'; ++i)
             HEX_DIGITS[i] = i-'0';
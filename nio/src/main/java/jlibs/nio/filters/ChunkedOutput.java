@@ -113,7 +113,7 @@ public class ChunkedOutput extends OutputFilter{
         assert chunkLength!=0;
         int userLimit = src.limit();
         int min = (int)Math.min(chunkLength, src.remaining());
-        src.limit(min);
+        src.limit(src.position()+min);
 
         buffers[1] = src;
         int offset = chunkBegin.hasRemaining() ? 0 : 1;
@@ -0,0 +1,172 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+package jlibs.nio.filters;
+
+import jlibs.nio.Input;
+import jlibs.nio.InputFilter;
+import jlibs.nio.Reactor;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static jlibs.nio.filters.ChunkedInput.HEX_DIGITS;
+
+/**
+ * Reads chunked payload with its framing intact, upto and including
+ * last-chunk and trailers. Chunk content is read from peer directly
+ * into caller's buffer.
+ *
+ * Wrap with ChunkedInput to get the actual content.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public class ChunkedPassThroughInput extends InputFilter{
+    private static final int STATE_CHUNK_BEGIN = 0;
+    private static final int STATE_READ_EOL = 1;
+    private static final int STATE_CHUNK_CONTENT = 2;
+    private static final int STATE_CHUNK_END = 3;
+    private static final int STATE_TRAILER = 4;
+    private static final int STATE_FINISHED = 5;
+
+    private int state = STATE_CHUNK_BEGIN;
+    private ByteBuffer buffer = Reactor.current().allocator.allocate(18);
+    private int chunkLength = 0;
+    private int lineLength = 0;
+    public ChunkedPassThroughInput(Input peer){
+        super(peer);
+        buffer.flip();
+    }
+
+    @Override
+    protected boolean readReady(){
+        return state==STATE_FINISHED || buffer.hasRemaining();
+    }
+
+    @Override
+    public long available(){
+        return chunkLength;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException{
+        if(state==STATE_FINISHED)
+            return -1;
+        int pos = dst.position();
+        while(dst.hasRemaining()){
+            if(state==STATE_CHUNK_CONTENT){
+                if(buffer.hasRemaining()){
+                    int min = Math.min(chunkLength, Math.min(buffer.remaining(), dst.remaining()));
+                    int _limit = buffer.limit();
+                    buffer.limit(buffer.position()+min);
+                    dst.put(buffer);
+                    buffer.limit(_limit);
+                    chunkLength -= min;
+                }else{
+                    int _limit = dst.limit();
+                    dst.limit(dst.position()+Math.min(chunkLength, dst.remaining()));
+                    int peerRead;
+                    try{
+                        peerRead = peer.read(dst);
+                    }finally{
+                        dst.limit(_limit);
+                    }
+                    if(peerRead==-1)
+                        throw new EOFException(chunkLength+" more bytes expected");
+                    if(peerRead==0)
+                        break;
+                    chunkLength -= peerRead;
+                }
+                if(chunkLength==0)
+                    state = STATE_CHUNK_END;
+            }else{
+                if(!buffer.hasRemaining() && !fillBuffer())
+                    break;
+                byte b = buffer.get();
+                dst.put(b);
+                if(frame(b)){
+                    finished();
+                    break;
+                }
+            }
+        }
+        return dst.position()-pos;
+    }
+
+    // returns true if b is the last byte of payload
+    private boolean frame(byte b){
+        switch(state){
+            case STATE_CHUNK_BEGIN:
+                if((b>='0' && b<='9') || (b>='a' && b<='f') || (b>='A' && b<='F')){
+                    chunkLength <<= 4;
+                    chunkLength += HEX_DIGITS[b];
+                }else if(b=='\n')
+                    state = chunkLength==0 ? STATE_TRAILER : STATE_CHUNK_CONTENT;
+                else
+                    state = STATE_READ_EOL;
+                break;
+            case STATE_READ_EOL:
+                if(b=='\n')
+                    state = chunkLength==0 ? STATE_TRAILER : STATE_CHUNK_CONTENT;
+                break;
+            case STATE_CHUNK_END:
+                if(b=='\n')
+                    state = STATE_CHUNK_BEGIN;
+                break;
+            case STATE_TRAILER:
+                // trailers end with empty line
+                if(b=='\n'){
+                    if(lineLength==0)
+                        return true;
+                    lineLength = 0;
+                }else if(b!='\r')
+                    ++lineLength;
+                break;
+        }
+        return false;
+    }
+
+    private boolean fillBuffer() throws IOException{
+        buffer.compact();
+        int read;
+        try{
+            read = peer.read(buffer);
+        }finally{
+            buffer.flip();
+        }
+        if(read==-1)
+            throw new EOFException("unexpected end of stream");
+        return read!=0;
+    }
+
+    private void finished(){
+        state = STATE_FINISHED;
+        if(!buffer.hasRemaining()){
+            Reactor.current().allocator.free(buffer);
+            buffer = null;
+        }
+        eof = true;
+    }
+
+    @Override
+    protected ByteBuffer detached(){
+        if(!eof){
+            Reactor.current().allocator.free(buffer);
+            buffer = null;
+        }
+        return buffer;
+    }
+}
@@ -15,6 +15,7 @@
 
 package jlibs.nio.filters;
 
+import jlibs.nio.Management;
 import jlibs.nio.Output;
 import jlibs.nio.OutputFilter;
 import jlibs.nio.Reactor;
@@ -22,6 +23,7 @@ import jlibs.nio.util.NIOUtil;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.Deflater;
 
 /**
@@ -32,13 +34,28 @@ public class DeflaterOutput extends OutputFilter{
     private ByteBuffer buffer;
     private ByteBuffer tmpBuffer;
 
+    // pooled deflaters are returned to reactor's pool, others are ended
+    private final boolean pooled;
+    private final boolean nowrap;
+    private long nanos;
+
     public DeflaterOutput(Output peer){
-        this(new Deflater(), peer);
+        this(peer, false);
+    }
+
+    protected DeflaterOutput(Output peer, boolean nowrap){
+        this(Reactor.current().deflaters.allocate(LEVEL, nowrap), peer, true, nowrap);
     }
 
     public DeflaterOutput(Deflater deflater, Output peer){
+        this(deflater, peer, false, false);
+    }
+
+    private DeflaterOutput(Deflater deflater, Output peer, boolean pooled, boolean nowrap){
         super(peer);
         this.deflater = deflater;
+        this.pooled = pooled;
+        this.nowrap = nowrap;
         buffer = Reactor.current().allocator.allocateHeap();
         addHeader(buffer);
         buffer.flip();
@@ -94,7 +111,9 @@ public class DeflaterOutput extends OutputFilter{
         }
 
         while(isOpen() ? !deflater.needsInput() : !deflater.finished()){
+            long begin = System.nanoTime();
             int compressed = deflater.deflate(buffer.array(), buffer.limit(), buffer.capacity()-buffer.limit());
+            nanos += System.nanoTime()-begin;
             if(compressed>0){
                 buffer.limit(buffer.limit()+compressed);
                 if(buffer.remaining()==buffer.capacity()){
@@ -117,8 +136,8 @@ public class DeflaterOutput extends OutputFilter{
                 buffer.limit(buffer.position());
                 buffer.position(0);
                 trailerAdded = true;
-                deflater.end();
-                deflater = null;
+                STATS.streamFinished(deflater.getBytesRead(), deflater.getBytesWritten(), nanos);
+                releaseDeflater();
             }
         }
 
@@ -132,6 +151,14 @@ public class DeflaterOutput extends OutputFilter{
     }
 
 
+    private void releaseDeflater(){
+        if(pooled)
+            Reactor.current().deflaters.free(deflater, nowrap);
+        else
+            deflater.end();
+        deflater = null;
+    }
+
     @Override
     protected void _close() throws IOException{
         deflater.finish();
@@ -139,9 +166,8 @@ public class DeflaterOutput extends OutputFilter{
 
     @Override
     protected void detached(){
-        if(deflater!=null){
-            deflater.end();
-        }
+        if(deflater!=null)
+            releaseDeflater();
         if(buffer!=null){
             Reactor.current().allocator.free(buffer);
             buffer = null;
@@ -151,4 +177,81 @@ public class DeflaterOutput extends OutputFilter{
             tmpBuffer = null;
         }
     }
+
+    /*-------------------------------------------------[ Options ]---------------------------------------------------*/
+
+    /** compression level of deflaters taken from reactor's pool */
+    public static int LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+    /*-------------------------------------------------[ Stats ]---------------------------------------------------*/
+
+    public static final Stats STATS = new Stats();
+
+    public static final class Stats implements Management.CompressionMXBean{
+        private final AtomicLong streams = new AtomicLong();
+        private final AtomicLong bytesIn = new AtomicLong();
+        private final AtomicLong bytesOut = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+        private final AtomicLong precompressed = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+
+        void streamFinished(long in, long out, long nanos){
+            streams.incrementAndGet();
+            bytesIn.addAndGet(in);
+            bytesOut.addAndGet(out);
+            this.nanos.addAndGet(nanos);
+        }
+
+        /** called when response is served from already compressed content */
+        public void precompressed(){
+            precompressed.incrementAndGet();
+        }
+
+        /** called when response is not compressed, though it could be */
+        public void skipped(){
+            skipped.incrementAndGet();
+        }
+
+        @Override
+        public long getStreams(){
+            return streams.get();
+        }
+
+        @Override
+        public long getBytesIn(){
+            return bytesIn.get();
+        }
+
+        @Override
+        public long getBytesOut(){
+            return bytesOut.get();
+        }
+
+        @Override
+        public double getCompressionRatio(){
+            long out = bytesOut.get();
+            return out==0 ? 0 : (double)bytesIn.get()/out;
+        }
+
+        @Override
+        public double getCpuMillis(){
+            return nanos.get()/1000000d;
+        }
+
+        @Override
+        public double getAverageCpuMillis(){
+            long count = streams.get();
+            return count==0 ? 0 : getCpuMillis()/count;
+        }
+
+        @Override
+        public long getPrecompressed(){
+            return precompressed.get();
+        }
+
+        @Override
+        public long getSkipped(){
+            return skipped.get();
+        }
+    }
 }
@@ -27,7 +27,7 @@ import java.util.zip.GZIPInputStream;
  */
 public class GZIPOutput extends DeflaterOutput{
     public GZIPOutput(Output peer){
-        super(new Deflater(Deflater.DEFAULT_COMPRESSION, true), peer);
+        super(peer, true);
     }
 
     private static final byte[] HEADER_BYTES = {
@@ -20,6 +20,7 @@ import jlibs.nio.Reactors;
 import jlibs.nio.http.expr.Expression;
 import jlibs.nio.http.expr.Literal;
 import jlibs.nio.http.expr.TypeConversion;
+import jlibs.nio.http.expr.ValueWriter;
 import jlibs.nio.http.msg.Message;
 import jlibs.nio.http.msg.Request;
 import jlibs.nio.http.msg.Response;
@@ -89,7 +90,16 @@ public class AccessLog{
     public class Record implements LogRecord{
         private Class<? extends Exchange> owner;
         private int exchanges = 0;
-        private String values[] = new String[attributes.size()];
+
+        // values are captured into buffer, without creating String per attribute.
+        // value of i-th attribute is buffer[starts[i], ends[i]), starts[i]==-1 means null
+        private final StringBuilder buffer = new StringBuilder(256);
+        private final int starts[] = new int[attributes.size()];
+        private final int ends[] = new int[attributes.size()];
+
+        private Record(){
+            Arrays.fill(starts, -1);
+        }
 
         private LogHandler logHandler;
         public void setLogHandler(LogHandler logHandler){
@@ -101,6 +111,14 @@ public class AccessLog{
         }
 
         public String[] getValues(){
+            String values[] = new String[starts.length];
+            for(int i=0; i<values.length; i++){
+                Attribute attr = attributes.get(i);
+                if(attr.literal!=null)
+                    values[i] = attr.literal;
+                else if(starts[i]!=-1)
+                    values[i] = buffer.substring(starts[i], ends[i]);
+            }
             return values;
         }
 
@@ -109,24 +127,23 @@ public class AccessLog{
                 owner = exchange.getClass();
             if(msg instanceof Request)
                 ++exchanges;
-            for(int i=0; i<values.length; i++){
+            for(int i=0; i<starts.length; i++){
                 Attribute attr = attributes.get(i);
-                if(!attr.captureOnFinish && attr.isApplicable(exchange, msg))
-                    values[i] = attr.getValue(exchange);
+                if(attr.literal==null && !attr.captureOnFinish && attr.isApplicable(exchange, msg))
+                    capture(i, attr, exchange);
             }
         }
 
         public void finished(Exchange exchange){
             --exchanges;
-            for(int i=0; i<values.length; i++){
+            for(int i=0; i<starts.length; i++){
                 Attribute attr = attributes.get(i);
                 if(attr.captureOnFinish && attr.isApplicable(exchange)){
-                    String value = attr.getValue(exchange);
-                    if(value!=null){
-                        if(values[i]!=null)
-                            value = Long.toString(Long.parseLong(values[i]) + Long.parseLong(value));
-                    }
-                    values[i] = value;
+                    int prevStart = starts[i];
+                    int prevEnd = ends[i];
+                    capture(i, attr, exchange);
+                    if(prevStart!=-1 && starts[i]!=-1)
+                        sum(i, prevStart, prevEnd);
                 }
             }
             if(exchanges==0){
@@ -136,18 +153,70 @@ public class AccessLog{
             }
         }
 
+        private void capture(int i, Attribute attr, Exchange exchange){
+            int start = buffer.length();
+            if(attr.writer.write(exchange, buffer)){
+                starts[i] = start;
+                ends[i] = buffer.length();
+            }else{
+                buffer.setLength(start);
+                starts[i] = -1;
+            }
+        }
+
+        // replaces i-th value with sum of previous and current value, if both are numbers
+        private void sum(int i, int prevStart, int prevEnd){
+            int start = starts[i];
+            int end = ends[i];
+            if(isLong(prevStart, prevEnd) && isLong(start, end)){
+                long sum = parseLong(prevStart, prevEnd) + parseLong(start, end);
+                buffer.setLength(start);
+                buffer.append(sum);
+                ends[i] = buffer.length();
+            }
+        }
+
+        private boolean isLong(int start, int end){
+            if(start<end && buffer.charAt(start)=='-')
+                ++start;
+            if(start==end || end-start>18)
+                return false;
+            while(start<end){
+                char ch = buffer.charAt(start++);
+                if(ch<'0' || ch>'9')
+                    return false;
+            }
+            return true;
+        }
+
+        private long parseLong(int start, int end){
+            boolean negative = buffer.charAt(start)=='-';
+            if(negative)
+                ++start;
+            long value = 0;
+            while(start<end)
+                value = value*10 + (buffer.charAt(start++)-'0');
+            return negative ? -value : value;
+        }
+
         public void reset(){
             owner = null;
             exchanges = 0;
             logHandler = null;
-            Arrays.fill(values, null);
+            buffer.setLength(0);
+            Arrays.fill(starts, -1);
         }
 
         @Override
         public void publishTo(Appendable writer) throws IOException{
-            for(int i=0; i<values.length; i++){
-                writer.append(values[i]==null ? "-" : values[i]);
-                values[i] = null;
+            for(int i=0; i<starts.length; i++){
+                Attribute attr = attributes.get(i);
+                if(attr.literal!=null)
+                    writer.append(attr.literal);
+                else if(starts[i]==-1)
+                    writer.append('-');
+                else
+                    writer.append(buffer, starts[i], ends[i]);
             }
             writer.append(FileUtil.LINE_SEPARATOR);
         }
@@ -159,9 +228,13 @@ public class AccessLog{
         public final Class exchangeType;
         public final Class messageType;
         public final boolean captureOnFinish;
-        private Expression expr;
+        public final String literal;
+        private final Expression expr;
+        private final ValueWriter writer;
         protected Attribute(Expression expr, Class exchangeType, Class messageType, boolean captureOnFinish){
             this.expr = expr;
+            writer = ValueWriter.compile(expr);
+            literal = expr instanceof Literal ? TypeConversion.toString(((Literal)expr).value) : null;
             this.exchangeType = exchangeType;
             this.messageType = messageType;
             this.captureOnFinish = captureOnFinish;
@@ -171,10 +244,6 @@ public class AccessLog{
             this(new Literal(literal), null, Request.class, false);
         }
 
-        public String getValue(Exchange exchange){
-            return TypeConversion.toString(expr.evaluate(exchange));
-        }
-
         public boolean isApplicable(Exchange exchange){
             return exchangeType==null || exchangeType==exchange.getClass();
         }
@@ -0,0 +1,324 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+package jlibs.nio.http;
+
+import jlibs.nio.Management;
+import jlibs.nio.Reactor;
+import jlibs.nio.Reactors;
+import jlibs.nio.TCPServer;
+import jlibs.nio.http.msg.AsciiString;
+import jlibs.nio.http.msg.Response;
+import jlibs.nio.http.msg.Status;
+import jlibs.nio.http.util.USAscii;
+import jlibs.nio.util.Histogram;
+
+import javax.management.ObjectName;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Concurrency limit on requests in flight, adapted per reactor from observed latency.
+ *
+ * Latency of admitted request is measured from this filter till its response
+ * is written. Once per window, average latency is compared with its long term
+ * average. When it grows beyond tolerance, requests are queueing somewhere and
+ * limit is reduced proportionally, otherwise limit is probed upwards.
+ *
+ * Requests beyond limit are answered with pre-serialized 503 and connection is
+ * closed, without running other filters and listener. While a reactor is at its
+ * limit, it also stops accepting new connections, leaving them in listen backlog.
+ *
+ * Must be first in HTTPServer.requestFilters. Requires Reactors to be started.
+ * Registered as MXBean "jlibs.nio:type=AdmissionControl,name=&lt;name&gt;".
+ *
+ * @author Santhosh Kumar Tekuri
+ *
+ * Server Request Filter
+ */
+public class AdmissionControl implements ServerFilter, Management.AdmissionControlMXBean{
+    public final String name;
+    private final Limiter limiters[];
+    private final Histogram latency = new Histogram();
+    private final ObjectName objName;
+
+    public AdmissionControl(String name){
+        this.name = name;
+        limiters = new Limiter[Reactors.get().size()];
+        objName = Management.register(this, "jlibs.nio:type=AdmissionControl,name="+ObjectName.quote(name));
+    }
+
+    public void close(){
+        Management.unregister(objName);
+    }
+
+    private Limiter limiter(){
+        int id = Reactor.current().id;
+        Limiter limiter = limiters[id];
+        if(limiter==null)
+            limiters[id] = limiter = new Limiter(initialLimit);
+        return limiter;
+    }
+
+    @Override
+    public boolean filter(ServerExchange exchange, FilterType type) throws Exception{
+        assert type==FilterType.REQUEST;
+        Limiter limiter = limiter();
+        if(limiter.inFlight>=(int)limiter.limit){
+            ++limiter.shed;
+            stopAccepting(limiter, exchange.server.server);
+            if(exchange.shed(rejection()))
+                return true;
+            throw Status.SERVICE_UNAVAILABLE;
+        }
+        ++limiter.admitted;
+        if(++limiter.inFlight>limiter.maxInFlight)
+            limiter.maxInFlight = limiter.inFlight;
+        if(limiter.inFlight>=(int)limiter.limit)
+            stopAccepting(limiter, exchange.server.server);
+        exchange.admission = this;
+        exchange.admittedAt = System.nanoTime();
+        return true;
+    }
+
+    void completed(ServerExchange exchange, long admittedAt){
+        long now = System.nanoTime();
+        long nanos = now-admittedAt;
+        latency.record(nanos/1000);
+
+        Limiter limiter = limiter();
+        --limiter.inFlight;
+        limiter.windowSum += nanos;
+        if(++limiter.windowCount>=windowSamples && now-limiter.windowStart>=window*1000000L){
+            adjust(limiter);
+            limiter.windowStart = now;
+            limiter.windowSum = 0;
+            limiter.windowCount = 0;
+            limiter.maxInFlight = limiter.inFlight;
+        }
+        if(limiter.stopped!=null && limiter.inFlight<(int)limiter.limit)
+            startAccepting(limiter);
+    }
+
+    /** exchange ended without response, so its latency says nothing about server */
+    void aborted(ServerExchange exchange){
+        Limiter limiter = limiter();
+        --limiter.inFlight;
+        if(limiter.stopped!=null && limiter.inFlight<(int)limiter.limit)
+            startAccepting(limiter);
+    }
+
+    private void adjust(Limiter limiter){
+        double shortLatency = (double)limiter.windowSum/limiter.windowCount;
+        if(limiter.longLatency==0)
+            limiter.longLatency = shortLatency;
+        else{
+            limiter.longLatency += (shortLatency-limiter.longLatency)/LONG_WINDOWS;
+            // let long term latency recover, once queueing is gone
+            if(limiter.longLatency>2*shortLatency)
+                limiter.longLatency *= 0.95;
+        }
+
+        // limit is not the bottleneck, latency says nothing about it
+        if(limiter.maxInFlight<limiter.limit/2)
+            return;
+
+        double gradient = Math.max(0.5, Math.min(1.0, tolerance*limiter.longLatency/shortLatency));
+        double newLimit = limiter.limit*gradient+Math.sqrt(limiter.limit);
+        newLimit = limiter.limit*(1-smoothing)+newLimit*smoothing;
+        limiter.limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+    }
+
+    private void stopAccepting(Limiter limiter, TCPServer server){
+        if(!deferAccepts || server==null)
+            return;
+        if(limiter.stopped==null)
+            limiter.stopped = new ArrayList<>();
+        if(!limiter.stopped.contains(server)){
+            limiter.stopped.add(server);
+            server.setAccepting(false);
+        }
+    }
+
+    private void startAccepting(Limiter limiter){
+        for(TCPServer server: limiter.stopped){
+            if(server.isOpen())
+                server.setAccepting(true);
+        }
+        limiter.stopped = null;
+    }
+
+    private static final int LONG_WINDOWS = 100;
+
+    /** state of a reactor, accessed only from its thread */
+    private static final class Limiter{
+        double limit;
+        int inFlight;
+        int maxInFlight;
+        long admitted;
+        long shed;
+
+        double longLatency;
+        long windowStart = System.nanoTime();
+        long windowSum;
+        int windowCount;
+
+        List<TCPServer> stopped;
+
+        Limiter(int limit){
+            this.limit = limit;
+        }
+    }
+
+    /*-------------------------------------------------[ Rejection ]---------------------------------------------------*/
+
+    private static final AsciiString RETRY_AFTER = new AsciiString("Retry-After");
+
+    private volatile ByteBuffer rejection;
+    private ByteBuffer rejection(){
+        ByteBuffer buffer = rejection;
+        if(buffer==null){
+            Response response = new Response();
+            response.status = Status.SERVICE_UNAVAILABLE;
+            response.setKeepAlive(false);
+            response.setContentLength(0);
+            if(retryAfter>0)
+                response.headers.set(RETRY_AFTER, String.valueOf(retryAfter));
+            String string = response.toString();
+            buffer = ByteBuffer.allocateDirect(string.length());
+            USAscii.append(buffer, string);
+            buffer.flip();
+            rejection = buffer;
+        }
+        return buffer.duplicate();
+    }
+
+    /*-------------------------------------------------[ MXBean ]---------------------------------------------------*/
+
+    // read without synchronization, so values may be slightly stale
+
+    @Override
+    public int getLimit(){
+        int sum = 0;
+        for(Limiter limiter: limiters){
+            if(limiter!=null)
+                sum += (int)limiter.limit;
+        }
+        return sum;
+    }
+
+    @Override
+    public int getInFlight(){
+        int sum = 0;
+        for(Limiter limiter: limiters){
+            if(limiter!=null)
+                sum += limiter.inFlight;
+        }
+        return sum;
+    }
+
+    @Override
+    public long getAdmitted(){
+        long sum = 0;
+        for(Limiter limiter: limiters){
+            if(limiter!=null)
+                sum += limiter.admitted;
+        }
+        return sum;
+    }
+
+    @Override
+    public long getShed(){
+        long sum = 0;
+        for(Limiter limiter: limiters){
+            if(limiter!=null)
+                sum += limiter.shed;
+        }
+        return sum;
+    }
+
+    @Override
+    public int getAcceptPaused(){
+        int count = 0;
+        for(Limiter limiter: limiters){
+            if(limiter!=null && limiter.stopped!=null)
+                ++count;
+        }
+        return count;
+    }
+
+    @Override
+    public Map<String, Integer> getLimits(){
+        Map<String, Integer> map = new LinkedHashMap<>();
+        for(int i=0; i<limiters.length; i++){
+            Limiter limiter = limiters[i];
+            if(limiter!=null)
+                map.put("R"+i, (int)limiter.limit);
+        }
+        return map;
+    }
+
+    @Override
+    public Map<String, Double> getLatency(){
+        return latency.snapshot().summary(1000);
+    }
+
+    @Override
+    public void reset(){
+        latency.reset();
+        for(Limiter limiter: limiters){
+            if(limiter!=null)
+                limiter.admitted = limiter.shed = 0;
+        }
+    }
+
+    /*-------------------------------------------------[ Options ]---------------------------------------------------*/
+
+    /** limit per reactor, till latency is observed */
+    public int initialLimit = Defaults.INITIAL_LIMIT;
+    public int minLimit = Defaults.MIN_LIMIT;
+    public int maxLimit = Defaults.MAX_LIMIT;
+
+    /** latency within tolerance times its long term average is not treated as queueing */
+    public double tolerance = Defaults.TOLERANCE;
+
+    /** weight of newly computed limit, between 0 and 1 */
+    public double smoothing = Defaults.SMOOTHING;
+
+    /** limit is adjusted at most once in window milliseconds, with atleast windowSamples latencies */
+    public long window = Defaults.WINDOW;
+    public int windowSamples = Defaults.WINDOW_SAMPLES;
+
+    /** seconds sent in Retry-After header of 503 response. 0 omits the header */
+    public int retryAfter = Defaults.RETRY_AFTER;
+
+    /** whether reactor at its limit stops accepting connections */
+    public boolean deferAccepts = Defaults.DEFER_ACCEPTS;
+
+    public static class Defaults{
+        public static int INITIAL_LIMIT = 20;
+        public static int MIN_LIMIT = 4;
+        public static int MAX_LIMIT = 1000;
+        public static double TOLERANCE = 1.5;
+        public static double SMOOTHING = 0.2;
+        public static long WINDOW = 100;
+        public static int WINDOW_SAMPLES = 10;
+        public static int RETRY_AFTER = 1;
+        public static boolean DEFER_ACCEPTS = true;
+    }
+}
@@ -18,6 +18,7 @@ package jlibs.nio.http;
 import jlibs.nio.*;
 import jlibs.nio.filters.CloseTrackingInput;
 import jlibs.nio.filters.TrackingInput;
+import jlibs.nio.http.msg.Header;
 import jlibs.nio.http.msg.Method;
 import jlibs.nio.http.msg.Request;
 import jlibs.nio.http.msg.Response;
@@ -26,8 +27,11 @@ import jlibs.nio.http.msg.parser.ResponseParser;
 import jlibs.nio.http.util.Expect;
 import jlibs.nio.listeners.IOListener;
 
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 
 import static java.nio.channels.SelectionKey.OP_WRITE;
 import static jlibs.nio.Debugger.HTTP;
@@ -50,14 +54,28 @@ public class ClientExchange extends Exchange{
     private AccessLog accessLog;
     private AccessLog.Record accessLogRecord;
 
+    protected ClientExchange(HTTPClient client, UpstreamGroup group){
+        this(client, (TCPEndpoint)null);
+        this.group = group;
+    }
+
     protected ClientExchange(HTTPClient client, TCPEndpoint endpoint){
+        this(client, endpoint, null);
+    }
+
+    // attempt of hedged exchange leaves stats and access log to its main exchange
+    private ClientExchange(HTTPClient client, TCPEndpoint endpoint, ClientExchange main){
         super(client.maxResponseHeadSize, new ResponseParser(), OP_WRITE);
         this.client = client;
         this.endpoint = endpoint;
+        this.main = main;
+        readMessage.preserveChunks = client.preserveChunks;
+        stats = main==null ? client.stats : null;
+        hedging = main==null ? client.hedging : null;
         requestFilters=  client.requestFilters;
         responseFilters = client.responseFilters;
 
-        accessLog = client.accessLog;
+        accessLog = main==null ? client.accessLog : null;
         if(accessLog!=null){
             accessLogRecord = accessLog.records.allocate();
             accessLogRecord.setLogHandler(client.logHandler);
@@ -118,6 +136,8 @@ public class ClientExchange extends Exchange{
                             if(request.getExpectation()==Expect.CONTINUE_100)
                                 continue100Expected = true;
                         }
+                        if(stats!=null)
+                            markStream();
                         writeMessage.reset(request, null, !continue100Expected);
                         if(accessLog!=null)
                             accessLogRecord.process(this, request);
@@ -184,6 +204,12 @@ public class ClientExchange extends Exchange{
                                 in = null;
                                 out = null;
                             }
+                            if(upstream!=null){
+                                group.completed(upstream, group.failed(this));
+                                upstream = group.upstream(retry);
+                                if(upstream!=null)
+                                    group.started(upstream);
+                            }
                             endpoint = retry;
                             retry = null;
                             state = PREPARE_REQUEST_FILTERS;
@@ -220,12 +246,31 @@ public class ClientExchange extends Exchange{
             println(this+".execute{");
         user = listener;
         assert state==PREPARE_REQUEST_FILTERS;
-        process(OP_WRITE);
+        if(stats!=null)
+            startedAt = System.nanoTime();
+        if(hedging!=null)
+            startAttempts();
+        else{
+            if(group!=null && upstream==null){
+                upstream = group.select(null);
+                endpoint = upstream.endpoint;
+                group.started(upstream);
+            }
+            process(OP_WRITE);
+        }
         if(HTTP)
             println("}");
     }
 
     private void connectCompleted(Result<Connection> result){
+        if(state==CLOSED){ // cancelled attempt
+            try{
+                result.get().close();
+            }catch(Throwable ignore){
+                // no connection to release
+            }
+            return;
+        }
         try{
             Connection con = result.get();
             connectionStatus = ConnectionStatus.OPEN;
@@ -234,6 +279,19 @@ public class ClientExchange extends Exchange{
                 println("state = "+state);
             new IOListener().start(this, con);
         }catch(Throwable thr){
+            if(upstream!=null && ++connectAttempts<group.maxConnectAttempts){
+                UpstreamGroup.Upstream next = group.select(upstream);
+                if(next!=null){
+                    if(HTTP)
+                        println("failover("+next+")");
+                    group.completed(upstream, true);
+                    upstream = next;
+                    endpoint = next.endpoint;
+                    group.started(upstream);
+                    endpoint.getConnection(this::connectCompleted, client.proxy);
+                    return;
+                }
+            }
             setError(thr);
             process(0);
         }
@@ -258,6 +316,8 @@ public class ClientExchange extends Exchange{
                 Reactor.current().handleException(thr1);
             }
         }
+        if(stats!=null && thr==null && firstByteAt==0)
+            firstByteAt = System.nanoTime();
         if(thr==null){
             if(continue100Expected && Status.CONTINUE.equals(response.status))
                 state = SEND_REQUEST_PAYLOAD;
@@ -323,9 +383,17 @@ public class ClientExchange extends Exchange{
 
     @Trace(condition=HTTP)
     private void notifyCallback(){
+        if(upstream!=null){
+            group.completed(upstream, group.failed(this));
+            upstream = null;
+        }
         try{
             if(accessLog!=null)
                 accessLogRecord.finished(this);
+            if(stats!=null){
+                markStream();
+                stats.record(this, startedAt, firstByteAt, bytesIn, bytesOut);
+            }
         }catch(Throwable thr){
             Reactor.current().handleException(thr);
         }
@@ -344,6 +412,39 @@ public class ClientExchange extends Exchange{
     public void close(){
         super.close();
         state = CLOSED;
+        if(attempts!=null){
+            finished = true;
+            cancelTimers();
+            cancelAttempts();
+            if(winner!=null)
+                winner.close();
+        }
+    }
+
+    /*-------------------------------------------------[ Stats ]---------------------------------------------------*/
+
+    private final HTTPStats stats;
+    private long startedAt;
+    private long firstByteAt;
+
+    // bytes of all connections used, including redirects
+    private NBStream stream;
+    private long bytesReadMark;
+    private long bytesWrittenMark;
+    private long bytesIn;
+    private long bytesOut;
+
+    /** adds bytes transferred on previous connection, and marks current connection */
+    private void markStream(){
+        if(stream!=null){
+            bytesIn += stream.bytesRead()-bytesReadMark;
+            bytesOut += stream.bytesWritten()-bytesWrittenMark;
+        }
+        stream = in==null ? null : in.channel();
+        if(stream!=null){
+            bytesReadMark = stream.bytesRead();
+            bytesWrittenMark = stream.bytesWritten();
+        }
     }
 
     @Override
@@ -353,6 +454,8 @@ public class ClientExchange extends Exchange{
 
     @Override
     public Connection stealConnection(){
+        if(winner!=null)
+            return winner.stealConnection();
         if(in==null)
             return null;
         if(HTTP)
@@ -376,6 +479,237 @@ public class ClientExchange extends Exchange{
             println("retry("+retry+")");
     }
 
+    /*-------------------------------------------------[ UpstreamGroup ]---------------------------------------------------*/
+
+    private UpstreamGroup group;
+    private UpstreamGroup.Upstream upstream;
+    private int connectAttempts;
+
+    /** null if this exchange is not created for UpstreamGroup */
+    public UpstreamGroup getUpstreamGroup(){
+        return group;
+    }
+
+    /**
+     * retries with another upstream of group. returns false if this exchange
+     * is not created for UpstreamGroup, or group has no other upstream
+     */
+    public boolean failover(){
+        if(group==null)
+            return false;
+        UpstreamGroup.Upstream next = group.select(upstream);
+        if(next==null)
+            return false;
+        retry(next.endpoint);
+        return true;
+    }
+
+    /*-------------------------------------------------[ Hedging ]---------------------------------------------------*/
+
+    private final Hedging hedging;
+
+    // of hedged exchange
+    private boolean hedgeable;
+    private Request original; // taken before filters of first attempt modify request
+    private Reactor.Cancellable deadlineTimer, hedgeTimer;
+    private List<ClientExchange> attempts;
+    private int activeAttempts;
+    private ClientExchange winner;
+    private boolean finished;
+
+    // of attempt
+    private final ClientExchange main;
+    private boolean active;
+    private boolean hedge;
+    private long attemptStartedAt;
+    private Reactor.Cancellable tryTimer;
+
+    private void startAttempts(){
+        hedging.started();
+        hedgeable = hedging.isHedgeable(request);
+        if(hedgeable && hedging.maxAttempts>1)
+            original = copy(request);
+        attempts = new ArrayList<>(hedging.maxAttempts);
+        if(accessLog!=null)
+            accessLogRecord.process(this, request);
+        if(hedging.deadline>0)
+            deadlineTimer = Reactor.current().schedule(this::deadlineExceeded, hedging.deadline);
+        startAttempt(false);
+    }
+
+    private void startAttempt(boolean hedge){
+        ClientExchange previous = attempts.isEmpty() ? null : attempts.get(attempts.size()-1);
+        ClientExchange attempt = new ClientExchange(client, endpoint, this);
+        attempt.request = previous==null ? request : copy(original);
+        if(group!=null){
+            UpstreamGroup.Upstream upstream = previous==null ? null : group.select(group.upstream(previous.endpoint));
+            if(upstream==null)
+                upstream = group.select(null);
+            attempt.group = group;
+            attempt.upstream = upstream;
+            attempt.endpoint = upstream.endpoint;
+            group.started(upstream);
+        }
+        attempt.active = true;
+        attempt.hedge = hedge;
+        attempt.attemptStartedAt = System.nanoTime();
+        attempt.setCallback(this::attemptCompleted);
+        attempts.add(attempt);
+        ++activeAttempts;
+        if(HTTP)
+            println((hedge ? "hedge(" : "attempt(")+attempt.endpoint+")");
+
+        Reactor reactor = Reactor.current();
+        if(hedging.tryTimeout>0)
+            attempt.tryTimer = reactor.schedule(() -> tryTimedOut(attempt), hedging.tryTimeout);
+        if(hedgeTimer!=null)
+            hedgeTimer.cancel();
+        if(hedgeable && attempts.size()<hedging.maxAttempts){
+            int count = attempts.size();
+            hedgeTimer = reactor.schedule(() -> hedge(count), hedging.delay(attempt.endpoint));
+        }
+        attempt.execute(this::attemptResponded);
+    }
+
+    private static Request copy(Request request){
+        Request copy = new Request();
+        copy.method = request.method;
+        copy.uri = request.uri;
+        copy.version = request.version;
+        for(Header header=request.headers.getFirst(); header!=null; header=header.next())
+            copy.headers.add(header.getName(), header.getValue());
+        return copy;
+    }
+
+    private void hedge(int count){
+        if(finished || attempts.size()!=count || !hedging.acquire())
+            return;
+        hedging.hedged();
+        startAttempt(true);
+    }
+
+    private boolean retryAttempt(){
+        if(finished || !hedgeable || attempts.size()>=hedging.maxAttempts || !hedging.acquire())
+            return false;
+        hedging.retried();
+        startAttempt(false);
+        return true;
+    }
+
+    private void cancel(ClientExchange attempt){
+        if(HTTP)
+            println("cancel("+attempt.endpoint+")");
+        attempt.active = false;
+        --activeAttempts;
+        attempt.cancelTryTimer();
+        if(attempt.upstream!=null){
+            group.completed(attempt.upstream, false);
+            attempt.upstream = null;
+        }
+        attempt.close();
+    }
+
+    private void cancelAttempts(){
+        for(ClientExchange attempt: attempts){
+            if(attempt.active)
+                cancel(attempt);
+        }
+    }
+
+    /** first attempt to receive response wins, failed one is delivered if no other attempt is left */
+    private void attemptResponded(ClientExchange attempt, Throwable thr) throws Exception{
+        if(!attempt.active)
+            return;
+        attempt.active = false;
+        --activeAttempts;
+        attempt.cancelTryTimer();
+        if(thr==null){
+            hedging.responded(attempt.endpoint, System.nanoTime()-attempt.attemptStartedAt, attempt.hedge);
+            cancelAttempts();
+        }else if(activeAttempts>0 || retryAttempt())
+            return;
+        finish(attempt, thr);
+        user.process(this, thr);
+    }
+
+    private void attemptCompleted(ClientExchange attempt, Throwable thr){
+        if(attempt==winner){
+            error = thr;
+            connectionStatus = attempt.connectionStatus;
+            notifyCallback();
+        }
+    }
+
+    private void tryTimedOut(ClientExchange attempt){
+        if(finished || !attempt.active)
+            return;
+        hedging.tryTimedOut();
+        cancel(attempt);
+        if(activeAttempts>0 || retryAttempt())
+            return;
+        fail(attempt, new SocketTimeoutException("attempt timed out"));
+    }
+
+    private void deadlineExceeded(){
+        if(finished)
+            return;
+        hedging.deadlineExceeded();
+        cancelAttempts();
+        fail(attempts.get(attempts.size()-1), new SocketTimeoutException("deadline exceeded"));
+    }
+
+    private void cancelTryTimer(){
+        if(tryTimer!=null){
+            tryTimer.cancel();
+            tryTimer = null;
+        }
+    }
+
+    private void cancelTimers(){
+        if(deadlineTimer!=null){
+            deadlineTimer.cancel();
+            deadlineTimer = null;
+        }
+        if(hedgeTimer!=null){
+            hedgeTimer.cancel();
+            hedgeTimer = null;
+        }
+    }
+
+    private void finish(ClientExchange attempt, Throwable thr){
+        finished = true;
+        original = null;
+        cancelTimers();
+        winner = attempt;
+        error = thr;
+        endpoint = attempt.endpoint;
+        response = attempt.response;
+        connectionStatus = attempt.connectionStatus;
+        if(stats!=null && thr==null)
+            firstByteAt = System.nanoTime();
+        if(accessLog!=null && response!=null){
+            try{
+                accessLogRecord.process(this, response);
+            }catch(Throwable thr1){
+                Reactor.current().handleException(thr1);
+            }
+        }
+    }
+
+    /** fails exchange, all of whose attempts are cancelled */
+    private void fail(ClientExchange last, Throwable thr){
+        finish(last, thr);
+        winner = null;
+        response = null;
+        connectionStatus = ConnectionStatus.ABORTED;
+        try{
+            user.process(this, thr);
+        }catch(Throwable thr1){
+            Reactor.current().handleException(thr1);
+        }
+        notifyCallback();
+    }
+
     @Override
     public String toString(){
         String str = super.toString();
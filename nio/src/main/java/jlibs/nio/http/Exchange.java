@@ -44,6 +44,13 @@ public abstract class Exchange extends Task implements Bean, Closeable{
         writeMessage = new WriteMessage();
     }
 
+    /** shares messages of given exchange, which must not use them at the same time */
+    protected Exchange(Exchange exchange, int firstOp){
+        super(firstOp);
+        readMessage = exchange.readMessage;
+        writeMessage = exchange.writeMessage;
+    }
+
     protected void reset(){
         keepAlive = false;
         error = null;
@@ -87,6 +94,8 @@ public abstract class Exchange extends Task implements Bean, Closeable{
 
     @Trace(condition=HTTP, args="$1")
     public final void resume(Throwable thr){
+        if(in==null) // closed
+            return;
         if(thr!=null)
             setError(thr);
         in.channel().makeActive();
@@ -0,0 +1,483 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+package jlibs.nio.http;
+
+import jlibs.nio.http.msg.*;
+import jlibs.nio.http.util.ByteRange;
+import jlibs.nio.http.util.HTTPDate;
+import jlibs.nio.http.util.USAscii;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.FileNameMap;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * RequestListener serving files under root directory.
+ *
+ * Supports conditional requests using ETag and Last-Modified, and single
+ * and multiple byte ranges. File attributes are cached and revalidated at
+ * most once in revalidateMillis. Open FileChannels are cached in LRU order,
+ * and file content is sent using zero-copy transfer. Small files requested
+ * often are loaded into direct buffers, so that they are served without
+ * touching file system
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public class FileServer implements RequestListener{
+    public final File root;
+    public FileServer(File root) throws IOException{
+        this.root = root.getCanonicalFile();
+    }
+
+    public String indexFile = Defaults.INDEX_FILE;
+    public FileNameMap contentTypes = URLConnection.getFileNameMap();
+    public String defaultContentType = Defaults.DEFAULT_CONTENT_TYPE;
+
+    /** requests with more ranges than this are served with entire file */
+    public int maxRanges = Defaults.MAX_RANGES;
+
+    /** cached file attributes are trusted for this duration, without checking file system */
+    public long revalidateMillis = Defaults.REVALIDATE_MILLIS;
+
+    /** max number of files, whose attributes and open channels are cached */
+    public int maxCachedFiles = Defaults.MAX_CACHED_FILES;
+
+    /** files larger than this are never loaded into memory */
+    public int maxCachedFileSize = Defaults.MAX_CACHED_FILE_SIZE;
+
+    /** max total size of files loaded into memory */
+    public long maxCachedBytes = Defaults.MAX_CACHED_BYTES;
+
+    /** file is loaded into memory, on this many hits */
+    public int hotHits = Defaults.HOT_HITS;
+
+    public static class Defaults{
+        public static String INDEX_FILE = "index.html";
+        public static String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+        public static int MAX_RANGES = 16;
+        public static long REVALIDATE_MILLIS = 1000;
+        public static int MAX_CACHED_FILES = 1000;
+        public static int MAX_CACHED_FILE_SIZE = 64*1024;
+        public static long MAX_CACHED_BYTES = 64*1024*1024;
+        public static int HOT_HITS = 2;
+    }
+
+    @Override
+    public boolean process(ServerExchange exchange) throws Exception{
+        Request request = exchange.getRequest();
+        Response response = exchange.newResponse();
+        if(request.method!=Method.GET && request.method!=Method.HEAD){
+            response.status = Status.METHOD_NOT_ALLOWED;
+            response.setAllowedMethods(Arrays.asList(Method.GET, Method.HEAD));
+            exchange.setResponse(response);
+            return true;
+        }
+
+        String path = path(request.uri);
+        if(path==null)
+            throw Status.NOT_FOUND;
+        CachedFile entry = lookup(path);
+        if(entry.directory && indexFile!=null)
+            entry = lookup(path.isEmpty() ? indexFile : path+'/'+indexFile);
+        if(entry.length==-1)
+            throw Status.NOT_FOUND;
+
+        response.setETag(entry.etag);
+        response.headers.set(Response.LAST_MODIFIED, entry.lastModifiedStr);
+        response.setAcceptRanges(ByteRange.BYTES);
+
+        Status status = validate(request, entry);
+        if(status!=null){
+            response.status = status;
+            exchange.setResponse(response);
+            return true;
+        }
+
+        List<ByteRange> ranges = request.method==Method.GET ? request.getRanges() : null;
+        if(ranges!=null && (ranges.size()>maxRanges || !ifRange(request.getIfRange(), entry)))
+            ranges = null;
+        long regions[];
+        if(ranges==null)
+            regions = new long[]{ 0, entry.length };
+        else{
+            regions = new long[2*ranges.size()];
+            int count = 0;
+            for(ByteRange range: ranges){
+                long offset = range.offset(entry.length);
+                if(offset!=-1){
+                    regions[count++] = offset;
+                    regions[count++] = range.length(entry.length);
+                }
+            }
+            if(count==0){
+                response.status = Status.REQUESTED_RANGE_NOT_SATISFIABLE;
+                response.setContentRange(0, 0, entry.length);
+                exchange.setResponse(response);
+                return true;
+            }
+            if(count<regions.length)
+                regions = Arrays.copyOf(regions, count);
+            response.status = Status.PARTIAL_CONTENT;
+        }
+
+        String contentType = entry.contentType;
+        ByteBuffer separators[] = null;
+        if(ranges!=null){
+            if(regions.length==2)
+                response.setContentRange(regions[0], regions[1], entry.length);
+            else{
+                String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+                separators = separators(boundary, contentType, regions, entry.length);
+                contentType = "multipart/byteranges; boundary="+boundary;
+            }
+        }
+        response.setPayload(payload(entry, contentType, regions, separators));
+        exchange.setResponse(response);
+        return true;
+    }
+
+    /** returns path relative to root, null if it is invalid or outside root */
+    protected String path(String uri){
+        int question = uri.indexOf('?');
+        if(question!=-1)
+            uri = uri.substring(0, question);
+        try{
+            uri = URLDecoder.decode(uri.replace("+", "%2B"), "UTF-8");
+        }catch(UnsupportedEncodingException | IllegalArgumentException ex){
+            return null;
+        }
+
+        StringBuilder buff = new StringBuilder(uri.length());
+        for(String segment: uri.split("/")){
+            if(segment.isEmpty() || segment.equals("."))
+                continue;
+            if(segment.equals("..") || segment.indexOf('\\')!=-1 || segment.indexOf(0)!=-1)
+                return null;
+            if(buff.length()>0)
+                buff.append('/');
+            buff.append(segment);
+        }
+        return buff.toString();
+    }
+
+    /*-------------------------------------------------[ Validation ]---------------------------------------------------*/
+
+    /** returns status to be sent without payload, null if file is to be sent */
+    private Status validate(Request request, CachedFile entry){
+        String ifNoneMatch = request.getIfNoneMatch();
+        if(ifNoneMatch!=null){
+            if(matches(ifNoneMatch, entry.etag, true))
+                return Status.NOT_MODIFIED;
+        }else{
+            Date ifModifiedSince = parseDate(request.headers.value(Request.IF_MODIFIED_SINCE));
+            if(ifModifiedSince!=null && entry.lastModified/1000<=ifModifiedSince.getTime()/1000)
+                return Status.NOT_MODIFIED;
+        }
+        Date ifUnmodifiedSince = parseDate(request.headers.value(Request.IF_UNMODIFIED_SINCE));
+        if(ifUnmodifiedSince!=null && entry.lastModified/1000>ifUnmodifiedSince.getTime()/1000)
+            return Status.PRECONDITION_FAILED;
+        return null;
+    }
+
+    private static boolean ifRange(String ifRange, CachedFile entry){
+        if(ifRange==null)
+            return true;
+        ifRange = ifRange.trim();
+        if(ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+            return matches(ifRange, entry.etag, false);
+        Date date = parseDate(ifRange);
+        return date!=null && entry.lastModified/1000==date.getTime()/1000;
+    }
+
+    /** @param weak if true, weak comparison is used, otherwise strong comparison */
+    private static boolean matches(String entityTags, String etag, boolean weak){
+        for(String entityTag: entityTags.split(",")){
+            entityTag = entityTag.trim();
+            if(entityTag.equals("*"))
+                return true;
+            if(entityTag.startsWith("W/")){
+                if(!weak)
+                    continue;
+                entityTag = entityTag.substring(2);
+            }
+            if(entityTag.equals(etag))
+                return true;
+        }
+        return false;
+    }
+
+    private static Date parseDate(String value){
+        if(value==null)
+            return null;
+        try{
+            return HTTPDate.getInstance().parse(value);
+        }catch(RuntimeException ex){
+            return null;
+        }
+    }
+
+    private static ByteBuffer[] separators(String boundary, String contentType, long regions[], long length){
+        ByteBuffer separators[] = new ByteBuffer[regions.length/2+1];
+        StringBuilder buff = new StringBuilder();
+        for(int i=0; i<regions.length; i+=2){
+            buff.setLength(0);
+            if(i>0)
+                buff.append("\r\n");
+            buff.append("--").append(boundary).append("\r\n");
+            buff.append(Message.CONTENT_TYPE).append(": ").append(contentType).append("\r\n");
+            buff.append(Response.CONTENT_RANGE).append(": ").append(ByteRange.BYTES).append(' ');
+            buff.append(regions[i]).append('-').append(regions[i]+regions[i+1]-1).append('/').append(length);
+            buff.append("\r\n\r\n");
+            separators[i/2] = ByteBuffer.wrap(USAscii.toBytes(buff.toString()));
+        }
+        separators[regions.length/2] = ByteBuffer.wrap(USAscii.toBytes("\r\n--"+boundary+"--\r\n"));
+        return separators;
+    }
+
+    /*-------------------------------------------------[ Cache ]---------------------------------------------------*/
+
+    /** FileChannel shared by concurrent responses, closed when last of them is done */
+    private static final class OpenFile{
+        final FileChannel channel;
+        int refs = 1; // guarded by cache
+
+        OpenFile(FileChannel channel){
+            this.channel = channel;
+        }
+    }
+
+    private final class CachedFile{
+        final String path;
+        final File file;
+        final boolean directory;
+        final long length; // -1 if file does not exist
+        final long lastModified;
+        final String lastModifiedStr;
+        final String etag;
+        final String contentType;
+
+        // guarded by cache
+        long validated;
+        int hits;
+        boolean evicted;
+        OpenFile openFile;
+        ByteBuffer content;
+
+        CachedFile(String path, File file, BasicFileAttributes attrs, long now){
+            this.path = path;
+            this.file = file;
+            validated = now;
+            if(attrs==null || !(attrs.isRegularFile() || attrs.isDirectory())){
+                directory = false;
+                length = -1;
+                lastModified = 0;
+                lastModifiedStr = etag = contentType = null;
+            }else{
+                directory = attrs.isDirectory();
+                length = directory ? -1 : attrs.size();
+                lastModified = attrs.lastModifiedTime().toMillis();
+                lastModifiedStr = HTTPDate.getInstance().format(new Date(lastModified));
+                etag = '"'+Long.toHexString(lastModified)+'-'+Long.toHexString(length)+'"';
+                String type = contentTypes.getContentTypeFor(file.getName());
+                contentType = type==null ? defaultContentType : type;
+            }
+        }
+
+        boolean sameAs(BasicFileAttributes attrs){
+            if(attrs==null)
+                return length==-1 && !directory;
+            return directory==attrs.isDirectory()
+                    && (directory || (length==attrs.size() && lastModified==attrs.lastModifiedTime().toMillis()));
+        }
+    }
+
+    private long cachedBytes;
+    private final Map<String, CachedFile> entries = new LinkedHashMap<String, CachedFile>(16, 0.75f, true){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedFile> eldest){
+            if(size()>maxCachedFiles){
+                evicted(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private CachedFile lookup(String path) throws IOException{
+        long now = System.currentTimeMillis();
+        synchronized(entries){
+            CachedFile entry = entries.get(path);
+            if(entry!=null && now-entry.validated<revalidateMillis){
+                ++entry.hits;
+                return entry;
+            }
+        }
+
+        File file = path.isEmpty() ? root : new File(root, path);
+        BasicFileAttributes attrs;
+        try{
+            attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        }catch(NoSuchFileException ex){
+            attrs = null;
+        }
+
+        synchronized(entries){
+            CachedFile entry = entries.get(path);
+            if(entry!=null){
+                if(entry.sameAs(attrs)){
+                    entry.validated = now;
+                    ++entry.hits;
+                    return entry;
+                }
+                entries.remove(path);
+                evicted(entry);
+            }
+            entry = new CachedFile(path, file, attrs, now);
+            entries.put(path, entry);
+            return entry;
+        }
+    }
+
+    // called with lock held
+    private void evicted(CachedFile entry){
+        entry.evicted = true;
+        if(entry.openFile!=null){
+            release(entry.openFile);
+            entry.openFile = null;
+        }
+        if(entry.content!=null){
+            cachedBytes -= entry.content.capacity();
+            entry.content = null;
+        }
+    }
+
+    private void release(OpenFile openFile){
+        boolean close;
+        synchronized(entries){
+            close = --openFile.refs==0;
+        }
+        if(close){
+            try{
+                openFile.channel.close();
+            }catch(IOException ignore){
+                // ignore
+            }
+        }
+    }
+
+    private boolean isHot(CachedFile entry){
+        return entry.hits>=hotHits && entry.length<=maxCachedFileSize && entry.length<=maxCachedBytes;
+    }
+
+    private FileRegionsPayload payload(CachedFile entry, String contentType, long regions[], ByteBuffer separators[]) throws IOException{
+        OpenFile openFile;
+        boolean load;
+        synchronized(entries){
+            if(entry.content!=null)
+                return new FileRegionsPayload(contentType, entry.content, regions, separators, null);
+            load = isHot(entry);
+            openFile = entry.openFile;
+            if(openFile!=null && !load){
+                ++openFile.refs;
+                return regionsPayload(contentType, openFile, regions, separators);
+            }
+        }
+
+        FileChannel channel = openFile==null ? FileChannel.open(entry.file.toPath(), StandardOpenOption.READ) : openFile.channel;
+        ByteBuffer content = null;
+        if(load){
+            content = ByteBuffer.allocateDirect((int)entry.length);
+            try{
+                while(content.hasRemaining() && channel.read(content, content.position())>0);
+            }catch(IOException ex){
+                if(openFile==null)
+                    channel.close();
+                throw ex;
+            }
+            // file modified after lookup, serve from channel
+            if(content.hasRemaining() || channel.size()!=entry.length)
+                content = null;
+            else
+                content.flip();
+        }
+
+        synchronized(entries){
+            if(content!=null && !entry.evicted && entry.content==null){
+                ensureCapacity(content.capacity());
+                entry.content = content;
+                cachedBytes += content.capacity();
+            }
+            if(entry.content!=null){
+                if(openFile==null)
+                    channel.close();
+                else if(entry.openFile==openFile){
+                    // in-flight transfers keep it open
+                    entry.openFile = null;
+                    release(openFile);
+                }
+                return new FileRegionsPayload(contentType, entry.content, regions, separators, null);
+            }
+
+            if(openFile==null){
+                openFile = new OpenFile(channel);
+                if(entry.evicted || entry.openFile!=null)
+                    --openFile.refs; // not cached, closed after this response
+                else
+                    entry.openFile = openFile;
+            }
+            ++openFile.refs;
+            return regionsPayload(contentType, openFile, regions, separators);
+        }
+    }
+
+    private FileRegionsPayload regionsPayload(String contentType, OpenFile openFile, long regions[], ByteBuffer separators[]){
+        return new FileRegionsPayload(contentType, openFile.channel, regions, separators, () -> release(openFile));
+    }
+
+    // called with lock held
+    private void ensureCapacity(long bytes){
+        if(cachedBytes+bytes<=maxCachedBytes)
+            return;
+        for(CachedFile entry: entries.values()){
+            if(entry.content!=null){
+                cachedBytes -= entry.content.capacity();
+                entry.content = null;
+                if(cachedBytes+bytes<=maxCachedBytes)
+                    return;
+            }
+        }
+    }
+
+    /** closes cached channels and drops cached content */
+    public void clearCache(){
+        synchronized(entries){
+            for(CachedFile entry: entries.values())
+                evicted(entry);
+            entries.clear();
+        }
+    }
+}
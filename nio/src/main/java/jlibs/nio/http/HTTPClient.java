@@ -38,6 +38,11 @@ public class HTTPClient{
         return new ClientExchange(this, endpoint);
     }
 
+    /** endpoint of returned exchange is chosen from group, when it is executed */
+    public ClientExchange newExchange(UpstreamGroup group){
+        return new ClientExchange(this, group);
+    }
+
     public ClientExchange newExchange(String url) throws GeneralSecurityException, SSLException{
         HTTPURL httpURL = new HTTPURL(url);
         ClientExchange exchange = new ClientExchange(this, httpURL.createEndpoint());
@@ -50,9 +55,24 @@ public class HTTPClient{
     public String userAgent = Defaults.USER_AGENT;
     public long keepAliveTimeout = Defaults.KEEP_ALIVE_TIMEOUT;
 
+    /**
+     * chunked response payloads are read with framing intact, so that they are
+     * forwarded without rechunking. SocketPayload.socket() still gives dechunked content
+     */
+    public boolean preserveChunks = Defaults.PRESERVE_CHUNKS;
+
     public AccessLog accessLog;
     public LogHandler logHandler = ConsoleLogHandler.INSTANCE;
 
+    /**
+     * latency histograms of exchanges. null turns off.
+     * use Management.register(stats, name) to expose it as MXBean
+     */
+    public HTTPStats stats;
+
+    /** deadlines and hedged attempts of exchanges. null turns off */
+    public Hedging hedging;
+
     public HTTPClient(){
         proxy = Proxy.DEFAULTS.get(HTTPProxy.TYPE);
         if(proxy==null)
@@ -65,5 +85,7 @@ public class HTTPClient{
 
         // 0=turn off, +ve=turn on, -ve=respect what is there in request
         public static long KEEP_ALIVE_TIMEOUT = -60000L;
+
+        public static boolean PRESERVE_CHUNKS = false;
     }
 }
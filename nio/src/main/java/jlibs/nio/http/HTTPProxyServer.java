@@ -33,6 +33,8 @@ import java.net.SocketTimeoutException;
 import java.nio.BufferOverflowException;
 import java.security.GeneralSecurityException;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.function.Consumer;
 
 /**
@@ -42,10 +44,17 @@ public class HTTPProxyServer{
     public final HTTPServer server;
     public final HTTPClient client;
 
+    /** requests to host:port, which is a key in this map, are balanced among upstreams of its group */
+    public final Map<String, UpstreamGroup> upstreams = new HashMap<>();
+
     public HTTPProxyServer(TCPEndpoint endpoint){
         server = new HTTPServer(endpoint);
         client = new HTTPClient();
         server.supportsProxyConnectionHeader = true;
+        server.preserveChunks = true;
+        // request is written by ClientExchange, which may complete after ServerExchange
+        server.recycleMessages = false;
+        client.preserveChunks = true;
         server.listener = new Listener();
     }
 
@@ -73,7 +82,9 @@ public class HTTPProxyServer{
                     throw Status.BAD_REQUEST.with("Bad URL", thr);
                 }
                 request.uri = url.path;
-                ClientExchange clientExchange = client.newExchange(url.createEndpoint());
+                TCPEndpoint endpoint = url.createEndpoint();
+                UpstreamGroup group = upstreams.get(endpoint.toString());
+                ClientExchange clientExchange = group==null ? client.newExchange(endpoint) : client.newExchange(group);
                 clientExchange.setAccessLog(exchange);
                 clientExchange.attach(SERVER_EXCHANGE, exchange);
                 clientExchange.setRequest(request);
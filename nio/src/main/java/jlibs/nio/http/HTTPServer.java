@@ -15,13 +15,18 @@
 
 package jlibs.nio.http;
 
+import jlibs.nio.Management;
+import jlibs.nio.Reactors;
 import jlibs.nio.TCPConnection;
 import jlibs.nio.TCPEndpoint;
 import jlibs.nio.TCPServer;
+import jlibs.nio.http.msg.Request;
+import jlibs.nio.http.msg.Response;
 import jlibs.nio.listeners.IOListener;
 import jlibs.nio.log.ConsoleLogHandler;
 import jlibs.nio.log.LogHandler;
 
+import javax.management.ObjectName;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
@@ -39,13 +44,21 @@ public class HTTPServer implements TCPServer.Listener{
         this.endpoint = endpoint;
     }
 
-    private TCPServer server;
+    TCPServer server;
     public void start() throws IOException{
+        if(requests==null){
+            requests = new Reactors.Pool<>(Request::new);
+            responses = new Reactors.Pool<>(Response::new);
+        }
         server = endpoint.startServer(this);
+        if(stats!=null)
+            statsObjName = Management.register(stats, "jlibs.nio:type=HTTPServer,endpoint="+ObjectName.quote(endpoint.toString()));
     }
 
     public void stop(){
         server.close();
+        Management.unregister(statsObjName);
+        statsObjName = null;
     }
 
     @Override
@@ -61,14 +74,43 @@ public class HTTPServer implements TCPServer.Listener{
     public String serverName = Defaults.SERVER_NAME;
     public boolean supportsProxyConnectionHeader = Defaults.SUPPORTS_PROXY_CONNECTION_HEADER;
 
+    /**
+     * max number of pipelined requests parsed ahead of the request whose
+     * response is not yet written. 0 disables parsing ahead
+     */
+    public int pipelineDepth = Defaults.PIPELINE_DEPTH;
+
+    /**
+     * chunked request payloads are read with framing intact, so that they are
+     * forwarded without rechunking. SocketPayload.socket() still gives dechunked content
+     */
+    public boolean preserveChunks = Defaults.PRESERVE_CHUNKS;
+
+    /**
+     * requests, and responses created by ServerExchange.newResponse(), are
+     * reset and reused once response is written. Turn on only if RequestListener
+     * and filters never hold on to them, or to their headers and payload, after
+     * exchange is completed
+     */
+    public boolean recycleMessages = Defaults.RECYCLE_MESSAGES;
+    Reactors.Pool<Request> requests;
+    Reactors.Pool<Response> responses;
+
     public AccessLog accessLog;
     public LogHandler logHandler = ConsoleLogHandler.INSTANCE;
 
+    /** latency histograms of exchanges, registered as MXBean on start(). null turns off */
+    public HTTPStats stats;
+    private ObjectName statsObjName;
+
     public static class Defaults{
         public static boolean SET_DATE_HEADER = false;
         public static long MAX_URI_SIZE = 0;
         public static long MAX_REQUEST_HEAD_SIZE = 0;
         public static String SERVER_NAME = null;
         public static boolean SUPPORTS_PROXY_CONNECTION_HEADER = false;
+        public static int PIPELINE_DEPTH = 0;
+        public static boolean PRESERVE_CHUNKS = false;
+        public static boolean RECYCLE_MESSAGES = false;
     }
 }
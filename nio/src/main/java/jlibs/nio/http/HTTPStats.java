@@ -0,0 +1,180 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+package jlibs.nio.http;
+
+import jlibs.nio.Management;
+import jlibs.nio.http.msg.Response;
+import jlibs.nio.util.Histogram;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Latency histograms of exchanges, overall, per response status and per route.
+ * Latencies are recorded in microseconds and reported in milliseconds.
+ *
+ * For HTTPServer, latency is measured from request head parsed till response
+ * written, and time to first byte till response head is about to be written.
+ * For HTTPClient, latency is measured from execute() till response is delivered
+ * to ClientCallback, and time to first byte till response head is parsed.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public class HTTPStats implements Management.HTTPMXBean{
+    /** key used for exchanges without response, and for routes beyond MAX_ROUTES */
+    public static final String OTHER = "other";
+
+    /** max number of distinct routes tracked */
+    public static int MAX_ROUTES = 100;
+
+    /**
+     * gives the route of exchange, for example request method and path template.
+     * null turns off per-route stats
+     */
+    public Function<Exchange, String> route;
+
+    private final LongAdder exchanges = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final Histogram latency = new Histogram();
+    private final Histogram timeToFirstByte = new Histogram();
+
+    // indexed by status code, 0 for exchanges without response
+    private final AtomicReferenceArray<Histogram> statuses = new AtomicReferenceArray<>(600);
+    private final ConcurrentHashMap<String, Histogram> routes = new ConcurrentHashMap<>();
+
+    /**
+     * @param start         System.nanoTime() when exchange started
+     * @param firstByte     System.nanoTime() of first byte, 0 if not reached
+     * @param bytesIn       bytes read from socket for this exchange
+     * @param bytesOut      bytes written to socket for this exchange
+     */
+    void record(Exchange exchange, long start, long firstByte, long bytesIn, long bytesOut){
+        long end = System.nanoTime();
+        long micros = (end-start)/1000;
+        exchanges.increment();
+        if(exchange.getError()!=null)
+            errors.increment();
+        this.bytesIn.add(bytesIn);
+        this.bytesOut.add(bytesOut);
+        latency.record(micros);
+        if(firstByte!=0)
+            timeToFirstByte.record((firstByte-start)/1000);
+
+        Response response = exchange.getResponse();
+        int code = response==null || response.status==null ? 0 : response.status.code;
+        if(code<0 || code>=statuses.length())
+            code = 0;
+        Histogram histogram = statuses.get(code);
+        if(histogram==null){
+            statuses.compareAndSet(code, null, new Histogram());
+            histogram = statuses.get(code);
+        }
+        histogram.record(micros);
+
+        if(route!=null && exchange.getRequest()!=null){
+            String key;
+            try{
+                key = route.apply(exchange);
+            }catch(Throwable thr){
+                key = null;
+            }
+            if(key==null)
+                key = OTHER;
+            histogram = routes.get(key);
+            if(histogram==null){
+                if(routes.size()>=MAX_ROUTES)
+                    key = OTHER;
+                histogram = routes.computeIfAbsent(key, k -> new Histogram());
+            }
+            histogram.record(micros);
+        }
+    }
+
+    @Override
+    public long getExchanges(){
+        return exchanges.sum();
+    }
+
+    @Override
+    public long getErrors(){
+        return errors.sum();
+    }
+
+    @Override
+    public long getBytesIn(){
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut(){
+        return bytesOut.sum();
+    }
+
+    @Override
+    public Map<String, Double> getLatency(){
+        return latency.snapshot().summary(1000);
+    }
+
+    @Override
+    public Map<String, Double> getTimeToFirstByte(){
+        return timeToFirstByte.snapshot().summary(1000);
+    }
+
+    @Override
+    public Map<String, Map<String, Double>> getStatusLatency(){
+        Map<String, Map<String, Double>> map = new LinkedHashMap<>();
+        for(int code=1; code<statuses.length(); code++){
+            Histogram histogram = statuses.get(code);
+            if(histogram!=null)
+                map.put(String.valueOf(code), histogram.snapshot().summary(1000));
+        }
+        Histogram histogram = statuses.get(0);
+        if(histogram!=null)
+            map.put(OTHER, histogram.snapshot().summary(1000));
+        return map;
+    }
+
+    @Override
+    public Map<String, Map<String, Double>> getRouteLatency(){
+        Map<String, Map<String, Double>> map = new TreeMap<>();
+        for(Map.Entry<String, Histogram> entry: routes.entrySet())
+            map.put(entry.getKey(), entry.getValue().snapshot().summary(1000));
+        return map;
+    }
+
+    @Override
+    public void reset(){
+        exchanges.reset();
+        errors.reset();
+        bytesIn.reset();
+        bytesOut.reset();
+        latency.reset();
+        timeToFirstByte.reset();
+        for(int code=0; code<statuses.length(); code++){
+            Histogram histogram = statuses.get(code);
+            if(histogram!=null)
+                histogram.reset();
+        }
+        routes.clear();
+    }
+}
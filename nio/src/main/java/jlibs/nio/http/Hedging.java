@@ -0,0 +1,257 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+package jlibs.nio.http;
+
+import jlibs.nio.Management;
+import jlibs.nio.TCPEndpoint;
+import jlibs.nio.http.msg.Method;
+import jlibs.nio.http.msg.Request;
+import jlibs.nio.util.Histogram;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Deadlines of HTTPClient exchanges, and extra attempts to cut their tail latency.
+ *
+ * When response of idempotent request without payload is not received within
+ * hedge delay, another attempt is sent on new connection, to another upstream if
+ * exchange is created for UpstreamGroup. First attempt to receive response wins,
+ * and others are cancelled. Hedge delay is given percentile of time to response
+ * head observed for the endpoint, unless fixed delay is set.
+ *
+ * Attempt not responded within tryTimeout is cancelled, and exchange fails with
+ * SocketTimeoutException if not responded within deadline. Failed or timed out
+ * attempt is retried, if request is idempotent. Attempts beyond first one, whether
+ * hedge or retry, are limited by budget: each exchange earns budgetRatio of an
+ * attempt, and budget holds atmost maxBudget attempts. Budget starts empty.
+ *
+ * Delays are run by Reactor.schedule(...), so they are rounded up to
+ * Reactor.SCHEDULER_RESOLUTION. use Management.register(hedging, name) to expose it as MXBean.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public class Hedging implements Management.HedgingMXBean{
+    public static final Set<Method> IDEMPOTENT_METHODS = new HashSet<>(Arrays.asList(
+            Method.GET, Method.HEAD, Method.OPTIONS, Method.TRACE, Method.PUT, Method.DELETE
+    ));
+
+    /** max number of distinct endpoints, whose latency is tracked */
+    public static int MAX_ENDPOINTS = 100;
+
+    private final LongAdder exchanges = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder tryTimeouts = new LongAdder();
+    private final LongAdder deadlinesExceeded = new LongAdder();
+    private final LongAdder budgetExhausted = new LongAdder();
+
+    // in thousandths of an attempt
+    private final AtomicLong budget = new AtomicLong();
+
+    private final ConcurrentHashMap<String, Latency> endpoints = new ConcurrentHashMap<>();
+
+    boolean isHedgeable(Request request){
+        return IDEMPOTENT_METHODS.contains(request.method) && request.getPayload().getContentLength()==0;
+    }
+
+    void started(){
+        exchanges.increment();
+        long max = maxBudget*1000L;
+        long earned = (long)(budgetRatio*1000);
+        while(true){
+            long current = budget.get();
+            long updated = Math.min(max, current+earned);
+            if(updated==current || budget.compareAndSet(current, updated))
+                return;
+        }
+    }
+
+    /** takes an attempt from budget, returns false if exhausted */
+    boolean acquire(){
+        while(true){
+            long current = budget.get();
+            if(current<1000){
+                budgetExhausted.increment();
+                return false;
+            }
+            if(budget.compareAndSet(current, current-1000))
+                return true;
+        }
+    }
+
+    void hedged(){
+        hedges.increment();
+    }
+
+    void retried(){
+        retries.increment();
+    }
+
+    void tryTimedOut(){
+        tryTimeouts.increment();
+    }
+
+    void deadlineExceeded(){
+        deadlinesExceeded.increment();
+    }
+
+    /*-------------------------------------------------[ Latency ]---------------------------------------------------*/
+
+    private static final class Latency{
+        final Histogram histogram = new Histogram();
+        final LongAdder count = new LongAdder();
+        volatile long delay;
+    }
+
+    /** @param nanos time from attempt started till its response head is parsed */
+    void responded(TCPEndpoint endpoint, long nanos, boolean hedge){
+        if(hedge)
+            hedgeWins.increment();
+        String key = endpoint.toString();
+        Latency latency = endpoints.get(key);
+        if(latency==null){
+            if(endpoints.size()>=MAX_ENDPOINTS)
+                return;
+            latency = endpoints.computeIfAbsent(key, k -> new Latency());
+        }
+        latency.histogram.record(nanos/1000);
+        latency.count.increment();
+        long count = latency.count.sum();
+        if(count>=minSamples && count%minSamples==0)
+            latency.delay = latency.histogram.snapshot().percentile(percentile)/1000;
+    }
+
+    /** milliseconds after which attempt to given endpoint is hedged */
+    long delay(TCPEndpoint endpoint){
+        if(delay>0)
+            return delay;
+        Latency latency = endpoints.get(endpoint.toString());
+        long millis = latency==null || latency.delay==0 ? initialDelay : latency.delay;
+        return Math.max(millis, minDelay);
+    }
+
+    /*-------------------------------------------------[ MXBean ]---------------------------------------------------*/
+
+    @Override
+    public long getExchanges(){
+        return exchanges.sum();
+    }
+
+    @Override
+    public long getHedges(){
+        return hedges.sum();
+    }
+
+    @Override
+    public long getHedgeWins(){
+        return hedgeWins.sum();
+    }
+
+    @Override
+    public long getRetries(){
+        return retries.sum();
+    }
+
+    @Override
+    public long getTryTimeouts(){
+        return tryTimeouts.sum();
+    }
+
+    @Override
+    public long getDeadlinesExceeded(){
+        return deadlinesExceeded.sum();
+    }
+
+    @Override
+    public long getBudgetExhausted(){
+        return budgetExhausted.sum();
+    }
+
+    @Override
+    public double getBudget(){
+        return budget.get()/1000d;
+    }
+
+    @Override
+    public Map<String, Long> getDelays(){
+        Map<String, Long> map = new TreeMap<>();
+        for(Map.Entry<String, Latency> entry: endpoints.entrySet()){
+            long delay = entry.getValue().delay;
+            map.put(entry.getKey(), Math.max(delay==0 ? initialDelay : delay, minDelay));
+        }
+        return map;
+    }
+
+    @Override
+    public void reset(){
+        exchanges.reset();
+        hedges.reset();
+        hedgeWins.reset();
+        retries.reset();
+        tryTimeouts.reset();
+        deadlinesExceeded.reset();
+        budgetExhausted.reset();
+    }
+
+    /*-------------------------------------------------[ Options ]---------------------------------------------------*/
+
+    /** max attempts of an exchange, including first one */
+    public int maxAttempts = Defaults.MAX_ATTEMPTS;
+
+    /** fixed hedge delay in milliseconds. 0 means percentile of observed latency */
+    public long delay = Defaults.DELAY;
+
+    /** percentile of time to response head, used as hedge delay */
+    public double percentile = Defaults.PERCENTILE;
+
+    /** responses observed for an endpoint, before its percentile is used. percentile is recomputed at every minSamples */
+    public int minSamples = Defaults.MIN_SAMPLES;
+
+    /** hedge delay in milliseconds, till minSamples are observed */
+    public long initialDelay = Defaults.INITIAL_DELAY;
+    public long minDelay = Defaults.MIN_DELAY;
+
+    /** milliseconds, an attempt is given to receive response head. 0 means no limit */
+    public long tryTimeout = Defaults.TRY_TIMEOUT;
+
+    /** milliseconds, an exchange is given to receive response head. 0 means no limit */
+    public long deadline = Defaults.DEADLINE;
+
+    /** fraction of an attempt, each exchange adds to budget */
+    public double budgetRatio = Defaults.BUDGET_RATIO;
+    public int maxBudget = Defaults.MAX_BUDGET;
+
+    public static class Defaults{
+        public static int MAX_ATTEMPTS = 2;
+        public static long DELAY = 0;
+        public static double PERCENTILE = 0.95;
+        public static int MIN_SAMPLES = 100;
+        public static long INITIAL_DELAY = 100;
+        public static long MIN_DELAY = 1;
+        public static long TRY_TIMEOUT = 0;
+        public static long DEADLINE = 0;
+        public static double BUDGET_RATIO = 0.1;
+        public static int MAX_BUDGET = 10;
+    }
+}
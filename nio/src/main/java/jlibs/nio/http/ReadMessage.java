@@ -20,6 +20,7 @@ import jlibs.nio.Debugger;
 import jlibs.nio.Reactor;
 import jlibs.nio.filters.BufferInput;
 import jlibs.nio.filters.ChunkedInput;
+import jlibs.nio.filters.ChunkedPassThroughInput;
 import jlibs.nio.filters.FixedLengthInput;
 import jlibs.nio.http.msg.*;
 import jlibs.nio.http.msg.parser.HeadersParser;
@@ -97,6 +98,7 @@ public class ReadMessage extends Task{
         keepAlive = message.isKeepAlive();
         long contentLength = -1;
         List<Encoding> encodings = null;
+        HeadersParser trailersParser = null;
 
         if(!emptyPayload){
             if(message instanceof Request){
@@ -112,9 +114,14 @@ public class ReadMessage extends Task{
 
         if(!emptyPayload){
             if(message.isChunked()){
-                HeadersParser trailersParser = new HeadersParser();
+                trailersParser = new HeadersParser();
                 trailersParser.resetForTrailers(message);
-                in = new ChunkedInput(in, trailersParser);
+                if(preserveChunks)
+                    in = new ChunkedPassThroughInput(in);
+                else{
+                    in = new ChunkedInput(in, trailersParser);
+                    trailersParser = null;
+                }
             }else{
                 Header clHeader = message.headers.get(Message.CONTENT_LENGTH);
                 if(clHeader!=null){
@@ -143,9 +150,11 @@ public class ReadMessage extends Task{
         if(!emptyPayload){
             if(encodings==null)
                 encodings = message.getContentEncodings();
-            message.setPayload(new SocketPayload(contentLength,
+            SocketPayload payload = new SocketPayload(contentLength,
                     message.headers.value(Message.CONTENT_TYPE),
-                    in, encodings));
+                    in, encodings);
+            payload.trailers = trailersParser;
+            message.setPayload(payload);
         }
 
         if(HTTP){
@@ -158,6 +167,9 @@ public class ReadMessage extends Task{
         return true;
     }
 
+    /** chunked payload is read with framing intact, so that it can be forwarded without rechunking */
+    boolean preserveChunks;
+
     private Message message;
     private ByteBuffer buffer;
     private long consumed = 0;
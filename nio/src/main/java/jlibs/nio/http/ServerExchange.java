@@ -17,6 +17,7 @@ package jlibs.nio.http;
 
 import jlibs.core.lang.NotImplementedException;
 import jlibs.nio.*;
+import jlibs.nio.filters.BufferInput;
 import jlibs.nio.filters.InputLimitExceeded;
 import jlibs.nio.filters.ReadTrackingInput;
 import jlibs.nio.filters.TrackingInput;
@@ -25,23 +26,29 @@ import jlibs.nio.http.msg.*;
 import jlibs.nio.http.msg.parser.RequestParser;
 import jlibs.nio.http.util.Expect;
 import jlibs.nio.http.util.USAscii;
+import jlibs.nio.listeners.IOListener;
+import jlibs.nio.listeners.Task;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 
 import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.channels.SelectionKey.OP_WRITE;
 import static jlibs.nio.Debugger.HTTP;
 import static jlibs.nio.Debugger.println;
 import static jlibs.nio.http.ServerExchange.State.*;
 import static jlibs.nio.http.msg.Message.CONNECTION;
 import static jlibs.nio.http.msg.Message.PROXY_CONNECTION;
 import static jlibs.nio.http.msg.Method.CONNECT;
+import static jlibs.nio.http.msg.Method.HEAD;
 
 /**
  * @author Santhosh Kumar Tekuri
@@ -57,7 +64,7 @@ public final class ServerExchange extends Exchange{
         CONTINUE_100.flip();
     }
 
-    private final HTTPServer server;
+    final HTTPServer server;
     private final RequestListener user;
     private Collection<ServerFilter> requestFilters;
     private Collection<ServerFilter> responseFilters;
@@ -69,6 +76,7 @@ public final class ServerExchange extends Exchange{
     protected ServerExchange(HTTPServer server){
         super(server.maxRequestHeadSize, new RequestParser(server.maxURISize), OP_READ);
         this.server = server;
+        readMessage.preserveChunks = server.preserveChunks;
         user = server.listener;
         requestFilters = server.requestFilters;
         responseFilters = server.responseFilters;
@@ -79,14 +87,40 @@ public final class ServerExchange extends Exchange{
             accessLogRecord = accessLog.records.allocate();
             accessLogRecord.setLogHandler(server.logHandler);
         }
+        stats = server.stats;
         connectionStatus = ConnectionStatus.OPEN;
     }
 
+    // detached exchange shares messages of owner, as its request is already parsed
+    private ServerExchange(ServerExchange owner, Request request){
+        super(owner, OP_READ);
+        server = owner.server;
+        user = owner.user;
+        requestFilters = owner.requestFilters;
+        responseFilters = owner.responseFilters;
+        errorFilters = owner.errorFilters;
+
+        accessLog = owner.accessLog;
+        if(accessLog!=null){
+            accessLogRecord = accessLog.records.allocate();
+            accessLogRecord.setLogHandler(server.logHandler);
+        }
+        stats = owner.stats;
+        connectionStatus = ConnectionStatus.OPEN;
+
+        this.owner = owner;
+        this.request = pooledRequest = request;
+        listener = new Detached(this);
+        in = owner.in;
+        out = owner.out;
+        readMessageFinished(null);
+    }
+
     enum State{
         READ_REQUEST, FILTER_REQUEST,
         RESPONSE_READY, FILTER_RESPONSE, FILTER_ERROR,
         DELIVER_RESPONSE, DRAIN_REQUEST, WRITE_RESPONSE,
-        CLOSED
+        SHED, CLOSED
     }
 
     private State state = READ_REQUEST;
@@ -115,7 +149,23 @@ public final class ServerExchange extends Exchange{
             try{
                 switch(state){
                     case READ_REQUEST:
-                        request = new Request();
+                        if(pipeline!=null && !pipeline.isEmpty()){
+                            ServerExchange next = pipeline.peekFirst();
+                            if(!next.started)
+                                next.processDetached();
+                            if(next.state!=DELIVER_RESPONSE){
+                                awaitingPipelined = true;
+                                return false;
+                            }
+                            awaitingPipelined = false;
+                            pipeline.removeFirst();
+                            next.adopted = true;
+                            if(HTTP)
+                                println("pipelined = "+next);
+                            setChild(next);
+                            return true;
+                        }
+                        request = pooledRequest = newRequest();
                         readMessage.reset(request, false);
                         setChild(readMessage);
                         return true;
@@ -123,12 +173,19 @@ public final class ServerExchange extends Exchange{
                         while(response==null && filters.hasNext()){
                             if(!filters.next().filter(this, FilterType.REQUEST))
                                 return false;
+                            if(state==SHED)
+                                break;
                         }
+                        if(state==SHED)
+                            break;
                         state = RESPONSE_READY;
                         if(HTTP)
                             println("state = "+state);
-                        if(response==null && !user.process(this))
+                        if(response==null && !user.process(this)){
+                            startPipelined();
                             return false;
+                        }
+                        startPipelined();
                     case RESPONSE_READY:
                         filters = responseFilters.iterator();
                         state = FILTER_RESPONSE;
@@ -151,6 +208,10 @@ public final class ServerExchange extends Exchange{
                         if(HTTP)
                             println("state = "+state);
                     case DELIVER_RESPONSE:
+                        if(owner!=null && !adopted){
+                            owner.pipelinedReady(this);
+                            return false;
+                        }
                         in = ((jlibs.nio.Readable)in.channel()).in();
                         in.setInputListener(listener);
                         out.setOutputListener(listener);
@@ -179,7 +240,7 @@ public final class ServerExchange extends Exchange{
                                 errorStatus = (Status)error;
                             else
                                 errorStatus = Status.INTERNAL_SERVER_ERROR.with(error);
-                            response = new Response();
+                            response = newResponse();
                             response.status = errorStatus;
                             if(errorStatus.getCause()!=null)
                                 response.setPayload(new ErrorPayload(errorStatus.getCause()));
@@ -198,12 +259,21 @@ public final class ServerExchange extends Exchange{
                             response.setDate(false);
                         if(server.serverName !=null)
                             response.setServer(server.serverName);
-                        writeMessage.reset(response, continue100Buffer, true);
+                        if(stats!=null)
+                            firstByteAt = System.nanoTime();
+                        writeMessage.reset(response, continue100Buffer, request.method!=HEAD);
                         if(accessLog!=null)
                             accessLogRecord.process(this, response);
                         continue100Buffer = null;
                         setChild(writeMessage);
                         return true;
+                    case SHED:
+                        if(!send(shedBuffer))
+                            return false;
+                        shedBuffer = null;
+                        close();
+                        notifyCallback();
+                        return true;
                     case CLOSED:
                         return true;
                 }
@@ -213,6 +283,13 @@ public final class ServerExchange extends Exchange{
         }
     }
 
+    @Override
+    protected void cleanup(Throwable thr){
+        releaseAdmission(thr==null && error==null);
+        if(owner==null) // messages of detached exchange belong to owner
+            super.cleanup(thr);
+    }
+
     @Override
     protected void reset(){
         super.reset();
@@ -234,6 +311,12 @@ public final class ServerExchange extends Exchange{
 
     @Override
     protected void readMessageFinished(Throwable thr){
+        if(stats!=null){
+            startedAt = System.nanoTime();
+            firstByteAt = 0;
+            if(stream==null && in!=null)
+                stream = in.channel();
+        }
         if(accessLog!=null){
             try{
                 accessLogRecord.process(this, request);
@@ -247,6 +330,7 @@ public final class ServerExchange extends Exchange{
                     accessLogRecord.reset();
                     accessLog.records.free(accessLogRecord);
                 }
+                recycleMessages();
                 close();
                 return;
             }
@@ -290,8 +374,10 @@ public final class ServerExchange extends Exchange{
                 error = Status.EXPECTATION_FAILED;
         }
 
-        in.setInputListener(null);
-        out.setOutputListener(null);
+        if(owner==null){
+            in.setInputListener(null);
+            out.setOutputListener(null);
+        }
         if(error==null){
             filters = requestFilters.iterator();
             state = FILTER_REQUEST;
@@ -301,6 +387,9 @@ public final class ServerExchange extends Exchange{
         }
         if(HTTP)
             println("state = "+state);
+
+        if(owner==null && server.pipelineDepth>0 && keepAlive && !requestHasPayload && request.method!=CONNECT)
+            parseAhead();
     }
 
     private void send100Continue(TrackingInput tracker){
@@ -318,11 +407,33 @@ public final class ServerExchange extends Exchange{
     @Override
     protected void writeMessageFinished(Throwable thr){
         error = thr;
+        if(response.getPayload() instanceof FileRegionsPayload) // not written for HEAD
+            ((FileRegionsPayload)response.getPayload()).release();
         if(error!=null || !keepAlive)
             close();
         notifyCallback();
-        if(in!=null)
-            reset();
+        if(in!=null){
+            if(owner==null)
+                reset();
+            else{
+                in.channel().taskCompleted();
+                state = CLOSED;
+                if(HTTP)
+                    println("state = "+state);
+            }
+        }
+    }
+
+    @Override
+    protected int childTaskFinished(Task childTask, Throwable thr){
+        if(childTask instanceof ServerExchange){
+            if(thr!=null)
+                Reactor.current().handleException(thr);
+            if(thr!=null || ((ServerExchange)childTask).in==null)
+                close();
+            return OP_WRITE;
+        }
+        return super.childTaskFinished(childTask, thr);
     }
 
     private void clearResponse(){
@@ -336,7 +447,8 @@ public final class ServerExchange extends Exchange{
                         Reactor.current().handleException(ignore);
                     }
                 }
-            }
+            }else if(response.getPayload() instanceof FileRegionsPayload)
+                ((FileRegionsPayload)response.getPayload()).release();
             response = null;
         }
     }
@@ -385,9 +497,12 @@ public final class ServerExchange extends Exchange{
     @SuppressWarnings("unchecked")
     @Trace(condition=HTTP)
     private void notifyCallback(){
+        releaseAdmission(true);
         try{
             if(accessLog!=null)
                 accessLogRecord.finished(this);
+            if(stats!=null)
+                recordStats();
         }catch(Throwable thr){
             Reactor.current().handleException(thr);
         }
@@ -400,14 +515,135 @@ public final class ServerExchange extends Exchange{
             callback = null;
         }else if(error!=null)
             Reactor.current().handleException(error);
+        recycleMessages();
+    }
+
+    /*-------------------------------------------------[ Admission ]---------------------------------------------------*/
+
+    private static final Response SHED_RESPONSE = new Response();
+    static{
+        SHED_RESPONSE.status = Status.SERVICE_UNAVAILABLE;
+    }
+
+    AdmissionControl admission;
+    long admittedAt;
+    private ByteBuffer shedBuffer;
+
+    /**
+     * normally released by notifyCallback(), but exchange may end without it.
+     * close() is also called just before notifyCallback(), in which case
+     * exchange without error is treated as completed
+     */
+    private void releaseAdmission(boolean completed){
+        if(admission!=null){
+            if(completed)
+                admission.completed(this, admittedAt);
+            else
+                admission.aborted(this);
+            admission = null;
+        }
+    }
+
+    /**
+     * writes given serialized response, without running filters and listener,
+     * and closes connection. returns false for pipelined exchange, which has
+     * to respond in order
+     */
+    boolean shed(ByteBuffer buffer){
+        if(owner!=null)
+            return false;
+        shedBuffer = buffer;
+        response = SHED_RESPONSE;
+        keepAlive = false;
+        in = ((jlibs.nio.Readable)in.channel()).in();
+        in.setInputListener(listener);
+        out.setOutputListener(listener);
+        if(accessLog!=null)
+            accessLogRecord.process(this, response);
+        state = SHED;
+        if(HTTP)
+            println("state = "+state);
+        return true;
+    }
+
+    /*-------------------------------------------------[ Stats ]---------------------------------------------------*/
+
+    private final HTTPStats stats;
+    private long startedAt;
+    private long firstByteAt;
+
+    // socket byte counts at end of previous exchange, tracked on owner for pipelined exchanges
+    private NBStream stream;
+    private long bytesReadMark;
+    private long bytesWrittenMark;
+
+    private void recordStats(){
+        ServerExchange con = owner==null ? this : owner;
+        long bytesIn = 0, bytesOut = 0;
+        if(con.stream!=null){
+            long bytesRead = con.stream.bytesRead();
+            long bytesWritten = con.stream.bytesWritten();
+            bytesIn = bytesRead-con.bytesReadMark;
+            bytesOut = bytesWritten-con.bytesWrittenMark;
+            con.bytesReadMark = bytesRead;
+            con.bytesWrittenMark = bytesWritten;
+        }
+        stats.record(this, startedAt, firstByteAt, bytesIn, bytesOut);
+    }
+
+    /*-------------------------------------------------[ Recycling ]---------------------------------------------------*/
+
+    private Request pooledRequest;
+    private Response pooledResponse;
+
+    /**
+     * if HTTPServer.recycleMessages is on, returned Request is owned by server: it is
+     * reset and handed to a later exchange once this exchange is completed
+     */
+    private Request newRequest(){
+        return server.recycleMessages ? server.requests.allocate() : new Request();
+    }
+
+    /**
+     * returns Response to be set on this exchange. If HTTPServer.recycleMessages
+     * is on, only the first Response created per exchange is pooled: it is owned
+     * by server, and is reset and reused for later requests once this exchange
+     * is completed. So it must not be referenced after that, e.g. from another
+     * exchange or a background task
+     */
+    public Response newResponse(){
+        if(!server.recycleMessages || pooledResponse!=null)
+            return new Response();
+        return pooledResponse = server.responses.allocate();
+    }
+
+    private void recycleMessages(){
+        if(pooledRequest!=null){
+            if(request==pooledRequest)
+                request = null;
+            if(server.recycleMessages){
+                pooledRequest.reset();
+                server.requests.free(pooledRequest);
+            }
+            pooledRequest = null;
+        }
+        if(pooledResponse!=null){
+            if(response==pooledResponse)
+                response = null;
+            pooledResponse.reset();
+            server.responses.free(pooledResponse);
+            pooledResponse = null;
+        }
     }
 
     @Override
     public void close(){
+        releaseAdmission(error==null);
         super.close();
         state = CLOSED;
         if(HTTP)
             println("state = "+state);
+        abortPipelined();
     }
 
     @Override
@@ -424,13 +660,143 @@ public final class ServerExchange extends Exchange{
     public Connection stealConnection(){
         if(HTTP)
             println("stealConnection()");
+        releaseAdmission(false);
         Connection con = (Connection)in.channel();
         in = null;
         out = null;
         state = CLOSED;
+        abortPipelined();
         return con;
     }
 
+    /*-------------------------------------------------[ Pipelining ]---------------------------------------------------*/
+
+    /*
+     * requests pipelined by client, which are already buffered, are parsed
+     * ahead into detached exchanges, upto server.pipelineDepth. detached
+     * exchange runs filters and user like any other exchange, but stops
+     * when its response is ready. once the response of this exchange is written,
+     * detached exchanges are run as child task in order, to write their responses.
+     *
+     * parsing ahead stops at request with payload, because its payload
+     * must be read from socket before next request
+     */
+
+    private ServerExchange owner;
+    private RequestParser aheadParser;
+    private ArrayDeque<ServerExchange> pipeline;
+    private boolean awaitingPipelined;
+    private boolean started;
+    private boolean adopted;
+
+    private void parseAhead(){
+        if(!(in instanceof BufferInput))
+            return;
+        BufferInput bufferInput = (BufferInput)in;
+        while(pipeline==null || pipeline.size()<server.pipelineDepth){
+            ByteBuffer buffer = bufferInput.buffered();
+            if(buffer==null)
+                return;
+            Request request = newRequest();
+            ByteBuffer duplicate = buffer.duplicate();
+            boolean parsed = false;
+            try{
+                if(aheadParser==null)
+                    aheadParser = new RequestParser(server.maxURISize);
+                aheadParser.reset(request);
+                parsed = aheadParser.parse(duplicate, false)
+                        && (server.maxRequestHeadSize<=0 || duplicate.position()-buffer.position()<=server.maxRequestHeadSize)
+                        && request.method!=CONNECT && !hasPayload(request);
+            }catch(Throwable thr){
+                // let READ_REQUEST report it
+            }
+            if(!parsed){
+                if(server.recycleMessages){
+                    request.reset();
+                    server.requests.free(request);
+                }
+                return;
+            }
+
+            buffer.position(duplicate.position());
+            if(!buffer.hasRemaining())
+                bufferInput.drainBuffer();
+            if(pipeline==null)
+                pipeline = new ArrayDeque<>();
+            ServerExchange exchange = new ServerExchange(this, request);
+            pipeline.addLast(exchange);
+            if(HTTP)
+                println("parsedAhead = "+exchange);
+            if(!exchange.keepAlive)
+                return;
+        }
+    }
+
+    private static boolean hasPayload(Request request){
+        if(!request.method.requestPayloadAllowed)
+            return false;
+        if(request.isChunked())
+            return true;
+        Header clHeader = request.headers.get(Message.CONTENT_LENGTH);
+        if(clHeader!=null)
+            return !"0".equals(clHeader.getValue());
+        return !request.getContentEncodings().isEmpty();
+    }
+
+    private void startPipelined(){
+        if(pipeline!=null){
+            for(ServerExchange exchange: pipeline){
+                if(!exchange.started)
+                    exchange.processDetached();
+            }
+        }
+    }
+
+    private void processDetached(){
+        started = true;
+        if(adopted || state==CLOSED)
+            return;
+        try{
+            process(OP_READ);
+        }catch(Throwable thr){
+            Reactor.current().handleException(thr);
+        }
+    }
+
+    private void pipelinedReady(ServerExchange exchange){
+        if(awaitingPipelined && pipeline.peekFirst()==exchange){
+            awaitingPipelined = false;
+            resume();
+        }
+    }
+
+    private void abortPipelined(){
+        if(pipeline!=null){
+            ServerExchange exchange;
+            while((exchange=pipeline.pollFirst())!=null){
+                exchange.state = CLOSED;
+                exchange.connectionStatus = ConnectionStatus.ABORTED;
+                exchange.error = new ClosedChannelException();
+                exchange.notifyCallback();
+                exchange.in = null;
+                exchange.out = null;
+            }
+        }
+    }
+
+    /** resume() of detached exchange continues it without touching connection */
+    private static final class Detached extends IOListener{
+        private final ServerExchange exchange;
+        private Detached(ServerExchange exchange){
+            this.exchange = exchange;
+        }
+
+        @Override
+        public void process(Input in){
+            exchange.processDetached();
+        }
+    }
+
     @Override
     public String toString(){
         String str = super.toString();
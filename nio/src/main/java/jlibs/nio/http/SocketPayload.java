@@ -16,12 +16,15 @@
 package jlibs.nio.http;
 
 import jlibs.nio.Input;
+import jlibs.nio.filters.ChunkedInput;
 import jlibs.nio.filters.TrackingInput;
 import jlibs.nio.http.msg.Payload;
+import jlibs.nio.http.msg.parser.HeadersParser;
 import jlibs.nio.http.util.Encoding;
 import jlibs.nio.util.Buffers;
 
 import java.util.List;
+import java.util.function.UnaryOperator;
 
 /**
  * @author Santhosh Kumar Tekuri
@@ -49,27 +52,53 @@ public class SocketPayload extends Payload{
 
     public boolean retain;
     public Buffers buffers;
+
+    /**
+     * non-null if in gives chunked bytes with framing intact, which are
+     * forwarded as is. parses trailers once dechunked
+     */
+    HeadersParser trailers;
+
+    public boolean isChunked(){
+        return trailers!=null;
+    }
+
     public Input socket(){
+        dechunk();
         if(encodings.isEmpty())
             return in;
 
         contentLength = -1;
+        wrap(in -> {
+            while(!encodings.isEmpty())
+                in = encodings.remove(encodings.size()-1).wrap(in);
+            return in;
+        });
+        return in;
+    }
+
+    /** removes chunk framing, without decoding content */
+    void dechunk(){
+        if(trailers!=null){
+            HeadersParser trailers = this.trailers;
+            this.trailers = null;
+            wrap(in -> new ChunkedInput(in, trailers));
+        }
+    }
+
+    private void wrap(UnaryOperator<Input> filter){
         TrackingInput trackingInput = null;
         if(in instanceof TrackingInput){
             trackingInput = (TrackingInput)in;
             in = trackingInput.detachInput();
         }
         try{
-            while(!encodings.isEmpty()){
-                Encoding encoding = encodings.remove(encodings.size()-1);
-                in = encoding.wrap(in);
-            }
+            in = filter.apply(in);
         }finally{
             if(trackingInput!=null){
                 trackingInput.reattach();
                 in = trackingInput;
             }
         }
-        return in;
     }
 }
@@ -0,0 +1,432 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+package jlibs.nio.http;
+
+import jlibs.nio.Management;
+import jlibs.nio.Reactor;
+import jlibs.nio.Reactors;
+import jlibs.nio.TCPEndpoint;
+import jlibs.nio.http.filters.ReadSocketPayload;
+import jlibs.nio.http.msg.Request;
+import jlibs.nio.http.msg.Response;
+import jlibs.nio.http.msg.Status;
+
+import javax.management.ObjectName;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Endpoints serving same content, among which requests are balanced.
+ * use HTTPClient.newExchange(UpstreamGroup) to send request to one of them.
+ *
+ * Upstream is ejected for a while, after consecutive exchanges with it have failed.
+ * Exchange has failed, if its connection is aborted or could not be opened, or if
+ * response status is one of failureStatuses. Ejection time grows with number of
+ * ejections, and atmost maxEjectedPercent of upstreams are ejected at a time.
+ * If healthCheckPath is set, startHealthChecks() sends GET request periodically
+ * to each upstream from one of the reactors, and upstream failing the checks is
+ * not used till it passes them again. When no upstream is available, requests are
+ * balanced among all upstreams, rather than failing all of them.
+ *
+ * Registered as MXBean "jlibs.nio:type=UpstreamGroup,name=&lt;name&gt;".
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public class UpstreamGroup implements Management.UpstreamGroupMXBean{
+    public final String name;
+    private final Upstream upstreams[];
+    private final ObjectName objName;
+
+    public UpstreamGroup(String name, TCPEndpoint... endpoints){
+        if(endpoints.length==0)
+            throw new IllegalArgumentException("no endpoints");
+        this.name = name;
+        upstreams = new Upstream[endpoints.length];
+        for(int i=0; i<endpoints.length; i++)
+            upstreams[i] = new Upstream(endpoints[i]);
+        objName = Management.register(this, "jlibs.nio:type=UpstreamGroup,name="+ObjectName.quote(name));
+    }
+
+    public void close(){
+        closed = true;
+        Management.unregister(objName);
+    }
+
+    public static final class Upstream{
+        public final TCPEndpoint endpoint;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+
+        // passive outlier ejection
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private volatile long ejectedUntil;
+        private int ejections;
+
+        // active health check, updated only by reactor checking it
+        private volatile boolean healthy = true;
+        private int checksPassed;
+        private int checksFailed;
+
+        private Upstream(TCPEndpoint endpoint){
+            this.endpoint = endpoint;
+        }
+
+        public int getOutstanding(){
+            return outstanding.get();
+        }
+
+        public boolean isEjected(){
+            return ejectedUntil>System.currentTimeMillis();
+        }
+
+        public boolean isHealthy(){
+            return healthy;
+        }
+
+        private boolean isAvailable(long now){
+            return healthy && ejectedUntil<=now;
+        }
+
+        @Override
+        public String toString(){
+            return endpoint.toString();
+        }
+    }
+
+    public List<Upstream> upstreams(){
+        return Collections.unmodifiableList(Arrays.asList(upstreams));
+    }
+
+    /** returns upstream with given endpoint, null if it is not member of this group */
+    public Upstream upstream(TCPEndpoint endpoint){
+        for(Upstream upstream: upstreams){
+            if(upstream.endpoint.toString().equals(endpoint.toString()))
+                return upstream;
+        }
+        return null;
+    }
+
+    /*-------------------------------------------------[ Balancing ]---------------------------------------------------*/
+
+    public enum Balancer{
+        /** upstream with fewest outstanding requests, ties broken randomly */
+        LEAST_OUTSTANDING,
+
+        /** of two random upstreams, the one with fewer outstanding requests */
+        POWER_OF_TWO_CHOICES
+    }
+
+    /**
+     * returns upstream to send next request, other than given one.
+     * returns null if there is no other upstream
+     */
+    public Upstream select(Upstream exclude){
+        if(exclude!=null && upstreams.length==1)
+            return null;
+        long now = System.currentTimeMillis();
+        Upstream selected = select(exclude, now, true);
+        if(selected==null) // panic: all are ejected or unhealthy
+            selected = select(exclude, now, false);
+        return selected;
+    }
+
+    private Upstream select(Upstream exclude, long now, boolean available){
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int start = random.nextInt(upstreams.length);
+        if(balancer==Balancer.POWER_OF_TWO_CHOICES){
+            Upstream first = next(start, exclude, null, now, available);
+            if(first==null)
+                return null;
+            Upstream second = next(random.nextInt(upstreams.length), exclude, first, now, available);
+            return second==null || first.outstanding.get()<=second.outstanding.get() ? first : second;
+        }else{
+            Upstream selected = null;
+            for(int i=0; i<upstreams.length; i++){
+                Upstream upstream = upstreams[(start+i)%upstreams.length];
+                if(upstream!=exclude && (!available || upstream.isAvailable(now))){
+                    if(selected==null || upstream.outstanding.get()<selected.outstanding.get())
+                        selected = upstream;
+                }
+            }
+            return selected;
+        }
+    }
+
+    private Upstream next(int start, Upstream exclude1, Upstream exclude2, long now, boolean available){
+        for(int i=0; i<upstreams.length; i++){
+            Upstream upstream = upstreams[(start+i)%upstreams.length];
+            if(upstream!=exclude1 && upstream!=exclude2 && (!available || upstream.isAvailable(now)))
+                return upstream;
+        }
+        return null;
+    }
+
+    /*-------------------------------------------------[ Outlier Ejection ]---------------------------------------------------*/
+
+    void started(Upstream upstream){
+        upstream.outstanding.incrementAndGet();
+    }
+
+    boolean failed(ClientExchange exchange){
+        ConnectionStatus status = exchange.getConnectionStatus();
+        if(status==null || status==ConnectionStatus.ABORTED)
+            return true;
+        Response response = exchange.getResponse();
+        if(response!=null && response.status!=null){
+            for(Status failureStatus: failureStatuses){
+                if(failureStatus.code==response.status.code)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    void completed(Upstream upstream, boolean failed){
+        upstream.outstanding.decrementAndGet();
+        upstream.requests.increment();
+        if(failed){
+            upstream.failures.increment();
+            if(upstream.consecutiveFailures.incrementAndGet()>=consecutiveFailures)
+                eject(upstream);
+        }else
+            upstream.consecutiveFailures.set(0);
+    }
+
+    private synchronized void eject(Upstream upstream){
+        long now = System.currentTimeMillis();
+        if(upstream.ejectedUntil>now)
+            return;
+        int ejected = 0;
+        for(Upstream u: upstreams){
+            if(u.ejectedUntil>now)
+                ++ejected;
+        }
+        if(ejected>0 && (ejected+1)*100>maxEjectedPercent*upstreams.length)
+            return;
+
+        // ejections are forgiven, once upstream stays fine for as long as it was ejected last
+        if(upstream.ejections>0 && now-upstream.ejectedUntil>ejectionTime*upstream.ejections)
+            upstream.ejections = 0;
+        ++upstream.ejections;
+        upstream.ejectedUntil = now+Math.min(ejectionTime*upstream.ejections, maxEjectionTime);
+        upstream.consecutiveFailures.set(0);
+    }
+
+    /*-------------------------------------------------[ Health Check ]---------------------------------------------------*/
+
+    private volatile boolean closed;
+    private HTTPClient healthClient;
+
+    /** schedules health checks of upstreams on reactors, till close() is called */
+    public void startHealthChecks(){
+        if(healthCheckPath==null)
+            return;
+        healthClient = new HTTPClient();
+        healthClient.responseFilters = Collections.singletonList(new ReadSocketPayload());
+        List<Reactor> reactors = Reactors.get();
+        for(int i=0; i<upstreams.length; i++){
+            Upstream upstream = upstreams[i];
+            Reactor reactor = reactors.get(i%reactors.size());
+            reactor.invokeLater(() -> check(upstream));
+        }
+    }
+
+    private void check(Upstream upstream){
+        if(closed)
+            return;
+        new HealthCheck(upstream).start();
+    }
+
+    private final class HealthCheck implements ResponseListener{
+        private final Upstream upstream;
+        private ClientExchange exchange;
+        private Reactor.Cancellable timer;
+        private boolean done;
+
+        private HealthCheck(Upstream upstream){
+            this.upstream = upstream;
+        }
+
+        void start(){
+            Request request = new Request();
+            request.uri = healthCheckPath;
+            exchange = healthClient.newExchange(upstream.endpoint);
+            exchange.setRequest(request);
+            exchange.setCallback((exchange, thr) -> {}); // failure is already accounted
+            timer = Reactor.current().schedule(this::timeout, healthCheckTimeout);
+            exchange.execute(this);
+        }
+
+        private void timeout(){
+            if(!done){
+                exchange.close();
+                finished(false);
+            }
+        }
+
+        @Override
+        public void process(ClientExchange exchange, Throwable thr){
+            if(done)
+                return;
+            Response response = exchange.getResponse();
+            if(response!=null && response.getPayload() instanceof SocketPayload){
+                SocketPayload payload = (SocketPayload)response.getPayload();
+                if(payload.buffers!=null){
+                    Reactor.current().allocator.free(payload.buffers);
+                    payload.buffers = null;
+                }
+            }
+            finished(thr==null && response!=null && response.status.code/100==2);
+        }
+
+        private void finished(boolean passed){
+            done = true;
+            timer.cancel();
+            if(passed){
+                upstream.checksFailed = 0;
+                if(!upstream.healthy && ++upstream.checksPassed>=healthyThreshold)
+                    upstream.healthy = true;
+            }else{
+                upstream.checksPassed = 0;
+                if(upstream.healthy && ++upstream.checksFailed>=unhealthyThreshold)
+                    upstream.healthy = false;
+            }
+            if(!closed)
+                Reactor.current().schedule(() -> check(upstream), healthCheckInterval);
+        }
+    }
+
+    /*-------------------------------------------------[ MXBean ]---------------------------------------------------*/
+
+    @Override
+    public Map<String, Integer> getOutstanding(){
+        Map<String, Integer> map = new LinkedHashMap<>();
+        for(Upstream upstream: upstreams)
+            map.put(upstream.toString(), upstream.outstanding.get());
+        return map;
+    }
+
+    @Override
+    public Map<String, Long> getRequests(){
+        Map<String, Long> map = new LinkedHashMap<>();
+        for(Upstream upstream: upstreams)
+            map.put(upstream.toString(), upstream.requests.sum());
+        return map;
+    }
+
+    @Override
+    public Map<String, Long> getFailures(){
+        Map<String, Long> map = new LinkedHashMap<>();
+        for(Upstream upstream: upstreams)
+            map.put(upstream.toString(), upstream.failures.sum());
+        return map;
+    }
+
+    @Override
+    public Map<String, Boolean> getAvailable(){
+        long now = System.currentTimeMillis();
+        Map<String, Boolean> map = new LinkedHashMap<>();
+        for(Upstream upstream: upstreams)
+            map.put(upstream.toString(), upstream.isAvailable(now));
+        return map;
+    }
+
+    @Override
+    public Map<String, Integer> getIdleConnections(){
+        return connections(true);
+    }
+
+    @Override
+    public Map<String, Integer> getOpenConnections(){
+        return connections(false);
+    }
+
+    private Map<String, Integer> connections(boolean idle){
+        Map<String, Integer> map = new LinkedHashMap<>();
+        for(Upstream upstream: upstreams)
+            map.put(upstream.toString(), 0);
+        try{
+            for(Reactor reactor: Reactors.get()){
+                reactor.invokeAndWait(() -> {
+                    for(Upstream upstream: upstreams){
+                        int count = idle ? reactor.connectionPool.idle(upstream.endpoint) : reactor.connectionPool.open(upstream.endpoint);
+                        map.put(upstream.toString(), map.get(upstream.toString())+count);
+                    }
+                });
+            }
+        }catch(InterruptedException ex){
+            throw new RuntimeException(ex);
+        }
+        return map;
+    }
+
+    @Override
+    public void reset(){
+        for(Upstream upstream: upstreams){
+            upstream.requests.reset();
+            upstream.failures.reset();
+        }
+    }
+
+    /*-------------------------------------------------[ Options ]---------------------------------------------------*/
+
+    public Balancer balancer = Defaults.BALANCER;
+
+    /** response statuses, treated as failure of upstream */
+    public Status failureStatuses[] = Defaults.FAILURE_STATUSES;
+
+    /** number of consecutive failures, after which upstream is ejected */
+    public int consecutiveFailures = Defaults.CONSECUTIVE_FAILURES;
+
+    /** milliseconds, upstream is ejected for, multiplied by number of times it is ejected */
+    public long ejectionTime = Defaults.EJECTION_TIME;
+    public long maxEjectionTime = Defaults.MAX_EJECTION_TIME;
+    public int maxEjectedPercent = Defaults.MAX_EJECTED_PERCENT;
+
+    /** number of upstreams tried, when connection could not be opened */
+    public int maxConnectAttempts = Defaults.MAX_CONNECT_ATTEMPTS;
+
+    /** path used for health check requests. null turns off health checks */
+    public String healthCheckPath = Defaults.HEALTH_CHECK_PATH;
+
+    /** milliseconds between health checks of an upstream */
+    public long healthCheckInterval = Defaults.HEALTH_CHECK_INTERVAL;
+    public long healthCheckTimeout = Defaults.HEALTH_CHECK_TIMEOUT;
+    public int healthyThreshold = Defaults.HEALTHY_THRESHOLD;
+    public int unhealthyThreshold = Defaults.UNHEALTHY_THRESHOLD;
+
+    public static class Defaults{
+        public static Balancer BALANCER = Balancer.LEAST_OUTSTANDING;
+        public static Status FAILURE_STATUSES[] = { Status.BAD_GATEWAY, Status.SERVICE_UNAVAILABLE, Status.GATEWAY_TIMEOUT };
+        public static int CONSECUTIVE_FAILURES = 5;
+        public static long EJECTION_TIME = 30*1000;
+        public static long MAX_EJECTION_TIME = 300*1000;
+        public static int MAX_EJECTED_PERCENT = 50;
+        public static int MAX_CONNECT_ATTEMPTS = 2;
+        public static String HEALTH_CHECK_PATH = null;
+        public static long HEALTH_CHECK_INTERVAL = 5*1000;
+        public static long HEALTH_CHECK_TIMEOUT = 2*1000;
+        public static int HEALTHY_THRESHOLD = 2;
+        public static int UNHEALTHY_THRESHOLD = 3;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+package jlibs.nio.http;
+
+import jlibs.nio.http.msg.FileRegionsPayload;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static jlibs.nio.http.WriteFileRegions.State.*;
+
+/**
+ * @author Santhosh Kumar Tekuri
+ */
+public class WriteFileRegions extends WritePayload{
+    private final FileRegionsPayload payload;
+
+    public WriteFileRegions(FileRegionsPayload payload){
+        this.payload = payload;
+    }
+
+    enum State{ SETUP, WRITE_SEPARATOR, WRITE_REGION, TRANSFER_REGION }
+    private State state = SETUP;
+    private int region;
+    private ByteBuffer buffer;
+
+    @Override
+    protected boolean process(int readyOp) throws IOException{
+        while(true){
+            switch(state){
+                case SETUP:
+                    setup();
+                    region = 0;
+                    prepareSeparator();
+                    // fallthrough
+                case WRITE_SEPARATOR:
+                    if(buffer!=null && !write(buffer))
+                        return false;
+                    if(region==payload.regions.length)
+                        return true;
+                    long offset = payload.regions[region];
+                    long length = payload.regions[region+1];
+                    if(payload.channel!=null){
+                        prepareTransferFromFile(payload.channel, offset, length, false);
+                        state = TRANSFER_REGION;
+                        break;
+                    }
+                    buffer = payload.content.duplicate();
+                    buffer.limit((int)(offset+length));
+                    buffer.position((int)offset);
+                    state = WRITE_REGION;
+                    // fallthrough
+                case WRITE_REGION:
+                    if(!write(buffer))
+                        return false;
+                    region += 2;
+                    prepareSeparator();
+                    break;
+                case TRANSFER_REGION:
+                    if(!transferFromFile())
+                        return false;
+                    region += 2;
+                    prepareSeparator();
+                    break;
+            }
+        }
+    }
+
+    private void prepareSeparator(){
+        ByteBuffer separator = payload.separators==null ? null : payload.separators[region/2];
+        buffer = separator==null ? null : separator.duplicate();
+        state = WRITE_SEPARATOR;
+    }
+
+    @Override
+    protected void cleanup(Throwable thr){
+        payload.release();
+    }
+}
@@ -91,11 +91,9 @@ public final class WriteMessage extends Task{
                             writeName = false;
                             index = 0;
                         }
-                        String value = header.getValue();
+                        int length = header.valueLength();
                         do{
-                            int toIndex = Math.min(value.length(), index+buffer.remaining());
-                            while(index<toIndex)
-                                buffer.put((byte)value.charAt(index++));
+                            index = header.putValueInto(buffer, index);
                             if(buffer.remaining()<4){
                                 buffer.flip();
                                 if(write(buffer))
@@ -105,7 +103,7 @@ public final class WriteMessage extends Task{
                                     return false;
                                 }
                             }
-                        }while(index!=value.length());
+                        }while(index!=length);
                         buffer.put(CR);
                         buffer.put(LF);
                         writeName = true;
@@ -224,7 +222,15 @@ public final class WriteMessage extends Task{
             message.setContentLength(buffers.remaining());
         }else if(payload instanceof SocketPayload){
             SocketPayload socketPayload = (SocketPayload)payload;
-            if(socketPayload.in!=null && socketPayload.in.isOpen()){
+            if(socketPayload.in!=null && socketPayload.in.isOpen() && socketPayload.isChunked()
+                    && (!socketPayload.encodings.isEmpty() || message.getContentEncodings().isEmpty())){
+                // chunks are forwarded as is
+                writePayload = new WriteSocketPayload(socketPayload);
+                if(!socketPayload.encodings.isEmpty())
+                    message.setContentEncodings(socketPayload.encodings);
+                message.setChunked();
+            }else if(socketPayload.in!=null && socketPayload.in.isOpen()){
+                socketPayload.dechunk();
                 writePayload = new WriteSocketPayload(socketPayload);
                 long contentLength = socketPayload.getContentLength();
                 List<Encoding> encodings = socketPayload.encodings;
@@ -263,9 +269,22 @@ public final class WriteMessage extends Task{
         }else if(payload instanceof FilePayload){
             FilePayload filePayload = (FilePayload)payload;
             writePayload = new WriteFilePayload(filePayload);
-            writePayload.encodings = message.getContentEncodings();
-            if(writePayload.encodings.isEmpty())
+            List<Encoding> encodings = filePayload.encodings;
+            if(encodings!=null && !encodings.isEmpty()){
+                // file content is already encoded, transferred as is
+                message.setContentEncodings(encodings);
                 message.setContentLength(filePayload.getContentLength());
+            }else if((writePayload.encodings=message.getContentEncodings()).isEmpty())
+                message.setContentLength(filePayload.getContentLength());
+            else{
+                writePayload.chunked = true;
+                message.setChunked();
+            }
+        }else if(payload instanceof FileRegionsPayload){
+            FileRegionsPayload regionsPayload = (FileRegionsPayload)payload;
+            writePayload = new WriteFileRegions(regionsPayload);
+            if((writePayload.encodings=message.getContentEncodings()).isEmpty())
+                message.setContentLength(regionsPayload.getContentLength());
             else{
                 writePayload.chunked = true;
                 message.setChunked();
@@ -0,0 +1,127 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+package jlibs.nio.http.expr;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * compiles expression tree into chain of lambdas.
+ * <p>
+ * path of variable is flattened into array of steps, lookups with
+ * literal key are resolved at compile time, and final value is
+ * appended by its type, so that numbers and booleans are not
+ * converted to String.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+class ExpressionCompiler{
+    @FunctionalInterface
+    private interface Step{
+        public Object apply(Object root, Object current);
+    }
+
+    @FunctionalInterface
+    private interface Evaluator{
+        public Object evaluate(Object root);
+    }
+
+    public static ValueWriter compile(Expression expr){
+        if(expr instanceof Literal){
+            String value = TypeConversion.toString(((Literal)expr).value);
+            if(value==null)
+                return (root, buffer) -> false;
+            return (root, buffer) -> {
+                buffer.append(value);
+                return true;
+            };
+        }
+        Evaluator evaluator = evaluator(expr);
+        return (root, buffer) -> append(evaluator.evaluate(root), buffer);
+    }
+
+    private static Evaluator evaluator(Expression expr){
+        if(expr instanceof Literal){
+            Object value = ((Literal)expr).value;
+            return root -> value;
+        }else if(expr instanceof Variable){
+            List<Expression> children = ((Variable)expr).children;
+            Step steps[] = new Step[children.size()];
+            for(int i=0; i<steps.length; i++)
+                steps[i] = step(children.get(i));
+            if(steps.length==1){
+                Step step = steps[0];
+                return root -> root==null ? null : step.apply(root, root);
+            }
+            return root -> {
+                Object current = root;
+                for(Step step: steps){
+                    if(current==null)
+                        return null;
+                    current = step.apply(root, current);
+                }
+                return current;
+            };
+        }else
+            return expr::evaluate;
+    }
+
+    private static Step step(Expression expr){
+        if(expr instanceof GetField){
+            String name = ((GetField)expr).name;
+            return (root, current) -> ((Bean)current).getField(name);
+        }else if(expr instanceof Lookup){
+            Expression child = ((Lookup)expr).child;
+            if(child instanceof Literal){
+                String name = TypeConversion.toString(((Literal)child).value);
+                if(name==null)
+                    return (root, current) -> current instanceof Map ? ((Map)current).get(null) : null;
+                return (root, current) -> lookup(current, name);
+            }
+            Evaluator evaluator = evaluator(child);
+            return (root, current) -> {
+                String name = TypeConversion.toString(evaluator.evaluate(root));
+                if(current instanceof Map)
+                    return ((Map)current).get(name);
+                return name==null ? null : ((ValueMap)current).getValue(name);
+            };
+        }else
+            return expr::evaluate;
+    }
+
+    private static Object lookup(Object current, String name){
+        if(current instanceof Map)
+            return ((Map)current).get(name);
+        else
+            return ((ValueMap)current).getValue(name);
+    }
+
+    private static boolean append(Object value, StringBuilder buffer){
+        if(value==null)
+            return false;
+        if(value instanceof CharSequence)
+            buffer.append((CharSequence)value);
+        else if(value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte)
+            buffer.append(((Number)value).longValue());
+        else if(value instanceof Boolean)
+            buffer.append(((Boolean)value).booleanValue());
+        else if(value instanceof Character)
+            buffer.append(((Character)value).charValue());
+        else
+            buffer.append(value.toString());
+        return true;
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+package jlibs.nio.http.expr;
+
+/**
+ * Expression compiled for repeated evaluation, which appends its
+ * value to StringBuilder, without converting it to String first.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+@FunctionalInterface
+public interface ValueWriter{
+    /**
+     * appends value of expression to buffer.
+     * returns false, if value is null, in which case nothing is appended
+     */
+    public boolean write(Object root, StringBuilder buffer);
+
+    public static ValueWriter compile(Expression expr){
+        return ExpressionCompiler.compile(expr);
+    }
+
+    public static ValueWriter compile(String expression) throws java.text.ParseException{
+        return ExpressionCompiler.compile(Expression.compile(expression));
+    }
+}
@@ -50,7 +50,7 @@ public abstract class CheckAuthentication implements ServerFilter{
     }
 
     protected Status unauthorized(ServerExchange exchange, Challenge challenge){
-        Response response = new Response();
+        Response response = exchange.newResponse();
         if(proxy){
             response.status = Status.PROXY_AUTHENTICATION_REQUIRED;
             response.setProxyChallenge(challenge);
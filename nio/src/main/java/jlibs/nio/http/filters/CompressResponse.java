@@ -0,0 +1,206 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+package jlibs.nio.http.filters;
+
+import jlibs.nio.Reactor;
+import jlibs.nio.Reactors;
+import jlibs.nio.filters.DeflaterOutput;
+import jlibs.nio.http.FilterType;
+import jlibs.nio.http.ServerExchange;
+import jlibs.nio.http.ServerFilter;
+import jlibs.nio.http.SocketPayload;
+import jlibs.nio.http.msg.*;
+import jlibs.nio.http.util.Encoding;
+import jlibs.nio.http.util.MediaType;
+import jlibs.nio.http.util.QualityItem;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * @author Santhosh Kumar Tekuri
+ *
+ * Server Response Filter
+ *
+ * compresses response payload using encoding negotiated from Accept-Encoding.
+ * For FilePayload, up-to-date "file.gz" next to the file is sent as is, so
+ * that static files are not compressed for every response
+ */
+public class CompressResponse implements ServerFilter{
+    /** payloads whose length is known and smaller than this are not compressed */
+    public long minLength = 1024;
+
+    public Predicate<MediaType> compressible = CompressResponse::isCompressible;
+
+    /** encodings in order of preference, when client accepts them with same quality */
+    public List<Encoding> encodings = new ArrayList<>(Arrays.asList(Encoding.GZIP, Encoding.DEFLATE));
+
+    /** use "file.gz", if it is not older than file */
+    public boolean usePrecompressed = true;
+
+    /**
+     * if not null, missing or stale "file.gz" is created in background
+     * using this executor, for use by later responses
+     */
+    public Executor precompressor;
+
+    @Override
+    public boolean filter(ServerExchange exchange, FilterType type) throws Exception{
+        assert type==FilterType.RESPONSE;
+        Request request = exchange.getRequest();
+        Response response = exchange.getResponse();
+        if(!isCompressible(request, response)){
+            DeflaterOutput.STATS.skipped();
+            return true;
+        }
+
+        addVary(response);
+        Encoding encoding = negotiate(request.getAcceptableEncodings());
+        if(encoding==null){
+            DeflaterOutput.STATS.skipped();
+            return true;
+        }
+
+        Payload payload = response.getPayload();
+        if(usePrecompressed && encoding.equals(Encoding.GZIP) && payload instanceof FilePayload){
+            File gz = precompressed(((FilePayload)payload).file);
+            if(gz!=null){
+                response.setPayload(new FilePayload(payload.contentType, gz, Collections.singletonList(Encoding.GZIP)));
+                DeflaterOutput.STATS.precompressed();
+                return true;
+            }
+        }
+
+        response.setContentEncodings(Collections.singletonList(encoding));
+        return true;
+    }
+
+    protected boolean isCompressible(Request request, Response response){
+        if(request.method==Method.HEAD || response.status.payloadNotAllowed || response.status==Status.PARTIAL_CONTENT)
+            return false;
+        if(!response.getContentEncodings().isEmpty())
+            return false;
+
+        Payload payload = response.getPayload();
+        if(payload instanceof SocketPayload){
+            List<Encoding> encodings = ((SocketPayload)payload).getEncodings();
+            if(encodings!=null && !encodings.isEmpty())
+                return false;
+        }else if(payload instanceof FilePayload){
+            if(((FilePayload)payload).encodings!=null)
+                return false;
+        }else if(!(payload instanceof EncodablePayload))
+            return false;
+
+        long contentLength = payload.getContentLength();
+        if(payload instanceof StringPayload) // chars is lower bound of encoded length
+            contentLength = ((StringPayload)payload).content.length();
+        if(contentLength!=-1 && contentLength<minLength)
+            return false;
+        MediaType mediaType = payload.getMediaType();
+        return mediaType!=null && compressible.test(mediaType);
+    }
+
+    protected Encoding negotiate(List<QualityItem<String>> acceptable){
+        Encoding best = null;
+        double bestQuality = 0;
+        for(Encoding encoding: encodings){
+            double quality = Request.getEncodingQuality(encoding.name, acceptable);
+            if(quality>bestQuality){
+                best = encoding;
+                bestQuality = quality;
+            }
+        }
+        return best;
+    }
+
+    private static void addVary(Response response){
+        List<String> vary = response.getVary();
+        for(String fieldName: vary){
+            if("*".equals(fieldName) || Request.ACCEPT_ENCODING.toString().equalsIgnoreCase(fieldName))
+                return;
+        }
+        vary = new ArrayList<>(vary);
+        vary.add(Request.ACCEPT_ENCODING.toString());
+        response.setVary(vary);
+    }
+
+    public static boolean isCompressible(MediaType mediaType){
+        if("text".equals(mediaType.type))
+            return true;
+        String subType = mediaType.subType;
+        return subType.endsWith("json") || subType.endsWith("xml") || subType.endsWith("javascript")
+                || subType.equals("x-www-form-urlencoded") || subType.equals("svg+xml");
+    }
+
+    /*-------------------------------------------------[ Precompressed ]---------------------------------------------------*/
+
+    private final Set<String> precompressing = ConcurrentHashMap.newKeySet();
+
+    private File precompressed(File file){
+        File gz = new File(file.getPath()+".gz");
+        long lastModified = gz.lastModified();
+        if(lastModified!=0 && lastModified>=file.lastModified())
+            return gz;
+        if(precompressor!=null && precompressing.add(gz.getPath())){
+            // precompressor runs on its own thread, errors are reported back on this reactor
+            Reactor current = Reactor.current();
+            Reactor reactor = current==null ? Reactors.get().get(0) : current;
+            try{
+                precompressor.execute(() -> {
+                    try{
+                        compress(file, gz);
+                    }catch(IOException ex){
+                        reactor.invokeLater(() -> reactor.handleException(ex));
+                    }finally{
+                        precompressing.remove(gz.getPath());
+                    }
+                });
+            }catch(Throwable thr){
+                precompressing.remove(gz.getPath());
+            }
+        }
+        return null;
+    }
+
+    /** compresses to temporary file and renames, so that partial "file.gz" is never served */
+    private static void compress(File file, File gz) throws IOException{
+        File tmp = File.createTempFile(gz.getName(), ".tmp", gz.getParentFile());
+        try{
+            long lastModified = file.lastModified();
+            try(InputStream in=new FileInputStream(file); OutputStream out=new GZIPOutputStream(new FileOutputStream(tmp), 8192)){
+                byte buff[] = new byte[8192];
+                int read;
+                while((read=in.read(buff))!=-1)
+                    out.write(buff, 0, read);
+            }
+            tmp.setLastModified(lastModified);
+            Files.move(tmp.toPath(), gz.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }finally{
+            tmp.delete();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package jlibs.nio.http.filters;
+
+import jlibs.core.io.IOUtil;
+import jlibs.json.JSONBuilder;
+import jlibs.json.JSONException;
+import jlibs.json.JSONHandler;
+import jlibs.json.parser.JSONParser;
+import jlibs.nbp.Feeder;
+import jlibs.nio.Input;
+import jlibs.nio.http.Exchange;
+import jlibs.nio.http.SocketPayload;
+import jlibs.nio.http.msg.JSONPayload;
+import jlibs.nio.http.msg.Message;
+import jlibs.nio.http.util.MediaType;
+import jlibs.nio.listeners.IOListener;
+import jlibs.nio.listeners.Task;
+import jlibs.nio.util.Buffers;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import static java.nio.channels.SelectionKey.OP_READ;
+
+/**
+ * Parses JSON payload on reactor thread, as and when bytes arrive from socket.
+ *
+ * By default, payload is replaced with JSONPayload. Override createHandler(...)
+ * to consume events directly, in which case payload is left as is.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public class ParseJSON extends ParseSocketPayload{
+    @Override
+    protected boolean isCompatible(MediaType mt){
+        return mt.isJSON();
+    }
+
+    @Override
+    protected boolean parse(Exchange exchange, Message msg, SocketPayload payload, MediaType mt) throws Exception{
+        String charset = mt.getCharset(null);
+
+        ReadableByteChannel channel;
+        Input socket = payload.socket();
+        if(socket!=null && socket.isOpen()){
+            channel = socket;
+            boolean retain = retain(payload);
+            if(retain){
+                if(payload.buffers==null)
+                    payload.buffers = new Buffers();
+            }
+            if(payload.buffers!=null)
+                channel = new PayloadReader(payload.buffers, retain, channel);
+        }else
+            channel = Channels.newChannel(payload.buffers.new Input());
+
+        JSONHandler handler = createHandler(exchange, msg);
+        if(workers!=null){
+            WorkerFeed feed = new WorkerFeed(workers, maxPendingChunks, channel);
+            Feeder feeder = new JSONParser(handler).createFeeder(feed.pipe(), charset);
+            feed.start(feeder, socket, thr -> completed(exchange, msg, handler, thr));
+        }else{
+            JSONFeedTask task = new JSONFeedTask(exchange, msg, handler, new JSONParser(handler).createFeeder(channel, charset));
+            new IOListener().setCallback(JSONFeedTask::completed, task).start(task, socket, null);
+        }
+        return false;
+    }
+
+    protected boolean retain(SocketPayload payload){
+        return payload.retain;
+    }
+
+    protected JSONHandler createHandler(Exchange exchange, Message msg) throws Exception{
+        return new JSONBuilder();
+    }
+
+    protected void parsingCompleted(Exchange exchange, Message msg, JSONHandler handler){
+        if(handler instanceof JSONBuilder){
+            MediaType mt = msg.getPayload().getMediaType();
+            String contentType = mt.withCharset(IOUtil.UTF_8.name()).toString();
+            try{
+                msg.setPayload(new JSONPayload(contentType, ((JSONBuilder)handler).getResult()));
+            }catch(Throwable thr){
+                exchange.resume(thr);
+                return;
+            }
+        }
+        exchange.resume();
+    }
+
+    private void completed(Exchange exchange, Message msg, JSONHandler handler, Throwable thr){
+        if(thr==null)
+            parsingCompleted(exchange, msg, handler);
+        else{
+            if(thr instanceof IOException && thr.getCause() instanceof JSONException)
+                thr = msg.badMessage(thr.getCause());
+            exchange.resume(thr);
+        }
+    }
+
+    private class JSONFeedTask extends Task{
+        private Exchange exchange;
+        private Message msg;
+        private JSONHandler handler;
+        private Feeder feeder;
+        private JSONFeedTask(Exchange exchange, Message msg, JSONHandler handler, Feeder feeder){
+            super(OP_READ);
+            this.exchange = exchange;
+            this.msg = msg;
+            this.handler = handler;
+            this.feeder = feeder;
+        }
+
+        @Override
+        protected boolean process(int readyOp) throws IOException{
+            feeder = feeder.feed();
+            if(feeder==null)
+                return true;
+            else{
+                in.addReadInterest();
+                return false;
+            }
+        }
+
+        private void completed(Throwable thr){
+            ParseJSON.this.completed(exchange, msg, handler, thr);
+        }
+    }
+}
@@ -45,6 +45,10 @@ public class ParseMultipart extends ParseSocketPayload{
     @Override
     protected boolean parse(Exchange exchange, Message msg, SocketPayload payload, MediaType mt) throws Exception{
         MultipartParser parser = new MultipartParser(new MultipartPayload(mt.toString()), msg.badMessageStatus());
+        if(!payload.socket().isOpen()){
+            // whole payload is already read, nothing to gain by writing parts in background
+            parser.diskExecutor = null;
+        }
 
         try{
             if(payload.buffers!=null){
@@ -78,11 +82,34 @@ public class ParseMultipart extends ParseSocketPayload{
             this.exchange = exchange;
             this.msg = msg;
             this.parser = parser;
+            parser.setSpoolListener(() -> {
+                if(waiting){
+                    waiting = false;
+                    in.wakeupReader();
+                }
+            });
         }
 
+        // true if waiting for parts to be written to disk
+        private boolean waiting;
+        private boolean parsed;
+
         @Override
         protected boolean process(int readyOp) throws IOException{
             while(true){
+                if(parsed){
+                    if(parser.isSpooled()){
+                        msg.setPayload(parser.payload);
+                        return true;
+                    }
+                    waiting = true;
+                    return false;
+                }
+                if(parser.isBackedUp()){
+                    // backpressure: don't read until disk catches up
+                    waiting = true;
+                    return false;
+                }
                 int read = in.read(buffer);
                 if(read==0){
                     in.addReadInterest();
@@ -91,8 +118,8 @@ public class ParseMultipart extends ParseSocketPayload{
 
                 buffer.flip();
                 if(parser.parse(buffer, read==-1)){
-                    msg.setPayload(parser.payload);
-                    return true;
+                    parsed = true;
+                    continue;
                 }
                 buffer.compact();
             }
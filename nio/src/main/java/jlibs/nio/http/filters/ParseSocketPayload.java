@@ -18,6 +18,7 @@ package jlibs.nio.http.filters;
 import jlibs.nio.http.*;
 import jlibs.nio.http.msg.Message;
 import jlibs.nio.http.util.MediaType;
+import jlibs.nio.util.WorkerPool;
 
 /**
  * @author Santhosh Kumar Tekuri
@@ -55,5 +56,22 @@ public abstract class ParseSocketPayload implements ServerFilter, ClientFilter{
 
     protected abstract boolean isCompatible(MediaType mt);
     protected abstract boolean parse(Exchange exchange, Message msg, SocketPayload payload, MediaType mt) throws Exception;
+
+    /*-------------------------------------------------[ Options ]---------------------------------------------------*/
+
+    /**
+     * pool in which payload is parsed, while it is still read in reactor thread.
+     * honored by ParseXML, ParseDOM, ParseJAXB and ParseJSON.
+     * null means payload is parsed in reactor thread
+     */
+    public WorkerPool workers = Defaults.WORKERS;
+
+    /** number of chunks read but not yet parsed by workers, beyond which reading is paused */
+    public int maxPendingChunks = Defaults.MAX_PENDING_CHUNKS;
+
+    public static class Defaults{
+        public static WorkerPool WORKERS = null;
+        public static int MAX_PENDING_CHUNKS = 8;
+    }
 }
 
@@ -17,22 +17,19 @@ package jlibs.nio.http.filters;
 
 import jlibs.nbp.Feeder;
 import jlibs.nio.Input;
-import jlibs.nio.Reactor;
 import jlibs.nio.http.Exchange;
 import jlibs.nio.http.SocketPayload;
 import jlibs.nio.http.msg.Message;
 import jlibs.nio.http.util.MediaType;
 import jlibs.nio.listeners.IOListener;
 import jlibs.nio.listeners.Task;
-import jlibs.nio.util.BufferAllocator;
 import jlibs.nio.util.Buffers;
-import jlibs.nio.util.UnpooledBufferAllocator;
 import jlibs.xml.sax.async.AsyncXMLReader;
 import jlibs.xml.sax.async.ChannelInputSource;
 import org.xml.sax.InputSource;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
 
 import static java.nio.channels.SelectionKey.OP_READ;
@@ -50,19 +47,40 @@ public class ParseXML extends ParseSocketPayload{
     protected boolean parse(Exchange exchange, Message msg, SocketPayload payload, MediaType mt) throws Exception{
         String charset = mt.getCharset(null);
 
-        InputSource is;
+        ReadableByteChannel channel = null;
         Input socket = payload.socket();
         if(socket!=null && socket.isOpen()){
-            ReadableByteChannel channel = socket;
+            channel = socket;
             boolean retain = retain(payload);
             if(retain){
                 if(payload.buffers==null)
                     payload.buffers = new Buffers();
             }
             if(payload.buffers!=null)
-                channel = new Reader(payload.buffers, retain, channel);
+                channel = new PayloadReader(payload.buffers, retain, channel);
+        }
+
+        if(workers!=null){
+            if(channel==null)
+                channel = Channels.newChannel(payload.buffers.new Input());
+            WorkerFeed feed = new WorkerFeed(workers, maxPendingChunks, channel);
+            InputSource is = new ChannelInputSource(feed.pipe());
+            is.setEncoding(charset);
+            AsyncXMLReader xmlReader = new AsyncXMLReader();
+            addHandlers(xmlReader);
+            feed.start(xmlReader.createFeeder(is), socket, thr -> {
+                if(thr==null)
+                    parsingCompleted(exchange, msg, xmlReader);
+                else
+                    exchange.resume(thr);
+            });
+            return false;
+        }
+
+        InputSource is;
+        if(channel!=null)
             is = new ChannelInputSource(channel);
-        }else
+        else
             is = new InputSource(payload.buffers.new Input()); // todo optimize
 
         is.setEncoding(charset);
@@ -113,59 +131,5 @@ public class ParseXML extends ParseSocketPayload{
                 exchange.resume(thr);
         }
     }
-
-    private static class Reader implements ReadableByteChannel{
-        private Buffers buffers;
-        private BufferAllocator allocator;
-        private ReadableByteChannel channel;
-        private Buffers backup;
-        private Reader(Buffers buffers, boolean retain, ReadableByteChannel channel){
-            this.channel = channel;
-
-            if(buffers.hasRemaining()){
-                if(retain){
-                    this.buffers = buffers.copy();
-                    allocator = UnpooledBufferAllocator.HEAP;
-                }else{
-                    this.buffers = buffers;
-                    allocator = Reactor.current().allocator;
-                }
-            }
-
-            if(retain)
-                backup = buffers;
-        }
-
-        @Override
-        public int read(ByteBuffer dst) throws IOException{
-            if(buffers!=null){
-                int read = buffers.read(dst, allocator);
-                if(buffers.length==0)
-                    buffers = null;
-                return read;
-            }
-
-            int dstPos = dst.position();
-            int read = channel.read(dst);
-            if(read>0 && backup!=null){
-                int dstLimit = dst.limit();
-                dst.position(dstPos);
-                dst.limit(dstPos+read);
-                backup.write(dst);
-                dst.limit(dstLimit);
-            }
-            return read;
-        }
-
-        @Override
-        public boolean isOpen(){
-            return channel.isOpen();
-        }
-
-        @Override
-        public void close() throws IOException{
-            channel.close();
-        }
-    }
 }
 
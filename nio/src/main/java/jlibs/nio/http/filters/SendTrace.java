@@ -38,7 +38,7 @@ public class SendTrace implements ServerFilter{
         assert type==FilterType.REQUEST;
         Request request = exchange.getRequest();
         if(request.method==Method.TRACE){
-            Response response = new Response();
+            Response response = exchange.newResponse();
             response.setPayload(new TracePayload(request));
             exchange.setResponse(response);
         }
@@ -0,0 +1,239 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package jlibs.nio.http.filters;
+
+import jlibs.nbp.Feeder;
+import jlibs.nio.Input;
+import jlibs.nio.Reactor;
+import jlibs.nio.listeners.IOListener;
+import jlibs.nio.listeners.Task;
+import jlibs.nio.util.WorkerPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static java.nio.channels.SelectionKey.OP_READ;
+
+/**
+ * Reads payload in reactor thread, and feeds it to parser in WorkerPool.
+ *
+ * Chunks read are handed to workers through pipe(). At most one worker
+ * feeds the parser at any time. Reading is paused while maxPending chunks
+ * are waiting to be parsed, or the worker queue is full.
+ *
+ * completion is run in reactor thread, once parser is done or failed.
+ * read errors are reported to parser through pipe(), so that there
+ * is single completion.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+final class WorkerFeed extends Task{
+    private final Reactor reactor = Reactor.current();
+    private final WorkerPool workers;
+    private final int maxPending;
+    private final ReadableByteChannel source;
+    private Feeder feeder;
+    private Consumer<Throwable> completion;
+
+    WorkerFeed(WorkerPool workers, int maxPending, ReadableByteChannel source){
+        super(OP_READ);
+        this.workers = workers;
+        this.maxPending = Math.max(maxPending, 1);
+        this.source = source;
+    }
+
+    /** channel from which parser should read */
+    ReadableByteChannel pipe(){
+        return pipe;
+    }
+
+    void start(Feeder feeder, Input in, Consumer<Throwable> completion){
+        this.feeder = feeder;
+        this.completion = completion;
+        new IOListener().start(this, in, null);
+    }
+
+    /*-------------------------------------------------[ Reactor ]---------------------------------------------------*/
+
+    private ByteBuffer buffer;
+    private boolean waiting, finished;
+
+    // set before checking pending, so that worker draining chunks sees it
+    private volatile boolean paused;
+    private long reactorNanos;
+
+    @Override
+    protected boolean process(int readyOp) throws IOException{
+        long begin = System.nanoTime();
+        try{
+            read();
+        }finally{
+            reactorNanos += System.nanoTime()-begin;
+        }
+        return false;
+    }
+
+    private void read(){
+        if(finished || eof)
+            return;
+        if(buffer==null)
+            buffer = reactor.allocator.allocate();
+        while(true){
+            paused = true;
+            if(waiting || pending.get()>=maxPending)
+                return;
+            paused = false;
+            int read;
+            try{
+                read = source.read(buffer);
+            }catch(Throwable thr){
+                error = thr;
+                read = -1;
+            }
+            if(read==0){
+                in.addReadInterest();
+                return;
+            }else if(read==-1){
+                reactor.allocator.free(buffer);
+                buffer = null;
+                eof = true;
+                schedule();
+                return;
+            }
+            buffer.flip();
+            ByteBuffer chunk = ByteBuffer.allocate(buffer.remaining());
+            chunk.put(buffer).flip();
+            buffer.clear();
+            chunks.add(chunk);
+            pending.incrementAndGet();
+            schedule();
+        }
+    }
+
+    private void schedule(){
+        if(scheduled.compareAndSet(false, true)){
+            if(!workers.submit(this::feed, this::retry))
+                waiting = true;
+        }
+    }
+
+    private void retry(){
+        if(finished)
+            return;
+        if(workers.submit(this::feed, this::retry)){
+            waiting = false;
+            resume();
+        }
+    }
+
+    private void resume(){
+        if(paused && !waiting && !finished && pending.get()<maxPending){
+            long begin = System.nanoTime();
+            try{
+                read();
+            }finally{
+                reactorNanos += System.nanoTime()-begin;
+            }
+        }
+    }
+
+    private void finished(Throwable thr){
+        finished = true;
+        if(buffer!=null){
+            reactor.allocator.free(buffer);
+            buffer = null;
+        }
+        workers.record(reactorNanos, workerNanos);
+        completion.accept(thr);
+    }
+
+    /*-------------------------------------------------[ Worker ]---------------------------------------------------*/
+
+    private final ConcurrentLinkedQueue<ByteBuffer> chunks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile boolean eof;
+    private volatile Throwable error;
+    private long workerNanos;
+
+    private void feed(){
+        while(true){
+            long begin = System.nanoTime();
+            Throwable thr = null;
+            boolean done;
+            try{
+                feeder = feeder.feed();
+                done = feeder==null;
+            }catch(Throwable ex){
+                thr = ex;
+                done = true;
+            }
+            workerNanos += System.nanoTime()-begin;
+            if(done){
+                Throwable failure = thr;
+                reactor.invokeLater(() -> finished(failure));
+                return;
+            }
+
+            if(paused)
+                reactor.invokeLater(this::resume);
+            scheduled.set(false);
+            if((chunks.isEmpty() && !eof) || !scheduled.compareAndSet(false, true))
+                return;
+        }
+    }
+
+    private final ReadableByteChannel pipe = new ReadableByteChannel(){
+        @Override
+        public int read(ByteBuffer dst) throws IOException{
+            int read = 0;
+            ByteBuffer chunk;
+            while(dst.hasRemaining() && (chunk=chunks.peek())!=null){
+                int len = Math.min(dst.remaining(), chunk.remaining());
+                int limit = chunk.limit();
+                chunk.limit(chunk.position()+len);
+                dst.put(chunk);
+                chunk.limit(limit);
+                read += len;
+                if(!chunk.hasRemaining()){
+                    chunks.poll();
+                    pending.decrementAndGet();
+                }
+            }
+            if(read==0 && eof && chunks.isEmpty()){
+                Throwable thr = error;
+                if(thr instanceof IOException)
+                    throw (IOException)thr;
+                else if(thr!=null)
+                    throw new IOException(thr);
+                return -1;
+            }
+            return read;
+        }
+
+        @Override
+        public boolean isOpen(){
+            return true;
+        }
+
+        @Override
+        public void close(){}
+    };
+}
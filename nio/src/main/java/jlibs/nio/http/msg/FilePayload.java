@@ -15,16 +15,28 @@
 
 package jlibs.nio.http.msg;
 
+import jlibs.nio.http.util.Encoding;
+
 import java.io.File;
+import java.util.List;
 
 /**
  * @author Santhosh Kumar Tekuri
  */
 public class FilePayload extends Payload{
     public final File file;
+
+    /** encodings already applied to the file content, for example file.gz */
+    public final List<Encoding> encodings;
+
     public FilePayload(String contentType, File file){
+        this(contentType, file, null);
+    }
+
+    public FilePayload(String contentType, File file, List<Encoding> encodings){
         super(contentType);
         this.file = file;
+        this.encodings = encodings;
     }
 
     @Override
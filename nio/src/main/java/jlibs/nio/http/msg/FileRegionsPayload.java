@@ -0,0 +1,89 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+package jlibs.nio.http.msg;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Regions of file content, each optionally preceded by separator bytes.
+ *
+ * The content is either an open FileChannel, which is transferred with zero-copy
+ * and is not closed after transfer, or the file already loaded in memory.
+ * Regions with separators make multipart/byteranges payload.
+ *
+ * release is run once, when the payload is written or discarded, so that
+ * owner can close the channel or reuse the buffer
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public class FileRegionsPayload extends Payload{
+    public final FileChannel channel;
+    public final ByteBuffer content;
+
+    /** offset and length pairs */
+    public final long regions[];
+
+    /**
+     * separators[i] is written before i-th region, and separators[regions.length/2]
+     * after last region. can be null, as can be its entries
+     */
+    public final ByteBuffer separators[];
+
+    private Runnable release;
+
+    public FileRegionsPayload(String contentType, FileChannel channel, long regions[], ByteBuffer separators[], Runnable release){
+        this(contentType, channel, null, regions, separators, release);
+    }
+
+    public FileRegionsPayload(String contentType, ByteBuffer content, long regions[], ByteBuffer separators[], Runnable release){
+        this(contentType, null, content, regions, separators, release);
+    }
+
+    private FileRegionsPayload(String contentType, FileChannel channel, ByteBuffer content, long regions[], ByteBuffer separators[], Runnable release){
+        super(contentType);
+        this.channel = channel;
+        this.content = content;
+        this.regions = regions;
+        this.separators = separators;
+        this.release = release;
+        long contentLength = 0;
+        for(int i=1; i<regions.length; i+=2)
+            contentLength += regions[i];
+        if(separators!=null){
+            for(ByteBuffer separator: separators){
+                if(separator!=null)
+                    contentLength += separator.remaining();
+            }
+        }
+        this.contentLength = contentLength;
+    }
+
+    private final long contentLength;
+
+    @Override
+    public long getContentLength(){
+        return contentLength;
+    }
+
+    public void release(){
+        if(release!=null){
+            Runnable release = this.release;
+            this.release = null;
+            release.run();
+        }
+    }
+}
@@ -15,6 +15,7 @@
 
 package jlibs.nio.http.msg;
 
+import java.nio.ByteBuffer;
 import java.util.Objects;
 
 /**
@@ -28,14 +29,78 @@ public final class Header{
         this.name = name;
     }
 
+    void reset(AsciiString name){
+        this.name = name;
+        value = null;
+        raw = null;
+        sameNext = null;
+        samePrev = this;
+        next = null;
+        prev = this;
+    }
+
+    // value as received: raw[offset, offset+length), null if value is set by application
+    byte raw[];
+    int offset;
+    int length;
+
     public AsciiString getName(){ return name; }
-    public String getValue(){ return value; }
+    public String getValue(){
+        if(value==null && raw!=null)
+            value = decode(raw, offset, length);
+        return value;
+    }
     public void setValue(String value){
         this.value = Objects.requireNonNull(value);
+        raw = null;
+    }
+
+    boolean hasValue(){
+        return value!=null || raw!=null;
+    }
+
+    void setRaw(byte raw[], int offset, int length){
+        this.raw = raw;
+        this.offset = offset;
+        this.length = length;
+        value = null;
+    }
+
+    /** returns true, if value is as received, and not modified by application */
+    public boolean isRaw(){
+        return raw!=null;
+    }
+
+    public int valueLength(){
+        return raw!=null ? length : value.length();
+    }
+
+    /**
+     * puts value from given index into buffer as much as possible.
+     * returns the index of value till which it is put
+     */
+    public int putValueInto(ByteBuffer buffer, int index){
+        int min = Math.min(valueLength()-index, buffer.remaining());
+        if(min>0){
+            if(raw!=null)
+                buffer.put(raw, offset+index, min);
+            else{
+                int toIndex = index+min;
+                for(int i=index; i<toIndex; i++)
+                    buffer.put((byte)value.charAt(i));
+            }
+        }
+        return index+min;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static String decode(byte raw[], int offset, int length){
+        // header values are ISO-8859-1
+        return new String(raw, 0, offset, length);
     }
 
     @Override
-    public String toString(){ return name+": "+value; }
+    public String toString(){ return name+": "+getValue(); }
 
     Header sameNext;
     Header samePrev = this;
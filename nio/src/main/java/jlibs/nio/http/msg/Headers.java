@@ -46,12 +46,12 @@ public final class Headers implements ValueMap{
 
     public String value(AsciiString name){
         Header header = get(name);
-        return header==null ? null : header.value;
+        return header==null ? null : header.getValue();
     }
 
     public String value(CharSequence name){
         Header header = get(name);
-        return header==null ? null : header.value;
+        return header==null ? null : header.getValue();
     }
 
     /*-------------------------------------------------[ Add ]---------------------------------------------------*/
@@ -60,19 +60,60 @@ public final class Headers implements ValueMap{
         if(name==null || value==null)
             return;
         Header head = entry(name, true);
-        if(head.value==null)
+        if(!head.hasValue())
             head.value = value;
         else{
             Header newHeader = newHeader(name);
             newHeader.value = value;
-            Header tail = head.samePrev;
-            tail.sameNext = newHeader;
-            newHeader.samePrev = tail;
-            head.samePrev = newHeader;
+            linkSame(head, newHeader);
         }
         assert validateLinks();
     }
 
+    /*-------------------------------------------------[ Raw ]---------------------------------------------------*/
+
+    // received header values are kept as bytes, and converted to String only when asked
+    private byte raw[];
+    private int rawLength;
+
+    /**
+     * appends given byte to the value being received.
+     * raw block is reallocated on growth, rather than reused, so
+     * that values of headers added earlier are never overwritten
+     */
+    public void appendRaw(byte b){
+        if(raw==null)
+            raw = new byte[256];
+        else if(rawLength==raw.length)
+            raw = Arrays.copyOf(raw, raw.length<<1);
+        raw[rawLength++] = b;
+    }
+
+    public int rawLength(){
+        return rawLength;
+    }
+
+    public byte rawAt(int offset){
+        return raw[offset];
+    }
+
+    /** discards raw bytes from given offset */
+    public void truncateRaw(int offset){
+        rawLength = offset;
+    }
+
+    /** adds header whose value is raw bytes from given offset */
+    public void addRaw(AsciiString name, int offset){
+        Header head = entry(name, true);
+        Header header = head;
+        if(head.hasValue()){
+            header = newHeader(name);
+            linkSame(head, header);
+        }
+        header.setRaw(raw, offset, rawLength-offset);
+        assert validateLinks();
+    }
+
     /*-------------------------------------------------[ Remove ]---------------------------------------------------*/
 
     public Header remove(AsciiString name){
@@ -132,6 +173,28 @@ public final class Headers implements ValueMap{
     public void clear(){
         Arrays.fill(table, null);
         first = null;
+        raw = null;
+        rawLength = 0;
+    }
+
+    /**
+     * clears all headers, retaining table, raw block and Header objects
+     * for reuse. Header objects obtained earlier must not be used after this
+     */
+    public void recycle(){
+        for(int i=0; i<table.length; i++){
+            Object obj = table[i];
+            if(obj instanceof Header[])
+                Arrays.fill((Header[])obj, null);
+            else
+                table[i] = null;
+        }
+        if(first!=null){
+            first.prev.next = free;
+            free = first;
+            first = null;
+        }
+        rawLength = 0;
     }
 
     /*-------------------------------------------------[ Set ]---------------------------------------------------*/
@@ -144,10 +207,10 @@ public final class Headers implements ValueMap{
             return;
         }
         Header head = entry(name, true);
-        if(head.value==null)
+        if(!head.hasValue())
             head.value = value;
         else{
-            head.value = value;
+            head.setValue(value);
             Header next = head.sameNext;
             head.sameNext = null;
             head.samePrev = head;
@@ -158,8 +221,15 @@ public final class Headers implements ValueMap{
 
     /*-------------------------------------------------[ Internal-Helpers ]---------------------------------------------------*/
 
+    private Header free;
     private Header newHeader(AsciiString name){
-        Header header = new Header(name);
+        Header header = free;
+        if(header==null)
+            header = new Header(name);
+        else{
+            free = header.next;
+            header.reset(name);
+        }
         if(first==null)
             first = header;
         else{
@@ -170,6 +240,13 @@ public final class Headers implements ValueMap{
         return header;
     }
 
+    private void linkSame(Header head, Header newHeader){
+        Header tail = head.samePrev;
+        tail.sameNext = newHeader;
+        newHeader.samePrev = tail;
+        head.samePrev = newHeader;
+    }
+
     private Header entry(AsciiString name, boolean create){
         int idx = name.hashCode() & (table.length-1);
         Object obj = table[idx];
@@ -315,7 +392,7 @@ public final class Headers implements ValueMap{
         StringBuilder buffer = Reactor.stringBuilder();
         Header header = first;
         while(header!=null){
-            buffer.append(header.name).append(": ").append(header.value).append("\r\n");
+            buffer.append(header.name).append(": ").append(header.getValue()).append("\r\n");
             header = header.next;
         }
         buffer.append("\r\n");
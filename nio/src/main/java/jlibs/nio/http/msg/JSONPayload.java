@@ -0,0 +1,48 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package jlibs.nio.http.msg;
+
+import jlibs.core.io.IOUtil;
+import jlibs.json.JSONWriter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * value is tree of JSON document as built by {@link jlibs.json.JSONBuilder}
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public class JSONPayload extends EncodablePayload{
+    public final Object value;
+
+    public JSONPayload(String contentType, Object value){
+        super(contentType);
+        this.value = value;
+    }
+
+    public JSONPayload(Object value){
+        this("application/json; charset=utf-8", value);
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException{
+        Writer writer = new OutputStreamWriter(out, IOUtil.UTF_8);
+        new JSONWriter(writer).write(value);
+        writer.flush();
+    }
+}
@@ -49,6 +49,17 @@ public abstract class Message implements Bean{
     }
     public abstract Status timeoutStatus();
 
+    /**
+     * resets to initial state, so that it can be reused for another message.
+     * payload is dropped without closing
+     */
+    public void reset(){
+        version = Version.HTTP_1_1;
+        headers.recycle();
+        trailers = null;
+        payload = EmptyPayload.INSTANCE;
+    }
+
     /*-------------------------------------------------[ Bean ]---------------------------------------------------*/
 
     @Override
@@ -79,6 +90,8 @@ public abstract class Message implements Bean{
     public void setPayload(Payload payload) throws IOException{
         if(this.payload instanceof SocketPayload)
             ((SocketPayload)this.payload).socket().close();
+        else if(this.payload instanceof FileRegionsPayload && this.payload!=payload)
+            ((FileRegionsPayload)this.payload).release();
         this.payload = payload;
     }
 
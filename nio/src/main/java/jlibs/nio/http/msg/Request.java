@@ -32,6 +32,13 @@ public class Request extends Message{
     public Method method = Method.GET;
     public String uri = "/";
 
+    @Override
+    public void reset(){
+        super.reset();
+        method = Method.GET;
+        uri = "/";
+    }
+
     @Override
     public void putLineInto(ByteBuffer buffer){
         method.putInto(buffer);
@@ -111,6 +118,28 @@ public class Request extends Message{
         headers.setListValue(ACCEPT_ENCODING, encodings, null, true);
     }
 
+    public List<QualityItem<String>> getAcceptableEncodings(){
+        return headers.getListValue(ACCEPT_ENCODING, QUALITY_ITEM_PARSER, true);
+    }
+
+    // http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html#sec14.3
+    public static double getEncodingQuality(String encoding, List<QualityItem<String>> acceptableEncodings){
+        if(acceptableEncodings==null || acceptableEncodings.isEmpty())
+            return "identity".equalsIgnoreCase(encoding) ? 1 : 0;
+
+        double defaultQuality = -1;
+        for(QualityItem<String> qualityItem: acceptableEncodings){
+            if("*".equals(qualityItem.item))
+                defaultQuality = qualityItem.quality;
+            else if(qualityItem.item.equalsIgnoreCase(encoding))
+                return qualityItem.quality;
+        }
+
+        if(defaultQuality==-1)
+            return "identity".equalsIgnoreCase(encoding) ? 1 : 0;
+        return defaultQuality;
+    }
+
     /*-------------------------------------------------[ X-Forwarded-For ]---------------------------------------------------*/
 
     // http://en.wikipedia.org/wiki/X-Forwarded-For
@@ -347,6 +376,46 @@ public class Request extends Message{
         headers.setSingleValue(IF_UNMODIFIED_SINCE, date, HTTPDate.getInstance()::format);
     }
 
+    /*-------------------------------------------------[ If-None-Match ]---------------------------------------------------*/
+
+    // http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html#sec14.26
+    public static final AsciiString IF_NONE_MATCH = new AsciiString("If-None-Match");
+
+    public String getIfNoneMatch(){
+        return headers.value(IF_NONE_MATCH);
+    }
+
+    public void setIfNoneMatch(String entityTags){
+        headers.set(IF_NONE_MATCH, entityTags);
+    }
+
+    /*-------------------------------------------------[ Range ]---------------------------------------------------*/
+
+    // http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html#sec14.35
+    public static final AsciiString RANGE = new AsciiString("Range");
+
+    public List<ByteRange> getRanges(){
+        return headers.getSingleValue(RANGE, ByteRange::valueOf);
+    }
+
+    public void setRanges(List<ByteRange> ranges){
+        headers.setSingleValue(RANGE, ranges, ByteRange::toString);
+    }
+
+    /*-------------------------------------------------[ If-Range ]---------------------------------------------------*/
+
+    // http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html#sec14.27
+    public static final AsciiString IF_RANGE = new AsciiString("If-Range");
+
+    /** returns entity-tag or HTTP-date */
+    public String getIfRange(){
+        return headers.value(IF_RANGE);
+    }
+
+    public void setIfRange(String value){
+        headers.set(IF_RANGE, value);
+    }
+
     /*-------------------------------------------------[ SOAPAction ]---------------------------------------------------*/
 
     // http://www.w3.org/TR/2000/NOTE-SOAP-20000508/#_Toc478383528
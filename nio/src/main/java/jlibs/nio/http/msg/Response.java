@@ -31,6 +31,12 @@ import java.util.Map;
 public class Response extends Message{
     public Status status = Status.OK;
 
+    @Override
+    public void reset(){
+        super.reset();
+        status = Status.OK;
+    }
+
     @Override
     public void putLineInto(ByteBuffer buffer){
         status.putInto(buffer, version);
@@ -122,11 +128,52 @@ public class Response extends Message{
     public static final AsciiString LAST_MODIFIED = new AsciiString("Last-Modified");
 
     public Date getLastModified(){
-        return headers.getSingleValue(EXPIRES, HTTPDate.getInstance()::parse);
+        return headers.getSingleValue(LAST_MODIFIED, HTTPDate.getInstance()::parse);
     }
 
     public void setLastModified(Date date){
-        headers.setSingleValue(EXPIRES, date, HTTPDate.getInstance()::format);
+        headers.setSingleValue(LAST_MODIFIED, date, HTTPDate.getInstance()::format);
+    }
+
+    /*-------------------------------------------------[ ETag ]---------------------------------------------------*/
+
+    // http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html#sec14.19
+    public static final AsciiString ETAG = new AsciiString("ETag");
+
+    public String getETag(){
+        return headers.value(ETAG);
+    }
+
+    public void setETag(String entityTag){
+        headers.set(ETAG, entityTag);
+    }
+
+    /*-------------------------------------------------[ Accept-Ranges ]---------------------------------------------------*/
+
+    // http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html#sec14.5
+    public static final AsciiString ACCEPT_RANGES = new AsciiString("Accept-Ranges");
+
+    public String getAcceptRanges(){
+        return headers.value(ACCEPT_RANGES);
+    }
+
+    public void setAcceptRanges(String rangeUnit){
+        headers.set(ACCEPT_RANGES, rangeUnit);
+    }
+
+    /*-------------------------------------------------[ Content-Range ]---------------------------------------------------*/
+
+    // http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html#sec14.16
+    public static final AsciiString CONTENT_RANGE = new AsciiString("Content-Range");
+
+    public String getContentRange(){
+        return headers.value(CONTENT_RANGE);
+    }
+
+    /** @param length -1 if unknown */
+    public void setContentRange(long offset, long count, long length){
+        String len = length==-1 ? "*" : Long.toString(length);
+        headers.set(CONTENT_RANGE, count==0 ? ByteRange.BYTES+" */"+len : ByteRange.BYTES+' '+offset+'-'+(offset+count-1)+'/'+len);
     }
 
     /*-------------------------------------------------[ WWW-Authenticate ]---------------------------------------------------*/
@@ -219,6 +266,19 @@ public class Response extends Message{
         headers.setSingleValue(CONTENT_LOCATION, location, null);
     }
 
+    /*-------------------------------------------------[ Vary ]---------------------------------------------------*/
+
+    // http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html#sec14.44
+    public static final AsciiString VARY = new AsciiString("Vary");
+
+    public List<String> getVary(){
+        return headers.getListValue(VARY, Parser.LVALUE_FUNCTION, true);
+    }
+
+    public void setVary(Collection<String> fieldNames){
+        headers.setListValue(VARY, fieldNames, null, true);
+    }
+
     /*-------------------------------------------------[ Allow ]---------------------------------------------------*/
 
     // http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html#sec14.7
@@ -31,8 +31,8 @@ public final class Version extends AsciiString implements Bean{
         super("HTTP/"+major+"."+minor);
         this.major = major;
         this.minor = minor;
-        keepAliveDefault = major>=1 && minor>=1;
-        expectSupported = major>=1 && minor>=1;
+        keepAliveDefault = major>1 || (major==1 && minor>=1);
+        expectSupported = major>1 || (major==1 && minor>=1);
     }
 
     @Override
@@ -48,6 +48,7 @@ public final class Version extends AsciiString implements Bean{
 
     public static final Version HTTP_1_0 = new Version(1, 0);
     public static final Version HTTP_1_1 = new Version(1, 1);
+    public static final Version HTTP_2_0 = new Version(2, 0);
 
     public static Version valueOf(int major, int minor){
         if(major==1){
@@ -55,7 +56,8 @@ public final class Version extends AsciiString implements Bean{
                 return HTTP_1_1;
             if(minor==0)
                 return HTTP_1_0;
-        }
+        }else if(major==2 && minor==0)
+            return HTTP_2_0;
         return new Version(major, minor);
     }
 }
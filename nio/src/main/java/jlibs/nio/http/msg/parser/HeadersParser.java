@@ -68,7 +68,7 @@ public class HeadersParser implements Parser{
 
                     if(name!=null){
                         if(WS[ch]){
-                            builder.append(SP);
+                            headers.appendRaw(SP);
                             state = VALUE;
                             if(buffer.hasRemaining())
                                 break;
@@ -87,6 +87,9 @@ public class HeadersParser implements Parser{
                         if(ch==COLON){
                             name = AsciiString.valueOf(builder);
                             builder.setLength(0);
+                            if(headers==null)
+                                headers = message.trailers = new Headers();
+                            valueOffset = headers.rawLength();
                             state = VALUE_BEGIN;
                             break;
                         }else{
@@ -99,7 +102,8 @@ public class HeadersParser implements Parser{
                         return false;
                 case VALUE_BEGIN:
                     while(buffer.hasRemaining()){
-                        if(!WS[buffer.get()]){
+                        byte b = buffer.get();
+                        if(b<0 || !WS[b]){
                             buffer.position(buffer.position()-1);
                             state = VALUE;
                             break;
@@ -109,8 +113,8 @@ public class HeadersParser implements Parser{
                         return false;
                 case VALUE:
                     while(buffer.hasRemaining()){
-                        ch = (char)buffer.get();
-                        if(ch==CR){
+                        byte b = buffer.get();
+                        if(b==CR){
                             if(buffer.hasRemaining()){
                                 if(buffer.get()!=LF)
                                     throw errorStatus.with("Bad EOL");
@@ -120,11 +124,11 @@ public class HeadersParser implements Parser{
                                 buffer.position(buffer.position()-1);
                                 return false;
                             }
-                        }else if(ch==LF){
+                        }else if(b==LF){
                             state = LINE_BEGIN;
                             break;
                         }else
-                            builder.append(ch);
+                            headers.appendRaw(b);
                     }
                     if(!buffer.hasRemaining())
                         return false;
@@ -133,15 +137,19 @@ public class HeadersParser implements Parser{
         return false;
     }
 
+    // value bytes are stored in headers as received, without decoding
+    private int valueOffset;
     private void addHeader(){
-        int end = builder.length();
-        while(end>0 && WS[builder.charAt(end-1)])
+        int end = headers.rawLength();
+        while(end>valueOffset){
+            byte b = headers.rawAt(end-1);
+            if(b<0 || !WS[b])
+                break;
             --end;
-        if(headers==null)
-            headers = message.trailers = new Headers();
-        headers.add(name, builder.substring(0, end));
+        }
+        headers.truncateRaw(end);
+        headers.addRaw(name, valueOffset);
         name = null;
-        builder.setLength(0);
     }
 
     private Status errorStatus;
@@ -15,9 +15,11 @@
 
 package jlibs.nio.http.msg.parser;
 
+import jlibs.nio.Reactor;
 import jlibs.nio.http.msg.*;
-import jlibs.nio.http.util.ContentDisposition;
 import jlibs.nio.http.util.USAscii;
+import jlibs.nio.util.BufferAllocator;
+import jlibs.nio.util.Buffers;
 import jlibs.nio.util.Parser;
 
 import java.io.EOFException;
@@ -26,6 +28,12 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static jlibs.nio.http.msg.parser.MultipartParser.State.*;
 import static jlibs.nio.http.util.USAscii.*;
@@ -65,6 +73,11 @@ public class MultipartParser implements Parser{
         closeDelimiter.put(LF);
         closeDelimiter.flip();
 
+        pattern = Arrays.copyOf(delimiter.array(), 4+boundary.length());
+        Arrays.fill(shift, pattern.length);
+        for(int i=0; i<pattern.length-1; i++)
+            shift[pattern[i]&0xFF] = pattern.length-1-i;
+
         state = DELIMITER;
         delimiter.get();
         delimiter.get();
@@ -76,11 +89,14 @@ public class MultipartParser implements Parser{
     enum State { HEADERS, CONTENT, DELIMITER, CLOSE_DELIMITER, DRAIN }
     private State state;
     private Part part;
-    private FileChannel fileChannel;
+    private long partSize;
+    private Spool spool;
     private HeadersParser headersParser = new HeadersParser();
 
     @Override
     public boolean parse(ByteBuffer buffer, boolean eof) throws IOException{
+        if(spoolFailure!=null)
+            throw spoolFailure;
         char ch;
         int pos = buffer.position();
         while(buffer.hasRemaining()){
@@ -93,30 +109,27 @@ public class MultipartParser implements Parser{
                     }
                     state = CONTENT;
                     pos = buffer.position();
+                    part = new DefaultPart(headersParser.getHeaders());
+                    partSize = 0;
+                    payload.parts.add(part);
                     if(!buffer.hasRemaining())
                         break;
-
-                    Headers headers = headersParser.getHeaders();
-                    ContentDisposition cd = headers.getSingleValue(Message.CONTENT_DISPOSITION, ContentDisposition::new);
-                    if(cd!=null && cd.getFileName()!=null){
-                        File file = File.createTempFile("jlibs", "upload");
-                        part = new FilePart(file, headers);
-                        fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
-                    }
-                    if(part==null)
-                        part = new DefaultPart(headersParser.getHeaders());
-                    payload.parts.add(part);
                 case CONTENT:
-                    while(buffer.hasRemaining()){
-                        ch = (char)buffer.get();
-                        if(ch==CR){
+                    int from = buffer.position();
+                    int to = buffer.limit();
+                    int match = indexOf(buffer, from, to);
+                    if(match==-1){
+                        match = partialMatch(buffer, from, to);
+                        buffer.position(to);
+                        if(match!=-1){
                             state = DELIMITER;
-                            delimiter.get();
-                            break;
+                            delimiter.position(to-match);
                         }
-                    }
-                    if(!buffer.hasRemaining())
                         break;
+                    }
+                    buffer.position(match+pattern.length);
+                    state = DELIMITER;
+                    delimiter.position(pattern.length);
                 case DELIMITER:
                     while(buffer.hasRemaining()){
                         if(delimiter.position()==delimiter.capacity()-2){
@@ -140,13 +153,9 @@ public class MultipartParser implements Parser{
                         }else{
                             writeContent(pos, buffer, delimiter);
                             pos = buffer.position();
-                            if(fileChannel!=null){
-                                fileChannel.close();
-                                fileChannel = null;
-                            }
+                            partFinished();
                             state = HEADERS;
                             headersParser.reset(new Headers(), errorStatus);
-                            part = null;
                             break;
                         }
                     }
@@ -163,10 +172,7 @@ public class MultipartParser implements Parser{
                     }
                     if(state==CLOSE_DELIMITER && !closeDelimiter.hasRemaining()){
                         writeContent(pos, buffer, closeDelimiter);
-                        if(fileChannel!=null){
-                            fileChannel.close();
-                            fileChannel = null;
-                        }
+                        partFinished();
                         pos = buffer.position();
                         state = DRAIN;
                     }else
@@ -197,6 +203,71 @@ public class MultipartParser implements Parser{
         return eof;
     }
 
+    /*-------------------------------------------------[ Boundary Search ]---------------------------------------------------*/
+
+    // delimiter without trailing CRLF, searched using Boyer-Moore-Horspool
+    private final byte pattern[];
+    private final int shift[] = new int[256];
+
+    /** returns index of pattern in buffer[from, to), -1 if not found */
+    private int indexOf(ByteBuffer buffer, int from, int to){
+        byte pattern[] = this.pattern;
+        int last = pattern.length-1;
+        byte lastByte = pattern[last];
+        if(buffer.hasArray()){
+            byte array[] = buffer.array();
+            int offset = buffer.arrayOffset();
+            int i = offset+from;
+            int end = offset+to-pattern.length;
+            while(i<=end){
+                byte b = array[i+last];
+                if(b==lastByte){
+                    int j = last-1;
+                    while(j>=0 && array[i+j]==pattern[j])
+                        --j;
+                    if(j<0)
+                        return i-offset;
+                }
+                i += shift[b&0xFF];
+            }
+        }else{
+            int i = from;
+            int end = to-pattern.length;
+            while(i<=end){
+                byte b = buffer.get(i+last);
+                if(b==lastByte){
+                    int j = last-1;
+                    while(j>=0 && buffer.get(i+j)==pattern[j])
+                        --j;
+                    if(j<0)
+                        return i;
+                }
+                i += shift[b&0xFF];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * returns start of longest suffix of buffer[from, to), which
+     * is prefix of pattern. returns -1 if there is no such suffix
+     */
+    private int partialMatch(ByteBuffer buffer, int from, int to){
+        for(int i=Math.max(from, to-pattern.length+1); i<to; i++){
+            if(buffer.get(i)==CR){
+                int j = i+1;
+                int k = 1;
+                while(j<to && buffer.get(j)==pattern[k]){
+                    ++j;
+                    ++k;
+                }
+                if(j==to)
+                    return i;
+            }
+        }
+        return -1;
+    }
+
     private void writeMissing(int pos, ByteBuffer buffer, ByteBuffer delimiter) throws IOException{
         if(buffer.position()-pos<delimiter.position()){
             delimiter.limit(delimiter.position()-(buffer.position()-pos));
@@ -216,25 +287,194 @@ public class MultipartParser implements Parser{
         delimiter.clear();
     }
 
+    /*-------------------------------------------------[ Content ]---------------------------------------------------*/
+
+    public long memoryThreshold = Defaults.MEMORY_THRESHOLD;
+    public Executor diskExecutor = Defaults.DISK_EXECUTOR;
+    public int maxPendingWrites = Defaults.MAX_PENDING_WRITES;
+
     private void write(ByteBuffer src) throws IOException{
-        if(part==null)
+        if(part==null){
             src.position(src.limit());
-        else if(part instanceof FilePart){
-            while(src.hasRemaining())
-                fileChannel.write(src);
-        }else
+            return;
+        }
+        partSize += src.remaining();
+        if(spool==null && partSize>memoryThreshold){
+            // part is too large to keep in memory
+            File file = File.createTempFile("jlibs", "upload");
+            FileChannel channel;
+            try{
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+            }catch(IOException ex){
+                file.delete();
+                throw ex;
+            }
+            Buffers buffers = ((DefaultPart)part).buffers;
+            part = new FilePart(file, part.headers);
+            payload.parts.set(payload.parts.size()-1, part);
+            spool = new Spool(channel);
+            while(buffers.length>0)
+                spool.submit(buffers.remove());
+        }
+        if(spool==null)
             ((DefaultPart)part).buffers.write(src);
+        else
+            spool.write(src);
+    }
+
+    private void partFinished(){
+        if(spool!=null){
+            spool.close();
+            spool = null;
+        }
+        part = null;
+    }
+
+    /*-------------------------------------------------[ Spooling ]---------------------------------------------------*/
+
+    private static final ByteBuffer CLOSE = ByteBuffer.allocate(0);
+
+    private int pendingWrites;
+    private IOException spoolFailure;
+    private Runnable spoolListener;
+
+    /**
+     * returns true, if too many buffers are waiting to be written to disk.
+     * reading should be paused until spool listener is notified
+     */
+    public boolean isBackedUp(){
+        return pendingWrites>=maxPendingWrites;
+    }
+
+    /**
+     * returns true, if content of all file parts is written to disk.
+     * throws exception if writing to disk failed
+     */
+    public boolean isSpooled() throws IOException{
+        if(spoolFailure!=null)
+            throw spoolFailure;
+        return pendingWrites==0;
+    }
+
+    /** listener notified in reactor thread, each time a spooled buffer is written */
+    public void setSpoolListener(Runnable listener){
+        spoolListener = listener;
+    }
+
+    /**
+     * writes content of file part in diskExecutor, in the order
+     * it is submitted. buffers are freed in reactor thread
+     */
+    private class Spool{
+        private final FileChannel channel;
+        private final Reactor reactor = Reactor.current();
+        private final Executor executor = reactor==null ? null : diskExecutor;
+        private final Buffers buffers = new Buffers();
+        private final ConcurrentLinkedQueue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queued = new AtomicInteger();
+        private volatile boolean aborted;
+
+        private Spool(FileChannel channel){
+            this.channel = channel;
+        }
+
+        public void write(ByteBuffer src){
+            buffers.write(src);
+            // submit only filled buffers, last one may still have room
+            while(buffers.length>1)
+                submit(buffers.remove());
+            if(buffers.length==1){
+                ByteBuffer last = buffers.peekLast();
+                if(last.limit()==last.capacity())
+                    submit(buffers.remove());
+            }
+        }
+
+        public void submit(ByteBuffer buffer){
+            ++pendingWrites;
+            if(executor==null){
+                IOException failure = writeToDisk(buffer);
+                written(buffer, failure);
+            }else{
+                queue.add(buffer);
+                if(queued.getAndIncrement()==0)
+                    executor.execute(this::drain);
+            }
+        }
+
+        public void close(){
+            while(buffers.length>0)
+                submit(buffers.remove());
+            submit(CLOSE);
+        }
+
+        public void abort(){
+            aborted = true;
+            close();
+        }
+
+        private void drain(){
+            do{
+                ByteBuffer buffer = queue.poll();
+                IOException failure = writeToDisk(buffer);
+                reactor.invokeLater(() -> written(buffer, failure));
+            }while(queued.decrementAndGet()!=0);
+        }
+
+        private IOException writeToDisk(ByteBuffer buffer){
+            try{
+                if(buffer==CLOSE)
+                    channel.close();
+                else if(!aborted){
+                    while(buffer.hasRemaining())
+                        channel.write(buffer);
+                }
+                return null;
+            }catch(IOException ex){
+                aborted = true;
+                return ex;
+            }
+        }
+
+        private void written(ByteBuffer buffer, IOException failure){
+            --pendingWrites;
+            if(buffer!=CLOSE)
+                BufferAllocator.current().free(buffer);
+            if(failure!=null && spoolFailure==null)
+                spoolFailure = failure;
+            if(spoolListener!=null)
+                spoolListener.run();
+        }
     }
 
     @Override
     public void cleanup(){
-        try{
-            if(fileChannel!=null){
-                fileChannel.close();
-                fileChannel = null;
-            }
-        }catch(IOException ex){
-            throw new RuntimeException(ex);
+        spoolListener = null;
+        if(spool!=null){
+            spool.abort();
+            spool = null;
+        }
+    }
+
+    /*-------------------------------------------------[ Defaults ]---------------------------------------------------*/
+
+    public static class Defaults{
+        /** parts larger than this are written to temporary file */
+        public static long MEMORY_THRESHOLD = 64*1024;
+
+        /** executor used to write parts to disk. null means write in reactor thread */
+        public static Executor DISK_EXECUTOR = newDiskExecutor(2);
+
+        /** number of buffers waiting to be written to disk, beyond which reading is paused */
+        public static int MAX_PENDING_WRITES = 8;
+
+        public static ExecutorService newDiskExecutor(int threads){
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "multipart-spool-"+count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
         }
     }
 }
@@ -0,0 +1,134 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+package jlibs.nio.http.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * byte-range-spec of Range header
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public class ByteRange{
+    /** -1 for suffix range, i.e last "last" bytes */
+    public final long first;
+
+    /** -1 if range extends till end */
+    public final long last;
+
+    public ByteRange(long first, long last){
+        this.first = first;
+        this.last = last;
+    }
+
+    /** returns offset of this range in content of given length, -1 if not satisfiable */
+    public long offset(long length){
+        if(first==-1)
+            return last==0 || length==0 ? -1 : Math.max(length-last, 0);
+        return first<length ? first : -1;
+    }
+
+    /** returns length of this range in content of given length */
+    public long length(long length){
+        long offset = offset(length);
+        if(offset==-1)
+            return 0;
+        if(first==-1 || last==-1 || last>=length)
+            return length-offset;
+        return last-offset+1;
+    }
+
+    private String toString;
+
+    @Override
+    public String toString(){
+        if(toString==null){
+            if(first==-1)
+                toString = "-"+last;
+            else
+                toString = last==-1 ? first+"-" : first+"-"+last;
+        }
+        return toString;
+    }
+
+    // http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html#sec14.35.1
+    public static final String BYTES = "bytes";
+
+    /** returns null, if value is not a syntactically valid bytes-range */
+    public static List<ByteRange> valueOf(String value){
+        if(value==null)
+            return null;
+        int equals = value.indexOf('=');
+        if(equals==-1 || !BYTES.equalsIgnoreCase(value.substring(0, equals).trim()))
+            return null;
+
+        List<ByteRange> ranges = new ArrayList<>();
+        int from = equals+1;
+        while(from<=value.length()){
+            int comma = value.indexOf(',', from);
+            if(comma==-1)
+                comma = value.length();
+            String spec = value.substring(from, comma).trim();
+            from = comma+1;
+            if(spec.isEmpty())
+                continue;
+            int hyphen = spec.indexOf('-');
+            if(hyphen==-1)
+                return null;
+            try{
+                String first = spec.substring(0, hyphen).trim();
+                String last = spec.substring(hyphen+1).trim();
+                ByteRange range;
+                if(first.isEmpty()){
+                    if(last.isEmpty())
+                        return null;
+                    range = new ByteRange(-1, parsePosition(last));
+                }else{
+                    range = new ByteRange(parsePosition(first), last.isEmpty() ? -1 : parsePosition(last));
+                    if(range.last!=-1 && range.last<range.first)
+                        return null;
+                }
+                ranges.add(range);
+            }catch(NumberFormatException ex){
+                return null;
+            }
+        }
+        return ranges.isEmpty() ? null : ranges;
+    }
+
+    /** unlike Long.parseLong, sign is not allowed */
+    private static long parsePosition(String digits){
+        for(int i=0; i<digits.length(); i++){
+            char ch = digits.charAt(i);
+            if(ch<'0' || ch>'9')
+                throw new NumberFormatException(digits);
+        }
+        return Long.parseLong(digits);
+    }
+
+    public static String toString(List<ByteRange> ranges){
+        if(ranges==null)
+            return null;
+        StringBuilder buff = new StringBuilder(BYTES).append('=');
+        for(int i=0; i<ranges.size(); i++){
+            if(i>0)
+                buff.append(',');
+            buff.append(ranges.get(i));
+        }
+        return buff.toString();
+    }
+}
@@ -171,6 +171,10 @@ public class MediaType implements Bean{
         return "xml".equals(subType) || subType.endsWith("+xml");
     }
 
+    public boolean isJSON(){
+        return "json".equals(subType) || subType.endsWith("+json");
+    }
+
     @Override
     public boolean equals(Object obj){
         if(obj==this)
@@ -160,10 +160,18 @@ public abstract class Task{
     private FileChannel fileChannel;
     private long fileOffset;
     private long fileLength;
+    private boolean closeFile;
     protected void prepareTransferFromFile(File file) throws IOException{
-        fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
-        fileOffset = 0;
-        fileLength = fileChannel.size();
+        FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        prepareTransferFromFile(fileChannel, 0, fileChannel.size(), true);
+    }
+
+    /** @param close whether to close fileChannel after transfer, false if it is shared */
+    protected void prepareTransferFromFile(FileChannel fileChannel, long offset, long length, boolean close){
+        this.fileChannel = fileChannel;
+        fileOffset = offset;
+        fileLength = length;
+        closeFile = close;
         if(out instanceof ChunkedOutput)
             ((ChunkedOutput)out).startChunk(fileLength);
     }
@@ -189,8 +197,10 @@ public abstract class Task{
     }
 
     private void transferFromFileDone() throws IOException{
-        fileChannel.close();
-        fileChannel = null;
+        FileChannel fileChannel = this.fileChannel;
+        this.fileChannel = null;
+        if(closeFile)
+            fileChannel.close();
     }
 
     /*-------------------------------------------------[ readBuffers ]---------------------------------------------------*/
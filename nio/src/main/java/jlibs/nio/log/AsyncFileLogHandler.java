@@ -0,0 +1,460 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package jlibs.nio.log;
+
+import jlibs.nio.Reactor;
+import jlibs.nio.util.RepeatingDuration;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * LogHandler which does no file io on the publishing thread.
+ * <p>
+ * each reactor formats records into its own lock-free ring buffer.
+ * records published by non-reactor threads go through a shared ring.
+ * a single background thread drains all rings in batches into a direct
+ * buffer and writes it to FileChannel.
+ * <p>
+ * file is rotated when the date format in its name changes, and
+ * when it would grow beyond maxFileSize. rotated files can be gzipped.
+ * when rings are full, because disk is falling behind, overflowPolicy
+ * decides whether records are dropped or the publisher waits.
+ * <p>
+ * options must be set before first record is published
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public class AsyncFileLogHandler implements LogHandler, Closeable{
+    private final File dir;
+    private final String prefix;
+    private final String suffix;
+    private final String format;
+    private final RepeatingDuration repeatingDuration;
+
+    public AsyncFileLogHandler(File dir, String prefix, String suffix, String format){
+        this.dir = dir;
+        this.prefix = prefix;
+        this.suffix = suffix;
+        this.format = format;
+        repeatingDuration = RepeatingDuration.forFormat(format);
+    }
+
+    /*-------------------------------------------------[ Options ]---------------------------------------------------*/
+
+    public enum OverflowPolicy{
+        /** record is dropped, and counted in getDropped() */
+        DROP,
+
+        /** publisher waits until writer makes room. this stalls reactor */
+        BLOCK
+    }
+
+    public OverflowPolicy overflowPolicy = OverflowPolicy.DROP;
+
+    /** size of each ring. must be power of two. records larger than this are dropped */
+    public int ringSize = 1024*1024;
+
+    /** size of direct buffer used by writer */
+    public int batchSize = 256*1024;
+
+    /** file is rotated before it grows beyond this size. 0 means no size limit */
+    public long maxFileSize = 0;
+
+    /** rotated files are gzipped */
+    public boolean compressOnRotate = false;
+
+    /** max time a record waits in ring, when there is no load */
+    public long flushIntervalMillis = 100;
+
+    /*-------------------------------------------------[ Publish ]---------------------------------------------------*/
+
+    private volatile Ring rings[] = new Ring[0]; // indexed by reactor id
+    private volatile Ring sharedRing; // used by non-reactor threads
+    private Thread writer;
+    private volatile boolean closed;
+    private volatile boolean writerSleeping;
+
+    @Override
+    public void publish(LogRecord record){
+        if(closed)
+            return;
+        Reactor reactor = Reactor.current();
+        if(reactor==null){
+            Ring ring = sharedRing;
+            if(ring==null)
+                ring = createRing(-1);
+            synchronized(ring){
+                ring.publish(record);
+            }
+        }else{
+            Ring rings[] = this.rings;
+            Ring ring = reactor.id<rings.length ? rings[reactor.id] : null;
+            if(ring==null)
+                ring = createRing(reactor.id);
+            ring.publish(record);
+        }
+    }
+
+    private synchronized Ring createRing(int reactorID){
+        if(writer==null)
+            startWriter();
+        if(reactorID==-1){
+            if(sharedRing==null)
+                sharedRing = new Ring();
+            return sharedRing;
+        }
+        Ring rings[] = this.rings;
+        if(reactorID>=rings.length)
+            rings = Arrays.copyOf(rings, reactorID+1);
+        if(rings[reactorID]==null){
+            rings[reactorID] = new Ring();
+            this.rings = rings;
+        }
+        return rings[reactorID];
+    }
+
+    private Ring[] allRings(){
+        Ring rings[] = this.rings;
+        Ring sharedRing = this.sharedRing;
+        if(sharedRing!=null){
+            rings = Arrays.copyOf(rings, rings.length+1);
+            rings[rings.length-1] = sharedRing;
+        }
+        return rings;
+    }
+
+    private void wakeupWriter(){
+        if(writerSleeping)
+            LockSupport.unpark(writer);
+    }
+
+    /**
+     * single-producer single-consumer ring of records. each record
+     * is stored as 4 byte length followed by its utf-8 bytes
+     */
+    private final class Ring{
+        private final byte data[] = new byte[Integer.highestOneBit(Math.max(ringSize, 1024))];
+        private final int mask = data.length-1;
+        private final AtomicLong head = new AtomicLong(); // advanced by writer
+        private final AtomicLong tail = new AtomicLong(); // advanced by publisher
+        private long cachedHead;
+
+        // accessed only by publisher
+        private final StringBuilder chars = new StringBuilder();
+        private final CharsetEncoder encoder = UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private ByteBuffer bytes = ByteBuffer.allocate(1024);
+
+        // written only by publisher
+        private volatile long published, dropped, blocked;
+
+        private void publish(LogRecord record){
+            chars.setLength(0);
+            try{
+                record.publishTo(chars);
+            }catch(IOException ex){
+                ex.printStackTrace();
+                return;
+            }
+            encode();
+            int length = bytes.remaining();
+            int size = 4+length;
+            if(size>data.length || length>batchSize){
+                dropped++;
+                return;
+            }
+            long tail = this.tail.get();
+            if(tail+size-cachedHead>data.length){
+                cachedHead = head.get();
+                if(tail+size-cachedHead>data.length){
+                    if(overflowPolicy==OverflowPolicy.DROP){
+                        dropped++;
+                        wakeupWriter();
+                        return;
+                    }
+                    blocked++;
+                    while(tail+size-(cachedHead=head.get())>data.length){
+                        if(closed)
+                            return;
+                        LockSupport.unpark(writer);
+                        LockSupport.parkNanos(10_000);
+                    }
+                }
+            }
+            put(tail, length>>>24);
+            put(tail+1, length>>>16);
+            put(tail+2, length>>>8);
+            put(tail+3, length);
+            int offset = (int)((tail+4) & mask);
+            int first = Math.min(length, data.length-offset);
+            bytes.get(data, offset, first);
+            bytes.get(data, 0, length-first);
+            published++;
+            this.tail.lazySet(tail+size);
+            if(tail==cachedHead || tail+size-cachedHead>data.length/2)
+                wakeupWriter();
+        }
+
+        private void put(long index, int b){
+            data[(int)(index & mask)] = (byte)b;
+        }
+
+        private int get(long index){
+            return data[(int)(index & mask)] & 0xFF;
+        }
+
+        private void encode(){
+            bytes.clear();
+            encoder.reset();
+            CharBuffer in = CharBuffer.wrap(chars);
+            while(true){
+                CoderResult result = encoder.encode(in, bytes, true);
+                if(result.isOverflow()){
+                    ByteBuffer newBytes = ByteBuffer.allocate(2*bytes.capacity());
+                    bytes.flip();
+                    newBytes.put(bytes);
+                    bytes = newBytes;
+                }else
+                    break;
+            }
+            encoder.flush(bytes);
+            bytes.flip();
+        }
+
+        /** moves whole records to dst, as long as they fit */
+        private boolean drainTo(ByteBuffer dst){
+            long head = this.head.get();
+            long tail = this.tail.get();
+            long from = head;
+            while(head<tail){
+                int length = get(head)<<24 | get(head+1)<<16 | get(head+2)<<8 | get(head+3);
+                if(length>dst.remaining())
+                    break;
+                int offset = (int)((head+4) & mask);
+                int first = Math.min(length, data.length-offset);
+                dst.put(data, offset, first);
+                dst.put(data, 0, length-first);
+                head += 4+length;
+            }
+            if(head!=from)
+                this.head.lazySet(head);
+            return head!=tail;
+        }
+
+        private boolean isEmpty(){
+            return head.get()==tail.get();
+        }
+    }
+
+    /*-------------------------------------------------[ Writer ]---------------------------------------------------*/
+
+    private void startWriter(){
+        writer = new Thread(this::write, "AsyncFileLogHandler["+prefix+"*"+suffix+"]");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    private FileChannel channel;
+    private File file;
+    private String fileDate;
+    private int fileIndex;
+    private long fileSize;
+    private long nextRotation;
+
+    private void write(){
+        ByteBuffer batch = ByteBuffer.allocateDirect(batchSize);
+        while(true){
+            boolean pending = false;
+            for(Ring ring: allRings()){
+                if(ring!=null && ring.drainTo(batch)){
+                    pending = true;
+                    if(!batch.hasRemaining())
+                        break;
+                }
+            }
+            if(batch.position()>0){
+                batch.flip();
+                writeBatch(batch);
+                batch.clear();
+            }else if(!pending){
+                if(closed)
+                    break;
+                writerSleeping = true;
+                if(allEmpty())
+                    LockSupport.parkNanos(flushIntervalMillis*1000_000L);
+                writerSleeping = false;
+            }
+        }
+        closeFile(false);
+    }
+
+    private boolean allEmpty(){
+        for(Ring ring: allRings()){
+            if(ring!=null && !ring.isEmpty())
+                return false;
+        }
+        return true;
+    }
+
+    private void writeBatch(ByteBuffer batch){
+        try{
+            int length = batch.remaining();
+            long now = System.currentTimeMillis();
+            if(channel==null || now>=nextRotation || (maxFileSize>0 && fileSize>0 && fileSize+length>maxFileSize))
+                rotate(now);
+            while(batch.hasRemaining())
+                channel.write(batch);
+            fileSize += length;
+            bytesWritten.addAndGet(length);
+        }catch(Throwable thr){
+            writeErrors.incrementAndGet();
+            thr.printStackTrace();
+            closeFile(false);
+        }
+    }
+
+    private void rotate(long now) throws IOException{
+        boolean existing = channel!=null;
+        closeFile(existing && compressOnRotate);
+        if(existing)
+            rotations.incrementAndGet();
+
+        String date = new SimpleDateFormat(format).format(new Date(now));
+        if(date.equals(fileDate))
+            ++fileIndex;
+        else{
+            fileDate = date;
+            fileIndex = 0;
+        }
+        while(true){
+            String name = prefix+date+(fileIndex==0 ? "" : "-"+fileIndex)+suffix;
+            file = new File(dir, name);
+            if(maxFileSize<=0 || (!new File(dir, name+".gz").exists() && file.length()<maxFileSize))
+                break;
+            ++fileIndex;
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileSize = channel.size();
+        nextRotation = repeatingDuration==null ? Long.MAX_VALUE : repeatingDuration.next(now);
+    }
+
+    private void closeFile(boolean compress){
+        if(channel!=null){
+            try{
+                channel.close();
+            }catch(IOException ex){
+                ex.printStackTrace();
+            }
+            channel = null;
+            if(compress){
+                File file = this.file;
+                // not daemon, so that jvm exit waits for compression
+                new Thread(() -> gzip(file), "gzip["+file.getName()+"]").start();
+            }
+        }
+    }
+
+    private static void gzip(File file){
+        File gzFile = new File(file.getPath()+".gz");
+        try(InputStream in=new FileInputStream(file); OutputStream out=new GZIPOutputStream(new FileOutputStream(gzFile), 64*1024)){
+            byte buff[] = new byte[64*1024];
+            int read;
+            while((read=in.read(buff))!=-1)
+                out.write(buff, 0, read);
+        }catch(IOException ex){
+            ex.printStackTrace();
+            if(!gzFile.delete())
+                gzFile.deleteOnExit();
+            return;
+        }
+        if(!file.delete())
+            file.deleteOnExit();
+    }
+
+    /** stops accepting records, and waits until published records are written */
+    @Override
+    public void close(){
+        closed = true;
+        Thread writer;
+        synchronized(this){
+            writer = this.writer;
+        }
+        if(writer!=null && writer!=Thread.currentThread()){
+            LockSupport.unpark(writer);
+            try{
+                writer.join();
+            }catch(InterruptedException ex){
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /*-------------------------------------------------[ Statistics ]---------------------------------------------------*/
+
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong rotations = new AtomicLong();
+    private final AtomicLong writeErrors = new AtomicLong();
+
+    /** records accepted into rings */
+    public long getPublished(){
+        long count = 0;
+        for(Ring ring: allRings()){
+            if(ring!=null)
+                count += ring.published;
+        }
+        return count;
+    }
+
+    /** records dropped, because ring was full or record too large */
+    public long getDropped(){
+        long count = 0;
+        for(Ring ring: allRings()){
+            if(ring!=null)
+                count += ring.dropped;
+        }
+        return count;
+    }
+
+    /** number of times publisher waited for writer, with OverflowPolicy.BLOCK */
+    public long getBlocked(){
+        long count = 0;
+        for(Ring ring: allRings()){
+            if(ring!=null)
+                count += ring.blocked;
+        }
+        return count;
+    }
+
+    public long getBytesWritten(){ return bytesWritten.get(); }
+    public long getRotations(){ return rotations.get(); }
+    public long getWriteErrors(){ return writeErrors.get(); }
+}
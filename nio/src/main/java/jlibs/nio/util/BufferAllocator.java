@@ -51,8 +51,11 @@ public interface BufferAllocator{
     
     public static BufferAllocator current(){
         Reactor reactor = Reactor.current();
-        if(reactor==null)
+        if(reactor==null){
+            if(POOL_BUFFERS && SIZE_CLASSES)
+                return SizeClassBufferAllocator.global();
             return USE_DIRECT_BUFFERS ? UnpooledBufferAllocator.DIRECT : UnpooledBufferAllocator.HEAP;
+        }
         else
             return reactor.allocator;
     }
@@ -61,5 +64,6 @@ public interface BufferAllocator{
         public static int CHUNK_SIZE = 16*1024;
         public static boolean USE_DIRECT_BUFFERS = true;
         public static boolean POOL_BUFFERS = true;
+        public static boolean SIZE_CLASSES = false;
     }
 }
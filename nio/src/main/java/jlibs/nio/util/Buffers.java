@@ -45,9 +45,10 @@ public final class Buffers extends OutputStream{
 
     public void append(ByteBuffer buffer){
         if(offset+length>=array.length){
-            if(offset!=0)
-                System.arraycopy(array, offset, array, 0, length-1);
-            else
+            if(offset!=0){
+                System.arraycopy(array, offset, array, 0, length);
+                Arrays.fill(array, length, offset+length, null);
+            }else
                 array = Arrays.copyOf(array, 2*array.length);
             offset = 0;
         }
@@ -0,0 +1,76 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+package jlibs.nio.util;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.zip.Deflater;
+
+import static jlibs.nio.Debugger.DEBUG;
+import static jlibs.nio.Debugger.println;
+
+/**
+ * Pool of Deflaters confined to a reactor.
+ *
+ * Deflater holds native zlib state of few hundred KB, which is released
+ * only by end(). reusing them avoids that allocation per compressed stream
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public class DeflaterPool{
+    private final Deque<Deflater> zlib = new ArrayDeque<>();
+    private final Deque<Deflater> raw = new ArrayDeque<>();
+
+    /** @param nowrap if true, returns deflater producing raw deflate data as in gzip */
+    public Deflater allocate(int level, boolean nowrap){
+        Deflater deflater = (nowrap ? raw : zlib).poll();
+        if(deflater==null){
+            if(DEBUG)
+                println("deflaterPool.allocate(nowrap="+nowrap+")");
+            return new Deflater(level, nowrap);
+        }
+        deflater.setLevel(level);
+        return deflater;
+    }
+
+    /** @param nowrap must be same value with which the deflater was allocated */
+    public void free(Deflater deflater, boolean nowrap){
+        Deque<Deflater> pool = nowrap ? raw : zlib;
+        if(pool.size()<MAX_POOLED){
+            deflater.reset();
+            pool.push(deflater);
+        }else
+            deflater.end();
+    }
+
+    public int getPooled(){
+        return zlib.size()+raw.size();
+    }
+
+    public void clear(){
+        for(Deflater deflater: zlib)
+            deflater.end();
+        zlib.clear();
+        for(Deflater deflater: raw)
+            deflater.end();
+        raw.clear();
+    }
+
+    /*-------------------------------------------------[ Options ]---------------------------------------------------*/
+
+    /** maximum number of idle deflaters, of each kind, kept per reactor */
+    public static int MAX_POOLED = 16;
+}
@@ -0,0 +1,178 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+package jlibs.nio.util;
+
+import jlibs.nio.Reactor;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of non-negative values, recorded without locks.
+ *
+ * Values below 32 are counted exactly. Above that, each power of 2 is split
+ * into 16 buckets, so a recorded value is off by at most 1/16 (6.25%).
+ * Values beyond MAX_VALUE are counted as MAX_VALUE.
+ *
+ * Each reactor records into its own counters, and threads other than
+ * reactors share one. Counters are merged when read.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public final class Histogram{
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1<<SUB_BITS;
+    private static final int HALF_COUNT = SUB_COUNT>>1;
+
+    /** highest value tracked: about 1 hour in microseconds */
+    public static final long MAX_VALUE = (1L<<32)-1;
+    private static final int BUCKETS = index(MAX_VALUE)+1;
+
+    // counts[0..BUCKETS) followed by total count, sum and max
+    private static final int COUNT = BUCKETS;
+    private static final int SUM = BUCKETS+1;
+    private static final int MAX = BUCKETS+2;
+
+    private volatile AtomicLongArray recorders[] = new AtomicLongArray[0];
+
+    static int index(long value){
+        if(value<SUB_COUNT)
+            return (int)value;
+        int shift = 63-Long.numberOfLeadingZeros(value)-(SUB_BITS-1);
+        return shift*HALF_COUNT + (int)(value>>>shift);
+    }
+
+    /** returns highest value that falls in given bucket */
+    static long highestValue(int index){
+        if(index<SUB_COUNT)
+            return index;
+        int shift = index/HALF_COUNT-1;
+        long sub = index%HALF_COUNT + HALF_COUNT;
+        return ((sub+1)<<shift)-1;
+    }
+
+    private AtomicLongArray recorder(){
+        Reactor reactor = Reactor.current();
+        int id = reactor==null ? 0 : reactor.id+1;
+        AtomicLongArray recorders[] = this.recorders;
+        if(id<recorders.length && recorders[id]!=null)
+            return recorders[id];
+        synchronized(this){
+            recorders = this.recorders;
+            if(id>=recorders.length)
+                recorders = Arrays.copyOf(recorders, id+1);
+            if(recorders[id]==null){
+                recorders[id] = new AtomicLongArray(BUCKETS+3);
+                this.recorders = recorders;
+            }
+            return recorders[id];
+        }
+    }
+
+    public void record(long value){
+        if(value<0)
+            value = 0;
+        else if(value>MAX_VALUE)
+            value = MAX_VALUE;
+        AtomicLongArray recorder = recorder();
+        recorder.incrementAndGet(index(value));
+        recorder.incrementAndGet(COUNT);
+        recorder.addAndGet(SUM, value);
+        long max = recorder.get(MAX);
+        while(value>max && !recorder.compareAndSet(MAX, max, value))
+            max = recorder.get(MAX);
+    }
+
+    public void reset(){
+        for(AtomicLongArray recorder: recorders){
+            if(recorder!=null){
+                for(int i=0; i<recorder.length(); i++)
+                    recorder.set(i, 0);
+            }
+        }
+    }
+
+    /** returns merged counters of all recorders */
+    public Snapshot snapshot(){
+        long counts[] = new long[BUCKETS+3];
+        for(AtomicLongArray recorder: recorders){
+            if(recorder!=null){
+                for(int i=0; i<MAX; i++)
+                    counts[i] += recorder.get(i);
+                counts[MAX] = Math.max(counts[MAX], recorder.get(MAX));
+            }
+        }
+        return new Snapshot(counts);
+    }
+
+    public static final class Snapshot{
+        private final long counts[];
+        private Snapshot(long counts[]){
+            this.counts = counts;
+        }
+
+        public long count(){
+            return counts[COUNT];
+        }
+
+        public long sum(){
+            return counts[SUM];
+        }
+
+        public long max(){
+            return counts[MAX];
+        }
+
+        public double mean(){
+            return counts[COUNT]==0 ? 0 : (double)counts[SUM]/counts[COUNT];
+        }
+
+        /** returns value below which given fraction of recorded values fall */
+        public long percentile(double fraction){
+            long total = 0;
+            for(int i=0; i<BUCKETS; i++)
+                total += counts[i];
+            if(total==0)
+                return 0;
+            long rank = Math.max(1, (long)Math.ceil(fraction*total));
+            long seen = 0;
+            for(int i=0; i<BUCKETS; i++){
+                seen += counts[i];
+                if(seen>=rank)
+                    return Math.min(highestValue(i), counts[MAX]);
+            }
+            return counts[MAX];
+        }
+
+        /**
+         * returns count, mean, p50, p90, p99, p999 and max.
+         * values are divided by given unit, for example 1000 to convert micros to millis
+         */
+        public Map<String, Double> summary(double unit){
+            Map<String, Double> map = new LinkedHashMap<>();
+            map.put("count", (double)count());
+            map.put("mean", mean()/unit);
+            map.put("p50", percentile(0.5)/unit);
+            map.put("p90", percentile(0.9)/unit);
+            map.put("p99", percentile(0.99)/unit);
+            map.put("p999", percentile(0.999)/unit);
+            map.put("max", max()/unit);
+            return map;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+package jlibs.nio.util;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Unbounded lock-free FIFO queue, which can be fed by any number of threads
+ * but must be drained by single thread.
+ *
+ * producers swap tail and then link previous tail to new node. so there is
+ * a short window where an offered item is not yet reachable from head. during
+ * this window isEmpty() returns false while poll() returns null.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public final class MPSCQueue<E>{
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<MPSCQueue, Node> TAIL =
+            AtomicReferenceFieldUpdater.newUpdater(MPSCQueue.class, Node.class, "tail");
+
+    private static final class Node<E>{
+        E item;
+        volatile Node<E> next;
+
+        Node(E item){
+            this.item = item;
+        }
+    }
+
+    private Node<E> head; // accessed only by consumer
+    private volatile Node<E> tail;
+
+    public MPSCQueue(){
+        head = tail = new Node<>(null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void link(Node<E> first, Node<E> last){
+        Node<E> prev = TAIL.getAndSet(this, last);
+        prev.next = first;
+    }
+
+    public void offer(E item){
+        Node<E> node = new Node<>(requireNonNull(item));
+        link(node, node);
+    }
+
+    /**
+     * items are appended as single batch, i.e. items offered
+     * concurrently by other threads are not interleaved with them
+     */
+    public void offerAll(Collection<? extends E> items){
+        Node<E> first = null, last = null;
+        for(E item: items){
+            Node<E> node = new Node<>(requireNonNull(item));
+            if(first==null)
+                first = node;
+            else
+                last.next = node;
+            last = node;
+        }
+        if(first!=null)
+            link(first, last);
+    }
+
+    /** must be called only by consumer thread */
+    public E poll(){
+        Node<E> next = head.next;
+        if(next==null)
+            return null;
+        E item = next.item;
+        next.item = null;
+        head = next;
+        return item;
+    }
+
+    /** must be called only by consumer thread */
+    public boolean isEmpty(){
+        return head==tail;
+    }
+}
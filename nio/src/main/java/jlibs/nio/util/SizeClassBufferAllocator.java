@@ -0,0 +1,365 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+package jlibs.nio.util;
+
+import jlibs.nio.Management;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static jlibs.nio.Debugger.DEBUG;
+import static jlibs.nio.Debugger.println;
+
+/**
+ * BufferAllocator which pools buffers by power-of-two size classes.
+ * <p>
+ * capacity of allocated buffer is rounded up to its size class, and its
+ * limit is set to requested size. requests larger than MAX_SIZE are not pooled.
+ * direct buffers are sliced out of direct arenas of ARENA_SIZE.
+ * <p>
+ * each reactor has its own allocator. buffers freed beyond its LOCAL_LIMIT
+ * overflow into global allocator shared by all reactors, which is also used
+ * by non-reactor threads. buffers freed beyond GLOBAL_LIMIT are left to gc.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public class SizeClassBufferAllocator implements BufferAllocator, Management.BufferPoolMXBean{
+    private static SizeClassBufferAllocator global;
+    public static synchronized SizeClassBufferAllocator global(){
+        if(global==null)
+            global = new SizeClassBufferAllocator(null);
+        return global;
+    }
+
+    private final SizeClassBufferAllocator overflow;
+    private final boolean directPreferred = Defaults.USE_DIRECT_BUFFERS;
+    private final int minShift = 31-Integer.numberOfLeadingZeros(Math.max(MIN_SIZE, 1));
+    private final int maxClass = Math.max(31-Integer.numberOfLeadingZeros(MAX_SIZE)-minShift, 0);
+    private final int arenaSize = ARENA_SIZE;
+    private final long limit;
+
+    private final Buffers pools[][];
+    private long pooledBytes;
+    private ByteBuffer arena;
+
+    /**
+     * @param overflow allocator into which buffers overflow.
+     *                 null, if this allocator is shared by all threads
+     */
+    public SizeClassBufferAllocator(SizeClassBufferAllocator overflow){
+        this.overflow = overflow;
+        limit = overflow==null ? GLOBAL_LIMIT : LOCAL_LIMIT;
+        pools = new Buffers[2][maxClass+1];
+        for(Buffers pool[]: pools){
+            for(int i=0; i<pool.length; i++)
+                pool[i] = new Buffers();
+        }
+    }
+
+    @Override
+    public boolean directPreferred(){
+        return directPreferred;
+    }
+
+    private int sizeClass(int size){
+        int sizeClass = size<=1 ? 0 : Math.max(32-Integer.numberOfLeadingZeros(size-1)-minShift, 0);
+        return sizeClass>maxClass ? -1 : sizeClass;
+    }
+
+    private int capacityClass(int capacity){
+        if(Integer.bitCount(capacity)!=1)
+            return -1;
+        int sizeClass = 31-Integer.numberOfLeadingZeros(capacity)-minShift;
+        return sizeClass<0 || sizeClass>maxClass ? -1 : sizeClass;
+    }
+
+    @Override
+    public ByteBuffer allocateHeap(int size){
+        if(overflow==null){
+            synchronized(this){
+                return allocate(size, false);
+            }
+        }
+        return allocate(size, false);
+    }
+
+    @Override
+    public ByteBuffer allocateDirect(int size){
+        if(overflow==null){
+            synchronized(this){
+                return allocate(size, true);
+            }
+        }
+        return allocate(size, true);
+    }
+
+    @Override
+    public void free(ByteBuffer buffer){
+        if(overflow==null){
+            synchronized(this){
+                release(buffer);
+            }
+        }else
+            release(buffer);
+    }
+
+    private ByteBuffer allocate(int size, boolean direct){
+        int sizeClass = sizeClass(size);
+        if(sizeClass==-1){
+            ++misses;
+            if(DEBUG)
+                println("pool.allocate("+size+", "+direct+"): too large");
+            return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        }
+
+        ByteBuffer buffer = take(sizeClass, direct);
+        if(buffer!=null)
+            ++hits;
+        else{
+            if(overflow!=null)
+                buffer = overflow.takeOverflow(sizeClass, direct);
+            if(buffer!=null)
+                ++overflowHits;
+            else{
+                ++misses;
+                if(DEBUG)
+                    println("pool.allocate("+size+", "+direct+")");
+                buffer = create(sizeClass, direct);
+            }
+        }
+        buffer.limit(size);
+        if(TRACK_LEAKS)
+            LEAK_TRACKER.track(buffer);
+        return buffer;
+    }
+
+    private void release(ByteBuffer buffer){
+        if(TRACK_LEAKS)
+            LEAK_TRACKER.untrack(buffer);
+        int sizeClass = capacityClass(buffer.capacity());
+        if(sizeClass==-1)
+            return;
+        buffer.clear();
+        if(!put(buffer, sizeClass)){
+            if(overflow!=null && overflow.putOverflow(buffer, sizeClass))
+                ++overflows;
+            else
+                ++dropped;
+        }
+    }
+
+    private ByteBuffer take(int sizeClass, boolean direct){
+        Buffers pool = pools[direct ? 1 : 0][sizeClass];
+        if(pool.length==0)
+            return null;
+        ByteBuffer buffer = pool.removeLast();
+        pooledBytes -= buffer.capacity();
+        return buffer;
+    }
+
+    private boolean put(ByteBuffer buffer, int sizeClass){
+        if(pooledBytes+buffer.capacity()>limit)
+            return false;
+        pools[buffer.isDirect() ? 1 : 0][sizeClass].append(buffer);
+        pooledBytes += buffer.capacity();
+        return true;
+    }
+
+    private synchronized ByteBuffer takeOverflow(int sizeClass, boolean direct){
+        ByteBuffer buffer = take(sizeClass, direct);
+        if(buffer!=null)
+            ++overflowHits;
+        return buffer;
+    }
+
+    private synchronized boolean putOverflow(ByteBuffer buffer, int sizeClass){
+        if(put(buffer, sizeClass)){
+            ++overflows;
+            return true;
+        }else{
+            ++dropped;
+            return false;
+        }
+    }
+
+    private ByteBuffer create(int sizeClass, boolean direct){
+        int capacity = 1<<(sizeClass+minShift);
+        if(!direct)
+            return ByteBuffer.allocate(capacity);
+        if(capacity>arenaSize/2)
+            return ByteBuffer.allocateDirect(capacity);
+        if(arena==null || arena.remaining()<capacity){
+            if(arena!=null){
+                // pool leftover of current arena, rather than wasting it
+                int leftOver;
+                while((leftOver=capacityClass(Integer.highestOneBit(arena.remaining())))!=-1){
+                    if(!put(slice(1<<(leftOver+minShift)), leftOver))
+                        break;
+                }
+            }
+            arena = ByteBuffer.allocateDirect(arenaSize);
+            arenaBytes += arenaSize;
+        }
+        return slice(capacity);
+    }
+
+    private ByteBuffer slice(int capacity){
+        arena.limit(arena.position()+capacity);
+        ByteBuffer buffer = arena.slice();
+        arena.position(arena.limit());
+        arena.limit(arena.capacity());
+        return buffer;
+    }
+
+    /*-------------------------------------------------[ Statistics ]---------------------------------------------------*/
+
+    private long hits;
+    private long overflowHits;
+    private long misses;
+    private long overflows;
+    private long dropped;
+    private long arenaBytes;
+
+    /** allocations served by this allocator's pool */
+    @Override public long getHits(){ return hits; }
+
+    /**
+     * for reactor allocator: allocations served by global allocator.
+     * for global allocator: buffers taken by reactor allocators
+     */
+    @Override public long getOverflowHits(){ return overflowHits; }
+
+    /** allocations which created new buffer */
+    @Override public long getMisses(){ return misses; }
+
+    /**
+     * for reactor allocator: freed buffers handed to global allocator.
+     * for global allocator: buffers received from reactor allocators
+     */
+    @Override public long getOverflows(){ return overflows; }
+
+    /** freed buffers left to gc, because pool limit is reached */
+    @Override public long getDropped(){ return dropped; }
+
+    @Override public long getPooledBytes(){ return pooledBytes; }
+    @Override public long getPoolLimit(){ return limit; }
+    @Override public long getArenaBytes(){ return arenaBytes; }
+
+    @Override public long getLeaks(){ return LEAK_TRACKER.leaks; }
+    @Override public List<String> getLeakSites(){ return LEAK_TRACKER.leakSites(); }
+
+    /*-------------------------------------------------[ Leak Tracking ]---------------------------------------------------*/
+
+    private static final LeakTracker LEAK_TRACKER = new LeakTracker();
+
+    private static final class Allocation extends WeakReference<ByteBuffer>{
+        private final int hash;
+        private final Throwable site;
+        private Allocation(ByteBuffer buffer, int hash, ReferenceQueue<ByteBuffer> queue){
+            super(buffer, queue);
+            this.hash = hash;
+            site = new Throwable("ByteBuffer["+buffer.capacity()+"] allocated at");
+        }
+    }
+
+    /**
+     * tracks allocated buffers by weak reference. if a buffer is
+     * garbage collected without being freed, its allocation site is
+     * reported as leak
+     */
+    private static final class LeakTracker{
+        private final ReferenceQueue<ByteBuffer> queue = new ReferenceQueue<>();
+        private final Map<Integer, List<Allocation>> allocations = new HashMap<>();
+        private final Deque<String> leakSites = new ArrayDeque<>();
+        private volatile long leaks;
+
+        synchronized void track(ByteBuffer buffer){
+            expunge();
+            int hash = System.identityHashCode(buffer);
+            allocations.computeIfAbsent(hash, h -> new ArrayList<>(1)).add(new Allocation(buffer, hash, queue));
+        }
+
+        synchronized void untrack(ByteBuffer buffer){
+            int hash = System.identityHashCode(buffer);
+            List<Allocation> list = allocations.get(hash);
+            if(list!=null){
+                for(int i=0; i<list.size(); i++){
+                    Allocation allocation = list.get(i);
+                    if(allocation.get()==buffer){
+                        allocation.clear();
+                        list.remove(i);
+                        if(list.isEmpty())
+                            allocations.remove(hash);
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void expunge(){
+            Allocation allocation;
+            while((allocation=(Allocation)queue.poll())!=null){
+                List<Allocation> list = allocations.get(allocation.hash);
+                if(list!=null && list.remove(allocation)){
+                    if(list.isEmpty())
+                        allocations.remove(allocation.hash);
+                    ++leaks;
+                    StringBuilder buf = new StringBuilder(allocation.site.getMessage());
+                    for(StackTraceElement element: allocation.site.getStackTrace()){
+                        if(!element.getClassName().startsWith(SizeClassBufferAllocator.class.getName()))
+                            buf.append("\n\tat ").append(element);
+                    }
+                    String site = buf.toString();
+                    // counted and kept for BufferPoolMXBean.getLeakSites()
+                    if(DEBUG)
+                        println("LEAK: ByteBuffer garbage collected without being freed. "+site);
+                    if(leakSites.size()==MAX_LEAK_SITES)
+                        leakSites.removeFirst();
+                    leakSites.addLast(site);
+                }
+            }
+        }
+
+        synchronized List<String> leakSites(){
+            expunge();
+            return new ArrayList<>(leakSites);
+        }
+    }
+
+    /*-------------------------------------------------[ Options ]---------------------------------------------------*/
+
+    /** smallest size class. must be power of two */
+    public static int MIN_SIZE = 64;
+
+    /** largest size class. must be power of two. larger requests are not pooled */
+    public static int MAX_SIZE = 1024*1024;
+
+    /** size of direct memory region, out of which direct buffers are sliced */
+    public static int ARENA_SIZE = 4*1024*1024;
+
+    /** max bytes pooled by each reactor */
+    public static long LOCAL_LIMIT = 32L*1024*1024;
+
+    /** max bytes pooled by global allocator */
+    public static long GLOBAL_LIMIT = 128L*1024*1024;
+
+    /** records allocation site of each buffer, to report buffers never freed */
+    public static boolean TRACK_LEAKS = false;
+
+    private static final int MAX_LEAK_SITES = 100;
+}
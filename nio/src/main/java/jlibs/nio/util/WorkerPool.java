@@ -0,0 +1,186 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package jlibs.nio.util;
+
+import jlibs.nio.Management;
+import jlibs.nio.Reactor;
+
+import javax.management.ObjectName;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed number of worker threads with bounded queue, to run CPU heavy work
+ * off the reactor thread.
+ *
+ * When queue is full, submit(...) doesn't block. The caller is expected to
+ * stop reading from its connection, and is notified in its reactor thread
+ * once a worker becomes free.
+ *
+ * Registered as MXBean "jlibs.nio:type=WorkerPool,name=&lt;name&gt;".
+ * Reactor and worker time are per request, as recorded by users of the pool.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public class WorkerPool implements Management.WorkerPoolMXBean{
+    public final String name;
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+    private final ObjectName objName;
+
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final Histogram reactorTime = new Histogram();
+    private final Histogram workerTime = new Histogram();
+
+    public WorkerPool(String name, int threads, int queueSize){
+        this.name = name;
+        AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize), runnable -> {
+            Thread thread = new Thread(runnable, name+"-"+count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }){
+            @Override
+            protected void afterExecute(Runnable runnable, Throwable thr){
+                completed.increment();
+                wakeupWaiter();
+            }
+        };
+        objName = Management.register(this, "jlibs.nio:type=WorkerPool,name="+ObjectName.quote(name));
+    }
+
+    /**
+     * runs job in a worker thread. if queue is full, job is not run and false is
+     * returned. in that case, retry is run later in current reactor thread, once
+     * a worker finishes its job
+     */
+    public boolean submit(Runnable job, Runnable retry){
+        try{
+            executor.execute(job);
+        }catch(RejectedExecutionException ex){
+            if(executor.isShutdown())
+                throw ex;
+            rejected.increment();
+            waiters.add(new Waiter(Reactor.current(), retry));
+            // workers might have drained the queue before waiter is added
+            if(executor.getQueue().remainingCapacity()>0)
+                wakeupWaiter();
+            return false;
+        }
+        int depth = executor.getQueue().size();
+        if(depth>maxQueueDepth.get())
+            maxQueueDepth.accumulateAndGet(depth, Math::max);
+        return true;
+    }
+
+    private void wakeupWaiter(){
+        Waiter waiter = waiters.poll();
+        if(waiter!=null)
+            waiter.reactor.invokeLater(waiter.retry);
+    }
+
+    private static final class Waiter{
+        final Reactor reactor;
+        final Runnable retry;
+
+        Waiter(Reactor reactor, Runnable retry){
+            this.reactor = reactor;
+            this.retry = retry;
+        }
+    }
+
+    /** records time spent by a request in reactor and worker threads */
+    public void record(long reactorNanos, long workerNanos){
+        reactorTime.record(reactorNanos/1000);
+        workerTime.record(workerNanos/1000);
+    }
+
+    public void shutdown(){
+        executor.shutdown();
+        Management.unregister(objName);
+    }
+
+    @Override
+    public int getThreads(){
+        return executor.getMaximumPoolSize();
+    }
+
+    @Override
+    public int getActiveThreads(){
+        return executor.getActiveCount();
+    }
+
+    @Override
+    public int getQueueDepth(){
+        return executor.getQueue().size();
+    }
+
+    @Override
+    public int getQueueCapacity(){
+        return executor.getQueue().size()+executor.getQueue().remainingCapacity();
+    }
+
+    @Override
+    public int getMaxQueueDepth(){
+        return maxQueueDepth.get();
+    }
+
+    @Override
+    public long getCompletedJobs(){
+        return completed.sum();
+    }
+
+    @Override
+    public long getRejectedJobs(){
+        return rejected.sum();
+    }
+
+    @Override
+    public int getWaiting(){
+        return waiters.size();
+    }
+
+    @Override
+    public Map<String, Double> getReactorTime(){
+        return reactorTime.snapshot().summary(1000);
+    }
+
+    @Override
+    public Map<String, Double> getWorkerTime(){
+        return workerTime.snapshot().summary(1000);
+    }
+
+    @Override
+    public void reset(){
+        completed.reset();
+        rejected.reset();
+        maxQueueDepth.set(0);
+        reactorTime.reset();
+        workerTime.reset();
+    }
+
+    @Override
+    public String toString(){
+        return "WorkerPool["+name+"]";
+    }
+}
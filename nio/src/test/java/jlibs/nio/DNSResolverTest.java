@@ -0,0 +1,366 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.*;
+
+/**
+ * Runs DNSResolver against a stub nameserver on loopback
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public class DNSResolverTest{
+    private static final int TYPE_A = 1;
+    private static final int TYPE_AAAA = 28;
+
+    /*-------------------------------------------------[ Stub Nameserver ]---------------------------------------------------*/
+
+    private static class Record{
+        final int type;
+        final byte address[];
+        final long ttl;
+        Record(String address, long ttl) throws UnknownHostException{
+            this.address = InetAddress.getByName(address).getAddress();
+            this.type = this.address.length==4 ? TYPE_A : TYPE_AAAA;
+            this.ttl = ttl;
+        }
+    }
+
+    private static class Nameserver implements Runnable, AutoCloseable{
+        final DatagramSocket socket;
+        final Map<String, List<Record>> records = new ConcurrentHashMap<>();
+        final Map<String, AtomicInteger> queries = new ConcurrentHashMap<>();
+        volatile boolean silent;
+        volatile long delay;
+
+        Nameserver() throws IOException{
+            socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+            Thread thread = new Thread(this, "StubNameserver");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        InetSocketAddress address(){
+            return (InetSocketAddress)socket.getLocalSocketAddress();
+        }
+
+        Nameserver add(String host, String address, long ttl) throws UnknownHostException{
+            records.computeIfAbsent(host, h -> new ArrayList<>()).add(new Record(address, ttl));
+            return this;
+        }
+
+        int queries(String host, int type){
+            AtomicInteger count = queries.get(host+'/'+type);
+            return count==null ? 0 : count.get();
+        }
+
+        @Override
+        public void run(){
+            byte bytes[] = new byte[512];
+            while(!socket.isClosed()){
+                try{
+                    DatagramPacket packet = new DatagramPacket(bytes, bytes.length);
+                    socket.receive(packet);
+                    ByteBuffer query = ByteBuffer.wrap(bytes, 0, packet.getLength());
+                    short id = query.getShort();
+                    query.position(12);
+                    StringBuilder host = new StringBuilder();
+                    int length;
+                    while((length=query.get())!=0){
+                        if(host.length()>0)
+                            host.append('.');
+                        for(int i=0; i<length; i++)
+                            host.append((char)query.get());
+                    }
+                    int type = query.getShort();
+                    query.getShort();
+                    int questionEnd = query.position();
+                    queries.computeIfAbsent(host+"/"+type, k -> new AtomicInteger()).incrementAndGet();
+                    if(silent)
+                        continue;
+                    if(delay>0)
+                        Thread.sleep(delay);
+
+                    List<Record> answers = new ArrayList<>();
+                    List<Record> list = records.get(host.toString());
+                    if(list!=null){
+                        for(Record record: list){
+                            if(record.type==type)
+                                answers.add(record);
+                        }
+                    }
+                    ByteBuffer response = ByteBuffer.allocate(512);
+                    response.putShort(id);
+                    response.putShort((short)(list==null ? 0x8183 : 0x8180)); // NXDOMAIN if unknown
+                    response.putShort((short)1);
+                    response.putShort((short)answers.size());
+                    response.putShort((short)0);
+                    response.putShort((short)0);
+                    response.put(bytes, 12, questionEnd-12);
+                    for(Record record: answers){
+                        response.putShort((short)0xC00C);
+                        response.putShort((short)record.type);
+                        response.putShort((short)1);
+                        response.putInt((int)record.ttl);
+                        response.putShort((short)record.address.length);
+                        response.put(record.address);
+                    }
+                    socket.send(new DatagramPacket(response.array(), response.position(), packet.getSocketAddress()));
+                }catch(Exception ex){
+                    // socket closed
+                }
+            }
+        }
+
+        @Override
+        public void close(){
+            socket.close();
+        }
+    }
+
+    /*-------------------------------------------------[ Helpers ]---------------------------------------------------*/
+
+    private static synchronized Reactor reactor() throws IOException{
+        if(Reactors.get()==null)
+            Reactors.start(1);
+        return Reactors.get().get(0);
+    }
+
+    private Reactor reactor;
+    private DNSResolver resolver;
+
+    private void start(InetSocketAddress... nameservers) throws Exception{
+        DNSResolver.ENABLED = true;
+        DNSResolver.NAMESERVERS = Arrays.asList(nameservers);
+        DNSResolver.QUERY_AAAA = true;
+        DNSResolver.PREFER_IPV6 = false;
+        DNSResolver.MIN_TTL = 0;
+        DNSResolver.NEGATIVE_TTL = 10;
+        DNSResolver.TIMEOUT = 500;
+        reactor = reactor();
+        reactor.invokeAndWait(() -> resolver = new DNSResolver(reactor));
+    }
+
+    private void stop() throws Exception{
+        reactor.invokeAndWait(resolver::close);
+        DNSResolver.ENABLED = false;
+    }
+
+    /** resolves given hosts concurrently, and returns results in same order */
+    private Object[] resolve(String... hosts) throws Exception{
+        List<BlockingQueue<Object>> queues = new ArrayList<>();
+        for(String host: hosts)
+            queues.add(new LinkedBlockingQueue<>());
+        reactor.invokeLater(() -> {
+            for(int i=0; i<hosts.length; i++){
+                BlockingQueue<Object> queue = queues.get(i);
+                resolver.resolve(hosts[i], result -> {
+                    try{
+                        queue.add(result.get());
+                    }catch(Throwable thr){
+                        queue.add(thr);
+                    }
+                });
+            }
+        });
+        Object results[] = new Object[hosts.length];
+        for(int i=0; i<hosts.length; i++){
+            results[i] = queues.get(i).poll(10, TimeUnit.SECONDS);
+            assertNotNull(results[i], "no result for "+hosts[i]);
+        }
+        return results;
+    }
+
+    private InetAddress address(String host) throws Exception{
+        Object result = resolve(host)[0];
+        if(result instanceof Throwable)
+            throw new AssertionError(host+" failed", (Throwable)result);
+        return (InetAddress)result;
+    }
+
+    private static String ip(Object address){
+        return ((InetAddress)address).getHostAddress();
+    }
+
+    /*-------------------------------------------------[ Tests ]---------------------------------------------------*/
+
+    @Test
+    public void cached() throws Exception{
+        try(Nameserver ns = new Nameserver()){
+            ns.add("a.test", "10.0.0.1", 300);
+            start(ns.address());
+            try{
+                assertEquals(ip(address("a.test")), "10.0.0.1");
+                assertEquals(ip(address("A.Test.")), "10.0.0.1");
+                assertEquals(address("a.test").getHostName(), "a.test");
+                assertEquals(ns.queries("a.test", TYPE_A), 1);
+                assertEquals(ns.queries("a.test", TYPE_AAAA), 1);
+            }finally{
+                stop();
+            }
+        }
+    }
+
+    @Test
+    public void ttlExpiry() throws Exception{
+        try(Nameserver ns = new Nameserver()){
+            ns.add("ttl.test", "10.0.0.1", 1);
+            start(ns.address());
+            try{
+                assertEquals(ip(address("ttl.test")), "10.0.0.1");
+                assertEquals(ip(address("ttl.test")), "10.0.0.1");
+                assertEquals(ns.queries("ttl.test", TYPE_A), 1);
+                Thread.sleep(1100);
+                ns.records.clear();
+                ns.add("ttl.test", "10.0.0.2", 1);
+                assertEquals(ip(address("ttl.test")), "10.0.0.2");
+                assertEquals(ns.queries("ttl.test", TYPE_A), 2);
+            }finally{
+                stop();
+            }
+        }
+    }
+
+    @Test
+    public void negativeCache() throws Exception{
+        try(Nameserver ns = new Nameserver()){
+            start(ns.address());
+            try{
+                assertTrue(resolve("missing.test")[0] instanceof UnknownHostException);
+                assertTrue(resolve("missing.test")[0] instanceof UnknownHostException);
+                assertEquals(ns.queries("missing.test", TYPE_A), 1);
+            }finally{
+                stop();
+            }
+        }
+    }
+
+    @Test
+    public void sharedQuery() throws Exception{
+        try(Nameserver ns = new Nameserver()){
+            ns.add("shared.test", "10.0.0.1", 300);
+            ns.delay = 200;
+            start(ns.address());
+            try{
+                Object results[] = resolve("shared.test", "shared.test", "SHARED.test");
+                for(Object result: results)
+                    assertEquals(ip(result), "10.0.0.1");
+                assertEquals(ns.queries("shared.test", TYPE_A), 1);
+            }finally{
+                stop();
+            }
+        }
+    }
+
+    @Test
+    public void roundRobin() throws Exception{
+        try(Nameserver ns = new Nameserver()){
+            ns.add("rr.test", "10.0.0.1", 300).add("rr.test", "10.0.0.2", 300).add("rr.test", "10.0.0.3", 300);
+            start(ns.address());
+            try{
+                Set<String> seen = new HashSet<>();
+                String previous = null;
+                for(int i=0; i<6; i++){
+                    String ip = ip(address("rr.test"));
+                    assertFalse(ip.equals(previous), ip);
+                    seen.add(ip);
+                    previous = ip;
+                }
+                assertEquals(seen, new HashSet<>(Arrays.asList("10.0.0.1", "10.0.0.2", "10.0.0.3")));
+            }finally{
+                stop();
+            }
+        }
+    }
+
+    @Test
+    public void addressFamily() throws Exception{
+        try(Nameserver ns = new Nameserver()){
+            ns.add("dual.test", "::1:2", 300).add("dual.test", "10.0.0.1", 300);
+            ns.add("v6.test", "::1:2", 300);
+            start(ns.address());
+            try{
+                for(int i=0; i<3; i++)
+                    assertTrue(address("dual.test") instanceof Inet4Address);
+                assertTrue(address("v6.test") instanceof Inet6Address);
+            }finally{
+                stop();
+            }
+
+            start(ns.address());
+            DNSResolver.PREFER_IPV6 = true;
+            try{
+                assertTrue(address("dual.test") instanceof Inet6Address);
+            }finally{
+                stop();
+            }
+        }
+    }
+
+    @Test
+    public void failover() throws Exception{
+        try(Nameserver silent = new Nameserver(); Nameserver ns = new Nameserver()){
+            silent.silent = true;
+            ns.add("failover.test", "10.0.0.1", 300);
+
+            // nothing listens on this port, so query is refused
+            DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+            InetSocketAddress closed = (InetSocketAddress)socket.getLocalSocketAddress();
+            socket.close();
+
+            start(closed, silent.address(), ns.address());
+            try{
+                assertEquals(ip(address("failover.test")), "10.0.0.1");
+                assertTrue(silent.queries("failover.test", TYPE_A)>=1);
+                assertEquals(ns.queries("failover.test", TYPE_A), 1);
+            }finally{
+                stop();
+            }
+        }
+    }
+
+    @Test
+    public void disabled() throws Exception{
+        try(Nameserver ns = new Nameserver()){
+            ns.add("disabled.invalid", "10.0.0.1", 300);
+            ns.add("dotless", "10.0.0.1", 300);
+            start(ns.address());
+            try{
+                DNSResolver.ENABLED = false;
+                resolve("disabled.invalid");
+                DNSResolver.ENABLED = true;
+                resolve("dotless");
+                assertEquals(ns.queries("disabled.invalid", TYPE_A), 0);
+                assertEquals(ns.queries("dotless", TYPE_A), 0);
+            }finally{
+                stop();
+            }
+        }
+    }
+}
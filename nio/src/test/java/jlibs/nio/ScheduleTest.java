@@ -0,0 +1,117 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author Santhosh Kumar Tekuri
+ */
+public class ScheduleTest{
+    private static synchronized Reactor reactor() throws IOException{
+        if(Reactors.get()==null)
+            Reactors.start(1);
+        return Reactors.get().get(0);
+    }
+
+    @Test
+    public void belowTimerResolution() throws Exception{
+        Reactor reactor = reactor();
+        CountDownLatch latch = new CountDownLatch(1);
+        long delays[] = new long[1];
+        reactor.invokeLater(() -> {
+            long begin = System.nanoTime();
+            reactor.schedule(() -> {
+                delays[0] = (System.nanoTime()-begin)/1000000;
+                latch.countDown();
+            }, 30);
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(delays[0]>=30, "fired early: "+delays[0]);
+        assertTrue(delays[0]<Reactor.TIMER_RESOLUTION/2, "fired late: "+delays[0]);
+    }
+
+    @Test
+    public void order() throws Exception{
+        Reactor reactor = reactor();
+        CountDownLatch latch = new CountDownLatch(3);
+        List<Long> fired = Collections.synchronizedList(new ArrayList<>());
+        reactor.invokeLater(() -> {
+            for(long delay: new long[]{ 80, 20, 50 }){
+                reactor.schedule(() -> {
+                    fired.add(delay);
+                    latch.countDown();
+                }, delay);
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(fired, Arrays.asList(20L, 50L, 80L));
+    }
+
+    @Test
+    public void cancel() throws Exception{
+        Reactor reactor = reactor();
+        CountDownLatch latch = new CountDownLatch(1);
+        boolean results[] = new boolean[4];
+        boolean ran[] = new boolean[1];
+        reactor.invokeAndWait(() -> {
+            Reactor.Cancellable cancelled = reactor.schedule(() -> ran[0] = true, 20);
+            results[0] = cancelled.cancel();
+            results[1] = cancelled.cancel();
+            Reactor.Cancellable[] fired = new Reactor.Cancellable[1];
+            fired[0] = reactor.schedule(() -> {
+                results[2] = true;
+                latch.countDown();
+            }, 60);
+            reactor.schedule(() -> results[3] = fired[0].cancel(), 100);
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        reactor.invokeAndWait(() -> {});
+        assertTrue(results[0]);
+        assertFalse(results[1]);
+        assertTrue(results[2]);
+        assertFalse(results[3], "cancel after run");
+        assertFalse(ran[0], "cancelled task ran");
+    }
+
+    @Test
+    public void idleWithLongDelay() throws Exception{
+        Reactor reactor = reactor();
+        Reactor.Cancellable pending[] = new Reactor.Cancellable[1];
+        reactor.invokeAndWait(() -> pending[0] = reactor.schedule(() -> {}, 60*1000));
+        try{
+            long iterations = reactor.loopStats.getIterations();
+            Thread.sleep(500);
+            iterations = reactor.loopStats.getIterations()-iterations;
+            // waking every scheduler tick would give about 50 iterations
+            assertTrue(iterations<=5, "reactor woke "+iterations+" times");
+        }finally{
+            reactor.invokeAndWait(pending[0]::cancel);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author Santhosh Kumar Tekuri
+ */
+public class TimeoutTrackerTest{
+    private static final long RESOLUTION = 10;
+
+    private static class Channel extends NBChannel<SelectableChannel>{
+        Channel() throws IOException{
+            super(null);
+        }
+
+        @Override
+        public boolean isOpen(){
+            return true;
+        }
+
+        @Override
+        protected void process(boolean timeout){}
+    }
+
+    // wheel of 8 slots, makes one revolution in 80ms
+    private final Reactor.TimeoutTracker tracker = new Reactor.TimeoutTracker(RESOLUTION, 8);
+    private final long start = tracker.time;
+    private final Map<NBChannel, Long> fired = new HashMap<>();
+
+    /** moves clock tick by tick, as reactor does, till given milliseconds from start */
+    private void advanceTo(long millis){
+        while(tracker.time-start<millis){
+            tracker.time = Math.min((tracker.time/RESOLUTION+1)*RESOLUTION, start+millis);
+            tracker.expire();
+            NBChannel channel;
+            while((channel=tracker.next())!=null)
+                assertNull(fired.put(channel, tracker.time-start), "fired twice");
+        }
+    }
+
+    private void assertFired(NBChannel channel, long timeout){
+        Long at = fired.get(channel);
+        assertNotNull(at, "not fired");
+        assertTrue(at>=timeout, "fired early at "+at);
+        assertTrue(at<=timeout+RESOLUTION, "fired late at "+at);
+    }
+
+    @Test
+    public void fires() throws IOException{
+        Channel channel = new Channel();
+        tracker.startTimer(channel, 35);
+        assertTrue(tracker.isTracking());
+        advanceTo(30);
+        assertTrue(fired.isEmpty());
+        advanceTo(50);
+        assertFired(channel, 35);
+        assertFalse(tracker.isTracking());
+    }
+
+    @Test
+    public void stop() throws IOException{
+        Channel channel = new Channel();
+        tracker.startTimer(channel, 20);
+        tracker.stopTimer(channel);
+        assertFalse(tracker.isTracking());
+        assertEquals(tracker.waitTime(), 0L);
+        advanceTo(200);
+        assertTrue(fired.isEmpty());
+    }
+
+    @Test
+    public void stopInSharedSlot() throws IOException{
+        Channel first = new Channel(), second = new Channel(), third = new Channel();
+        tracker.startTimer(first, 20);
+        tracker.startTimer(second, 20);
+        tracker.startTimer(third, 20);
+        tracker.stopTimer(second);
+        tracker.stopTimer(third);
+        assertTrue(tracker.isTracking());
+        tracker.stopTimer(first);
+        assertFalse(tracker.isTracking());
+        tracker.startTimer(second, 40);
+        advanceTo(100);
+        assertEquals(fired.size(), 1);
+        assertFired(second, 40);
+    }
+
+    @Test
+    public void restartLater() throws IOException{
+        Channel channel = new Channel();
+        tracker.startTimer(channel, 20);
+        tracker.startTimer(channel, 60);
+        advanceTo(50);
+        assertTrue(fired.isEmpty());
+        advanceTo(100);
+        assertFired(channel, 60);
+    }
+
+    @Test
+    public void restartEarlier() throws IOException{
+        Channel channel = new Channel();
+        tracker.startTimer(channel, 60);
+        tracker.startTimer(channel, 20);
+        advanceTo(100);
+        assertFired(channel, 20);
+    }
+
+    @Test
+    public void restartEarlierFromLaterRevolution() throws IOException{
+        Channel channel = new Channel();
+        tracker.startTimer(channel, 540);
+        tracker.startTimer(channel, 30);
+        advanceTo(600);
+        assertFired(channel, 30);
+    }
+
+    @Test
+    public void beyondRevolution() throws IOException{
+        Channel channel = new Channel();
+        tracker.startTimer(channel, 500);
+        advanceTo(490);
+        assertTrue(fired.isEmpty());
+        advanceTo(600);
+        assertFired(channel, 500);
+    }
+
+    @Test
+    public void restartEarlierInSharedSlot() throws IOException{
+        Channel first = new Channel(), middle = new Channel(), last = new Channel();
+        tracker.startTimer(first, 60);
+        tracker.startTimer(middle, 60);
+        tracker.startTimer(last, 60);
+        tracker.startTimer(middle, 10);
+        advanceTo(30);
+        assertEquals(fired.size(), 1);
+        assertFired(middle, 10);
+        advanceTo(100);
+        assertFired(first, 60);
+        assertFired(last, 60);
+        assertFalse(tracker.isTracking());
+    }
+
+    @Test
+    public void restartAfterExpiry() throws IOException{
+        Channel channel = new Channel();
+        tracker.startTimer(channel, 10);
+        advanceTo(20);
+        assertFired(channel, 10);
+        fired.clear();
+        tracker.startTimer(channel, 40);
+        advanceTo(100);
+        assertFired(channel, 60);
+    }
+
+    private void assertWaitTime(long timeout){
+        long wait = tracker.waitTime(tracker.time);
+        assertTrue(wait>=timeout-(tracker.time-start) && wait<timeout-(tracker.time-start)+RESOLUTION, "waitTime "+wait);
+    }
+
+    @Test
+    public void waitTime() throws IOException{
+        assertEquals(tracker.waitTime(tracker.time), 0L);
+
+        // sleeps till nearest deadline, not till next tick
+        Channel far = new Channel();
+        tracker.startTimer(far, 55);
+        assertWaitTime(55);
+        Channel near = new Channel();
+        tracker.startTimer(near, 25);
+        assertWaitTime(25);
+        advanceTo(35);
+        assertFired(near, 25);
+        assertWaitTime(55);
+        advanceTo(65);
+        assertFired(far, 55);
+        assertEquals(tracker.waitTime(tracker.time), 0L);
+
+        // beyond revolution, wakes once per revolution to relink
+        Channel later = new Channel();
+        tracker.startTimer(later, 200);
+        assertTrue(tracker.waitTime(tracker.time)>RESOLUTION);
+        assertTrue(tracker.waitTime(tracker.time)<=80);
+        advanceTo(280);
+        assertFired(later, 265);
+    }
+
+    @Test
+    public void longSleep() throws IOException{
+        // reactor may sleep for many revolutions, when nothing else is due
+        Channel due = new Channel(), notDue = new Channel();
+        tracker.startTimer(due, 500);
+        tracker.startTimer(notDue, 1000);
+        tracker.time = start+505;
+        tracker.expire();
+        assertSame(tracker.next(), due);
+        assertNull(tracker.next());
+        long wait = tracker.waitTime(tracker.time);
+        assertTrue(wait>0 && wait<=80, "waitTime "+wait);
+        tracker.time = start+1000;
+        tracker.expire();
+        assertSame(tracker.next(), notDue);
+        assertFalse(tracker.isTracking());
+    }
+}
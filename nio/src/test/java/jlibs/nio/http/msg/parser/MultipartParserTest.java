@@ -0,0 +1,168 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio.http.msg.parser;
+
+import jlibs.nio.http.msg.DefaultPart;
+import jlibs.nio.http.msg.FilePart;
+import jlibs.nio.http.msg.MultipartPayload;
+import jlibs.nio.http.msg.Part;
+import jlibs.nio.http.msg.Status;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author Santhosh Kumar Tekuri
+ */
+public class MultipartParserTest{
+    private static final String CONTENT_TYPE = "multipart/form-data; boundary=XyZ";
+
+    private static final String PARTS[] = {
+        "hello",
+        // delimiter prefixes, which are not delimiters
+        "\r\n--XyZzz\r\n--X\r\n--\r\n-XyZ\r--XyZ\n\r\n\r\n",
+        "",
+        "\r\r\r\n\r\n-"
+    };
+
+    private static final String BODY;
+    static{
+        StringBuilder body = new StringBuilder("preamble\r\n--XyZ\r\n");
+        for(int i=0; i<PARTS.length; i++){
+            if(i>0)
+                body.append("\r\n--XyZ\r\n");
+            body.append("Content-Disposition: form-data; name=\"p").append(i).append("\"\r\n\r\n");
+            body.append(PARTS[i]);
+        }
+        body.append("\r\n--XyZ--\r\nepilogue");
+        BODY = body.toString();
+    }
+
+    private static ByteBuffer buffer(byte bytes[], int from, int to, boolean direct){
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(to-from) : ByteBuffer.allocate(to-from);
+        buffer.put(bytes, from, to-from);
+        buffer.flip();
+        return buffer;
+    }
+
+    /** parses body, as if read from socket in chunks ending at given offsets */
+    private static MultipartParser parse(long memoryThreshold, boolean direct, int... splits) throws IOException{
+        MultipartParser parser = new MultipartParser(new MultipartPayload(CONTENT_TYPE), Status.BAD_REQUEST);
+        parser.memoryThreshold = memoryThreshold;
+        byte bytes[] = BODY.getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(bytes.length) : ByteBuffer.allocate(bytes.length);
+        int from = 0;
+        for(int i=0; i<=splits.length; i++){
+            int to = i==splits.length ? bytes.length : splits[i];
+            buffer.put(bytes, from, to-from);
+            buffer.flip();
+            assertFalse(parser.parse(buffer, false));
+            buffer.compact();
+            from = to;
+        }
+        buffer.flip();
+        assertTrue(parser.parse(buffer, true));
+        return parser;
+    }
+
+    private static String content(Part part) throws IOException{
+        if(part instanceof FilePart){
+            byte bytes[] = Files.readAllBytes(((FilePart)part).file.toPath());
+            return new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+        return ((DefaultPart)part).buffers.toString();
+    }
+
+    private static void assertParts(MultipartParser parser, int... splits) throws IOException{
+        List<Part> parts = parser.payload.parts;
+        String message = "splits "+java.util.Arrays.toString(splits);
+        assertEquals(parts.size(), PARTS.length, message);
+        for(int i=0; i<PARTS.length; i++){
+            Part part = parts.get(i);
+            assertEquals(part.getContentDisposition().getName(), "p"+i, message);
+            assertEquals(content(part), PARTS[i], message+" part "+i);
+        }
+    }
+
+    @Test
+    public void whole() throws IOException{
+        assertParts(parse(Long.MAX_VALUE, false));
+        assertParts(parse(Long.MAX_VALUE, true));
+    }
+
+    @Test
+    public void splitOnce() throws IOException{
+        for(int i=1; i<BODY.length(); i++){
+            assertParts(parse(Long.MAX_VALUE, false, i), i);
+            assertParts(parse(Long.MAX_VALUE, true, i), i);
+        }
+    }
+
+    @Test
+    public void splitTwice() throws IOException{
+        for(int i=1; i<BODY.length(); i++){
+            for(int j=i+1; j<BODY.length(); j++)
+                assertParts(parse(Long.MAX_VALUE, false, i, j), i, j);
+        }
+    }
+
+    @Test
+    public void byteByByte() throws IOException{
+        int splits[] = new int[BODY.length()-1];
+        for(int i=0; i<splits.length; i++)
+            splits[i] = i+1;
+        assertParts(parse(Long.MAX_VALUE, false, splits));
+    }
+
+    @Test
+    public void spooled() throws IOException{
+        List<Part> parts = new ArrayList<>();
+        try{
+            for(int i=1; i<BODY.length(); i+=7){
+                MultipartParser parser = parse(4, false, i);
+                parts.addAll(parser.payload.parts);
+                assertTrue(parser.isSpooled());
+                assertTrue(parser.payload.parts.get(1) instanceof FilePart);
+                assertParts(parser, i);
+            }
+        }finally{
+            for(Part part: parts){
+                if(part instanceof FilePart)
+                    ((FilePart)part).file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void truncated() throws IOException{
+        MultipartParser parser = new MultipartParser(new MultipartPayload(CONTENT_TYPE), Status.BAD_REQUEST);
+        byte bytes[] = BODY.getBytes(StandardCharsets.ISO_8859_1);
+        try{
+            parser.parse(buffer(bytes, 0, bytes.length-20, false), true);
+            fail("truncated body is accepted");
+        }catch(java.io.EOFException ex){
+            // expected
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio.http.util;
+
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author Santhosh Kumar Tekuri
+ */
+public class ByteRangeTest{
+    private static ByteRange range(String value){
+        List<ByteRange> ranges = ByteRange.valueOf(value);
+        assertNotNull(ranges, value);
+        assertEquals(ranges.size(), 1, value);
+        return ranges.get(0);
+    }
+
+    @Test
+    public void valueOf(){
+        ByteRange range = range("bytes=0-499");
+        assertEquals(range.first, 0);
+        assertEquals(range.last, 499);
+
+        range = range("bytes=9500-");
+        assertEquals(range.first, 9500);
+        assertEquals(range.last, -1);
+
+        range = range("bytes=-500");
+        assertEquals(range.first, -1);
+        assertEquals(range.last, 500);
+
+        range = range("Bytes = 5 - 5 ,");
+        assertEquals(range.first, 5);
+        assertEquals(range.last, 5);
+
+        List<ByteRange> ranges = ByteRange.valueOf("bytes=0-0,-1, 10-");
+        assertNotNull(ranges);
+        assertEquals(ByteRange.toString(ranges), "bytes=0-0,-1,10-");
+    }
+
+    @Test
+    public void invalid(){
+        String values[] = {
+            null, "", "bytes", "bytes=", "bytes=,", "items=0-1", "bytes=5",
+            "bytes=-", "bytes=5-4", "bytes=a-1", "bytes=1-b",
+            "bytes=--5", "bytes=5--1", "bytes=+5-", "bytes=-+5", "bytes=1-2-3",
+            "bytes=99999999999999999999-"
+        };
+        for(String value: values)
+            assertNull(ByteRange.valueOf(value), value);
+    }
+
+    @Test
+    public void satisfiable(){
+        ByteRange range = range("bytes=0-499");
+        assertEquals(range.offset(10000), 0);
+        assertEquals(range.length(10000), 500);
+        assertEquals(range.length(100), 100);
+
+        range = range("bytes=499-499");
+        assertEquals(range.offset(500), 499);
+        assertEquals(range.length(500), 1);
+
+        range = range("bytes=9500-");
+        assertEquals(range.offset(10000), 9500);
+        assertEquals(range.length(10000), 500);
+
+        range = range("bytes=0-"+Long.MAX_VALUE);
+        assertEquals(range.length(10), 10);
+
+        // suffix longer than content selects whole content
+        range = range("bytes=-500");
+        assertEquals(range.offset(10000), 9500);
+        assertEquals(range.length(10000), 500);
+        assertEquals(range.offset(100), 0);
+        assertEquals(range.length(100), 100);
+    }
+
+    @Test
+    public void unsatisfiable(){
+        ByteRange range = range("bytes=500-");
+        assertEquals(range.offset(500), -1);
+        assertEquals(range.length(500), 0);
+
+        range = range("bytes=500-600");
+        assertEquals(range.offset(100), -1);
+
+        range = range("bytes=-0");
+        assertEquals(range.offset(100), -1);
+        assertEquals(range.length(100), 0);
+
+        range = range("bytes=0-");
+        assertEquals(range.offset(0), -1);
+
+        range = range("bytes=-5");
+        assertEquals(range.offset(0), -1);
+        assertEquals(range.length(0), 0);
+    }
+}
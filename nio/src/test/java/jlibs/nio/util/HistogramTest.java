@@ -0,0 +1,98 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio.util;
+
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author Santhosh Kumar Tekuri
+ */
+public class HistogramTest{
+    private static void assertBucket(long value){
+        int index = Histogram.index(value);
+        assertTrue(Histogram.highestValue(index)>=value, "value "+value);
+        if(index>0)
+            assertTrue(Histogram.highestValue(index-1)<value, "value "+value);
+        assertTrue(Histogram.highestValue(index)-value<=value/16, "value "+value);
+    }
+
+    @Test
+    public void buckets(){
+        for(long value=0; value<100000; value++)
+            assertBucket(value);
+        Random random = new Random(0);
+        for(int i=0; i<100000; i++)
+            assertBucket(random.nextLong() & Histogram.MAX_VALUE);
+        assertBucket(Histogram.MAX_VALUE);
+        assertEquals(Histogram.highestValue(Histogram.index(Histogram.MAX_VALUE)), Histogram.MAX_VALUE);
+        for(long value=0; value<32; value++)
+            assertEquals(Histogram.highestValue(Histogram.index(value)), value);
+    }
+
+    @Test
+    public void snapshot(){
+        Histogram histogram = new Histogram();
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(snapshot.count(), 0);
+        assertEquals(snapshot.mean(), 0.0);
+        assertEquals(snapshot.percentile(0.99), 0);
+
+        for(int value=1; value<=1000; value++)
+            histogram.record(value);
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        snapshot = histogram.snapshot();
+        assertEquals(snapshot.count(), 1002);
+        assertEquals(snapshot.sum(), 500500+Histogram.MAX_VALUE);
+        assertEquals(snapshot.max(), Histogram.MAX_VALUE);
+        assertEquals(snapshot.percentile(0), 0);
+        assertEquals(snapshot.percentile(1), Histogram.MAX_VALUE);
+        for(double fraction: new double[]{ 0.5, 0.9, 0.99 }){
+            long expected = (long)Math.ceil(fraction*1002)-1;
+            long actual = snapshot.percentile(fraction);
+            assertTrue(actual>=expected && actual<=expected+expected/16, fraction+": "+actual);
+        }
+
+        histogram.reset();
+        assertEquals(histogram.snapshot().count(), 0);
+        assertEquals(histogram.snapshot().max(), 0);
+    }
+
+    @Test
+    public void concurrent() throws InterruptedException{
+        Histogram histogram = new Histogram();
+        Thread threads[] = new Thread[4];
+        for(int i=0; i<threads.length; i++){
+            long value = i+1;
+            threads[i] = new Thread(() -> {
+                for(int j=0; j<100000; j++)
+                    histogram.record(value);
+            });
+            threads[i].start();
+        }
+        for(Thread thread: threads)
+            thread.join();
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(snapshot.count(), 400000);
+        assertEquals(snapshot.sum(), 1000000);
+        assertEquals(snapshot.max(), 4);
+    }
+}
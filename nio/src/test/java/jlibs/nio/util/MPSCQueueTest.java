@@ -0,0 +1,188 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio.util;
+
+import jlibs.nio.Reactor;
+import jlibs.nio.Reactors;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author Santhosh Kumar Tekuri
+ */
+public class MPSCQueueTest{
+    private static final int PRODUCERS = 4;
+    private static final int ITEMS = 200000;
+
+    private static long item(int producer, int seq){
+        return ((long)producer<<32) | seq;
+    }
+
+    /** odd producers use offerAll with random batch sizes */
+    private static Thread[] produce(CountDownLatch start, Producer producer){
+        Thread threads[] = new Thread[PRODUCERS];
+        for(int p=0; p<PRODUCERS; p++){
+            int id = p;
+            threads[p] = new Thread(() -> {
+                try{
+                    start.await();
+                }catch(InterruptedException ex){
+                    return;
+                }
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                int seq = 0;
+                while(seq<ITEMS){
+                    if(id%2==0)
+                        producer.offer(item(id, seq++));
+                    else{
+                        List<Long> batch = new ArrayList<>();
+                        for(int n=random.nextInt(1, 20); n>0 && seq<ITEMS; n--)
+                            batch.add(item(id, seq++));
+                        producer.offerAll(batch);
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        return threads;
+    }
+
+    private interface Producer{
+        void offer(long item);
+        void offerAll(List<Long> items);
+    }
+
+    /** checks that each item arrives once, in order of its producer */
+    private static class Checker{
+        final int next[] = new int[PRODUCERS];
+        int received;
+
+        void accept(long item){
+            int producer = (int)(item>>>32);
+            int seq = (int)item;
+            assertEquals(seq, next[producer], "producer "+producer);
+            next[producer]++;
+            received++;
+        }
+
+        void assertComplete(){
+            for(int p=0; p<PRODUCERS; p++)
+                assertEquals(next[p], ITEMS, "producer "+p);
+        }
+    }
+
+    @Test
+    public void queue() throws Exception{
+        MPSCQueue<Long> queue = new MPSCQueue<>();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread threads[] = produce(start, new Producer(){
+            @Override
+            public void offer(long item){
+                queue.offer(item);
+            }
+
+            @Override
+            public void offerAll(List<Long> items){
+                queue.offerAll(items);
+            }
+        });
+
+        Checker checker = new Checker();
+        start.countDown();
+        long deadline = System.currentTimeMillis()+60000;
+        while(checker.received<PRODUCERS*ITEMS){
+            Long item = queue.poll();
+            if(item==null){
+                assertTrue(System.currentTimeMillis()<deadline, "items lost");
+                Thread.yield();
+                continue;
+            }
+            checker.accept(item);
+        }
+        for(Thread thread: threads)
+            thread.join();
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+        checker.assertComplete();
+    }
+
+    @Test
+    public void batchNotInterleaved(){
+        MPSCQueue<Integer> queue = new MPSCQueue<>();
+        queue.offer(0);
+        List<Integer> batch = new ArrayList<>();
+        for(int i=1; i<=5; i++)
+            batch.add(i);
+        queue.offerAll(batch);
+        queue.offerAll(new ArrayList<>());
+        queue.offer(6);
+        for(int i=0; i<=6; i++)
+            assertEquals(queue.poll(), Integer.valueOf(i));
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    private static synchronized Reactor reactor() throws IOException{
+        if(Reactors.get()==null)
+            Reactors.start(1);
+        return Reactors.get().get(0);
+    }
+
+    /** reactor sleeps in select without timers, so a missed wakeup hangs the test */
+    @Test
+    public void invokeLater() throws Exception{
+        Reactor reactor = reactor();
+        Checker checker = new Checker();
+        CountDownLatch done = new CountDownLatch(1);
+        CountDownLatch start = new CountDownLatch(1);
+        Thread threads[] = produce(start, new Producer(){
+            private Runnable task(long item){
+                return () -> {
+                    checker.accept(item);
+                    if(checker.received==PRODUCERS*ITEMS)
+                        done.countDown();
+                };
+            }
+
+            @Override
+            public void offer(long item){
+                reactor.invokeLater(task(item));
+            }
+
+            @Override
+            public void offerAll(List<Long> items){
+                List<Runnable> tasks = new ArrayList<>(items.size());
+                for(long item: items)
+                    tasks.add(task(item));
+                reactor.invokeLater(tasks);
+            }
+        });
+        start.countDown();
+        for(Thread thread: threads)
+            thread.join();
+        assertTrue(done.await(30, TimeUnit.SECONDS), "received "+checker.received);
+        reactor.invokeAndWait(checker::assertComplete);
+    }
+}